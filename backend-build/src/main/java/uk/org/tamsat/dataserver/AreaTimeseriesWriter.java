@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.org.tamsat.dataserver.util.AreaMeanKernel;
+import uk.org.tamsat.dataserver.util.CountryDefinition;
+import uk.org.tamsat.dataserver.util.CsvRowEncoder;
+import uk.org.tamsat.dataserver.util.JobProgress;
+import uk.org.tamsat.dataserver.util.TimeSlabReader;
+
+/**
+ * Writes an area-averaged timeseries as CSV rows.
+ * 
+ * Data is read and averaged one time slab at a time, and each row is written
+ * as soon as it has been calculated, so memory use does not depend on the
+ * length of the requested time range.
+ * 
+ * If a {@link ForkJoinPool} is supplied, slabs are read and averaged in
+ * parallel on that pool. At most {@link #getMaxParallelSlabs(ForkJoinPool)}
+ * slabs from a single writer are in progress at any time, so that one large
+ * job cannot take over the pool. Slabs are always written in order, and each
+ * is averaged in exactly the same way as in serial execution, so the output is
+ * identical.
+ * 
+ * Several countries can be averaged in a single pass by reading their combined
+ * bounding box. In this case each row contains the mean of every variable for
+ * the first country, followed by every variable for the second country, etc.
+ */
+public class AreaTimeseriesWriter {
+    private final GriddedDataset dataset;
+    private final Set<String> varIds;
+    private final BoundingBox bbox;
+    private final Extent<DateTime> timeRange;
+    private final List<CountryDefinition> countryDefinitions;
+    /*
+     * Whether the countries need to be located within the bounding box, rather
+     * than having their first cell at its corner
+     */
+    private final boolean locateCountries;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param dataset
+     *            The {@link GriddedDataset} to read data from
+     * @param varIds
+     *            The variables to average. Columns will be written in the
+     *            iteration order of this {@link Set}
+     * @param bbox
+     *            The {@link BoundingBox} to average over
+     * @param timeRange
+     *            The time range to extract
+     * @param countryDefinition
+     *            The country to average over, or <code>null</code> to average
+     *            over the whole bounding box
+     * @param pool
+     *            The {@link ForkJoinPool} to average slabs on, or
+     *            <code>null</code> to average them serially on the calling
+     *            thread
+     */
+    public AreaTimeseriesWriter(GriddedDataset dataset, Set<String> varIds, BoundingBox bbox,
+            Extent<DateTime> timeRange, CountryDefinition countryDefinition, ForkJoinPool pool) {
+        this.dataset = dataset;
+        this.varIds = varIds;
+        this.bbox = bbox;
+        this.timeRange = timeRange;
+        this.countryDefinitions = Collections.singletonList(countryDefinition);
+        this.locateCountries = false;
+        this.pool = pool;
+    }
+
+    /**
+     * @param dataset
+     *            The {@link GriddedDataset} to read data from
+     * @param varIds
+     *            The variables to average. Columns will be written in the
+     *            iteration order of this {@link Set}
+     * @param bbox
+     *            The {@link BoundingBox} to read. This must contain every
+     *            country
+     * @param timeRange
+     *            The time range to extract
+     * @param countryDefinitions
+     *            The countries to average over. Columns will be written in the
+     *            iteration order of this {@link Collection}
+     * @param pool
+     *            The {@link ForkJoinPool} to average slabs on, or
+     *            <code>null</code> to average them serially on the calling
+     *            thread
+     */
+    public AreaTimeseriesWriter(GriddedDataset dataset, Set<String> varIds, BoundingBox bbox,
+            Extent<DateTime> timeRange, Collection<CountryDefinition> countryDefinitions,
+            ForkJoinPool pool) {
+        this.dataset = dataset;
+        this.varIds = varIds;
+        this.bbox = bbox;
+        this.timeRange = timeRange;
+        this.countryDefinitions = new ArrayList<>(countryDefinitions);
+        this.locateCountries = true;
+        this.pool = pool;
+    }
+
+    /**
+     * @param pool
+     *            The pool which slabs will be averaged on
+     * @return The maximum number of slabs which a single writer will process
+     *         in parallel on the given pool
+     */
+    public static int getMaxParallelSlabs(ForkJoinPool pool) {
+        return Math.max(1, pool.getParallelism() / 2);
+    }
+
+    /**
+     * Writes one CSV row per timestep. No header is written.
+     * 
+     * @param w
+     *            The {@link Writer} to write rows to
+     */
+    public void write(Writer w) throws EdalException, IOException {
+        write(w, null);
+    }
+
+    /**
+     * Writes one CSV row per timestep, reporting progress as each time slab
+     * is written. No header is written.
+     * 
+     * @param w
+     *            The {@link Writer} to write rows to
+     * @param progress
+     *            The {@link JobProgress} to update, or <code>null</code>
+     */
+    public void write(Writer w, JobProgress progress) throws EdalException, IOException {
+        int maxParallelSlabs = pool == null ? 1 : getMaxParallelSlabs(pool);
+        /*
+         * Subset into a GridFeature per slab to ensure a common grid, and the
+         * minimum horizontal range (will throw an exception if not all vars on
+         * the same grid, and will take care of partial overlaps).
+         * 
+         * When running in parallel, make sure that there are enough slabs to
+         * keep the pool busy
+         */
+        TimeSlabReader slabReader = new TimeSlabReader(dataset, varIds, bbox, timeRange,
+                TimeSlabReader.DEFAULT_SLAB_VALUES, maxParallelSlabs * 4);
+
+        if (maxParallelSlabs == 1 || slabReader.getSlabCount() == 1) {
+            for (int s = 0; s < slabReader.getSlabCount(); s++) {
+                averageSlab(slabReader, s).writeTo(w);
+                if (progress != null) {
+                    progress.addTimesteps(slabReader.getSlabSize(s));
+                }
+            }
+        } else {
+            /*
+             * Keep up to maxParallelSlabs slabs in progress, writing out the
+             * oldest as soon as it has completed
+             */
+            Deque<ForkJoinTask<CsvRowEncoder>> inProgress = new ArrayDeque<>();
+            int written = 0;
+            for (int s = 0; s < slabReader.getSlabCount(); s++) {
+                final int slab = s;
+                inProgress.add(pool.submit(() -> averageSlab(slabReader, slab)));
+                if (inProgress.size() >= maxParallelSlabs) {
+                    awaitSlab(inProgress.removeFirst()).writeTo(w);
+                    if (progress != null) {
+                        progress.addTimesteps(slabReader.getSlabSize(written));
+                    }
+                    written++;
+                }
+            }
+            while (!inProgress.isEmpty()) {
+                awaitSlab(inProgress.removeFirst()).writeTo(w);
+                if (progress != null) {
+                    progress.addTimesteps(slabReader.getSlabSize(written));
+                }
+                written++;
+            }
+        }
+    }
+
+    /**
+     * Waits for a slab to be averaged, rethrowing any exception which occurred
+     * while doing so
+     * 
+     * @return The CSV rows for the slab
+     */
+    private static CsvRowEncoder awaitSlab(ForkJoinTask<CsvRowEncoder> task)
+            throws EdalException, IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst averaging data", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof EdalException) {
+                throw (EdalException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Problem averaging data", cause);
+        }
+    }
+
+    /**
+     * Reads and averages a single slab
+     * 
+     * @return The CSV rows for every timestep in the slab
+     */
+    private CsvRowEncoder averageSlab(TimeSlabReader slabReader, int slabIndex)
+            throws EdalException, IOException {
+        GridFeature slab = slabReader.readSlab(slabIndex);
+        HorizontalGrid grid = slab.getDomain().getHorizontalGrid();
+        List<AreaMeanKernel> kernels = new ArrayList<>();
+        for (CountryDefinition country : countryDefinitions) {
+            if (locateCountries) {
+                GridCoordinates2D origin = country.findOrigin(grid);
+                kernels.add(new AreaMeanKernel(grid, country, origin.getX(), origin.getY()));
+            } else {
+                kernels.add(new AreaMeanKernel(grid, country));
+            }
+        }
+
+        /*
+         * Store the value arrays for each variable
+         */
+        List<Array4D<Number>> varVals = new ArrayList<>();
+        for (String var : varIds) {
+            varVals.add(slab.getValues(var));
+        }
+
+        /*
+         * Now write out the time series for this slab
+         */
+        CsvRowEncoder rows = new CsvRowEncoder();
+        TimeAxis timeAxis = slab.getDomain().getTimeAxis();
+        for (int t = 0; t < timeAxis.size(); t++) {
+            rows.startRow(timeAxis.getCoordinateValue(t));
+
+            /*
+             * For each country and variable, calculate the area-weighted mean
+             */
+            for (AreaMeanKernel kernel : kernels) {
+                for (Array4D<Number> vals : varVals) {
+                    /*
+                     * If we are averaging over somewhere which is all missing
+                     * data, this will write -999.
+                     */
+                    rows.addValue(kernel.mean(vals, t));
+                }
+            }
+            rows.endRow();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,599 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.org.tamsat.dataserver.util.ResultCompression;
+
+/**
+ * Serves a file in response to an HTTP request, supporting conditional
+ * requests (<code>If-None-Match</code>, <code>If-Modified-Since</code>) and
+ * single byte ranges (<code>Range</code>, <code>If-Range</code>) so that
+ * interrupted downloads can be resumed.
+ * 
+ * Where the container supports it (Tomcat's NIO and APR connectors), the file
+ * is sent by the container using sendfile once the servlet has returned. This
+ * is the only case in which the data is not copied through the JVM.
+ * Otherwise, if the request supports asynchronous processing, the file is
+ * read into a buffer and written by a {@link WriteListener} whenever the
+ * client is ready to receive more data. In either case, no request thread is
+ * held while waiting for a slow client. As a last resort, the file is copied
+ * to the response with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, blocking
+ * the request thread until the download has finished. The response stream is
+ * not a socket channel, so this is an ordinary copy through a buffer in the
+ * JVM rather than a zero-copy transfer.
+ * 
+ * Requests for multiple ranges are answered with the whole file, which is
+ * permitted by RFC 7233.
+ * 
+ * Files which have been gzip-compressed (see {@link ResultCompression}) are
+ * sent as they are, with <code>Content-Encoding: gzip</code>, to clients which
+ * accept it. Byte ranges then refer to the compressed data. Other clients are
+ * sent the decompressed data, which is produced as it is sent. Its length is
+ * not known in advance, so these responses have no
+ * <code>Content-Length</code> and do not support ranges
+ * (<code>Accept-Ranges: none</code>), which means that they cannot be
+ * resumed. Where possible they are also written asynchronously.
+ */
+public class FileDownload {
+    private static final Logger log = LoggerFactory.getLogger(FileDownload.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private FileDownload() {
+    }
+
+    /**
+     * Sends a file (or the requested part of it) as the response to a GET or
+     * HEAD request. The caller should set any other headers (e.g.
+     * <code>Content-Disposition</code>) before calling this.
+     * 
+     * @param req
+     *            The request
+     * @param resp
+     *            The response to send the file in
+     * @param file
+     *            The file to send
+     * @param contentType
+     *            The MIME type of the file
+     * @return <code>true</code> if some or all of the file was sent,
+     *         <code>false</code> if no content was sent (e.g. the client's
+     *         copy is up-to-date, or the request was HEAD)
+     */
+    public static boolean serve(HttpServletRequest req, HttpServletResponse resp, File file,
+            String contentType) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = getETag(file);
+
+        if (ResultCompression.isCompressed(file)) {
+            resp.setHeader("Vary", "Accept-Encoding");
+            if (!acceptsGzip(req.getHeader("Accept-Encoding"))) {
+                return serveDecompressed(req, resp, file, contentType, etag, lastModified);
+            }
+            /*
+             * The compressed representation needs a different entity tag
+             */
+            etag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            resp.setHeader("Content-Encoding", "gzip");
+        }
+
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setHeader("ETag", etag);
+        resp.setDateHeader("Last-Modified", lastModified);
+
+        if (isNotModified(req, etag, lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+
+        long start = 0L;
+        long end = length - 1;
+        String range = req.getHeader("Range");
+        if (range != null && ifRangeMatches(req, etag, lastModified)) {
+            long[] byteRange = parseRange(range, length);
+            if (byteRange != null) {
+                if (byteRange.length == 0) {
+                    resp.setHeader("Content-Range", "bytes */" + length);
+                    resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return false;
+                }
+                start = byteRange[0];
+                end = byteRange[1];
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        long count = end - start + 1;
+        resp.setContentType(contentType);
+        resp.setContentLengthLong(count);
+        if ("HEAD".equalsIgnoreCase(req.getMethod())) {
+            return false;
+        }
+        if (count == 0) {
+            return true;
+        }
+
+        if (Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            /*
+             * The container will send the file after we return
+             */
+            req.setAttribute(SENDFILE_FILENAME_ATTR, file.getCanonicalPath());
+            req.setAttribute(SENDFILE_START_ATTR, start);
+            req.setAttribute(SENDFILE_END_ATTR, end + 1);
+        } else if (req.isAsyncSupported()) {
+            /*
+             * Open the file first, so that if it has just been evicted from
+             * the cache we fail before going async
+             */
+            FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            AsyncContext async = null;
+            try {
+                /*
+                 * Large files can take hours to download over slow links, so
+                 * don't time out
+                 */
+                async = req.startAsync();
+                async.setTimeout(0L);
+                ServletOutputStream os = resp.getOutputStream();
+                os.setWriteListener(new AsyncTransfer(in, start, count, os, async::complete));
+            } catch (IOException | RuntimeException e) {
+                /*
+                 * An async context which is never completed would hold on to
+                 * the connection forever
+                 */
+                in.close();
+                if (async != null) {
+                    async.complete();
+                }
+                throw e;
+            }
+        } else {
+            /*
+             * The output stream is wrapped in a channel, so transferTo() falls
+             * back to copying through a buffer here
+             */
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+                transfer(in, start, count, out);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the decompressed contents of a gzip-compressed file. The length
+     * is not known in advance, so no <code>Content-Length</code> is sent and
+     * ranges are not supported. If the request supports asynchronous
+     * processing, the data is decompressed whenever the client is ready to
+     * receive more, so that no request thread is held while waiting for a
+     * slow client. Otherwise it is copied to the response on this thread.
+     */
+    private static boolean serveDecompressed(HttpServletRequest req, HttpServletResponse resp,
+            File file, String contentType, String etag, long lastModified) throws IOException {
+        resp.setHeader("Accept-Ranges", "none");
+        resp.setHeader("ETag", etag);
+        resp.setDateHeader("Last-Modified", lastModified);
+        if (isNotModified(req, etag, lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+        resp.setContentType(contentType);
+        if ("HEAD".equalsIgnoreCase(req.getMethod())) {
+            return false;
+        }
+        if (req.isAsyncSupported()) {
+            /*
+             * Open the file first, so that if it has just been evicted from
+             * the cache we fail before going async
+             */
+            InputStream in = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+            AsyncContext async = null;
+            try {
+                async = req.startAsync();
+                async.setTimeout(0L);
+                ServletOutputStream os = resp.getOutputStream();
+                os.setWriteListener(new AsyncStreamCopy(in, os, async::complete));
+            } catch (IOException | RuntimeException e) {
+                /*
+                 * An async context which is never completed would hold on to
+                 * the connection forever
+                 */
+                in.close();
+                if (async != null) {
+                    async.complete();
+                }
+                throw e;
+            }
+        } else {
+            try (InputStream in = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+                OutputStream os = resp.getOutputStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) > -1) {
+                    os.write(buffer, 0, n);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param acceptEncoding
+     *            The value of the <code>Accept-Encoding</code> header, or
+     *            <code>null</code> if there was none
+     * @return Whether the client will accept a gzip-encoded response
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double gzipQ = null;
+        Double anyQ = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            double q = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0.0;
+                    }
+                }
+            }
+            if ("gzip".equals(name) || "x-gzip".equals(name)) {
+                gzipQ = q;
+            } else if ("*".equals(name)) {
+                anyQ = q;
+            }
+        }
+        if (gzipQ != null) {
+            return gzipQ > 0;
+        }
+        return anyQ != null && anyQ > 0;
+    }
+
+    /**
+     * Writes part of a file to a non-blocking {@link ServletOutputStream},
+     * returning whenever the stream cannot accept any more data. The container
+     * calls {@link #onWritePossible()} again once it can.
+     */
+    static class AsyncTransfer implements WriteListener {
+        private final FileChannel in;
+        private final ServletOutputStream os;
+        private final Runnable onComplete;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long position;
+        private long remaining;
+
+        /**
+         * @param in
+         *            The file to send. This will be closed once the transfer
+         *            has finished
+         * @param start
+         *            The position of the first byte to send
+         * @param count
+         *            The number of bytes to send
+         * @param os
+         *            The stream to write to. This must be in non-blocking mode
+         * @param onComplete
+         *            Called once the transfer has finished or failed
+         */
+        AsyncTransfer(FileChannel in, long start, long count, ServletOutputStream os,
+                Runnable onComplete) {
+            this.in = in;
+            this.os = os;
+            this.onComplete = onComplete;
+            this.position = start;
+            this.remaining = count;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            while (os.isReady()) {
+                if (remaining == 0) {
+                    finish();
+                    return;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, remaining));
+                int n = in.read(buffer, position);
+                if (n <= 0) {
+                    throw new IOException("File was truncated whilst being sent");
+                }
+                position += n;
+                remaining -= n;
+                os.write(buffer.array(), 0, n);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            /*
+             * This is usually just a client disconnecting
+             */
+            log.debug("Download failed with " + remaining + " bytes remaining", t);
+            finish();
+        }
+
+        private void finish() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.warn("Problem closing downloaded file", e);
+            }
+            onComplete.run();
+        }
+    }
+
+    /**
+     * Copies a stream to a non-blocking {@link ServletOutputStream}, reading
+     * no more than one buffer ahead of what the stream can accept. This is
+     * used for data which is produced as it is sent (e.g. by decompressing a
+     * file), so that its length is not known in advance.
+     */
+    static class AsyncStreamCopy implements WriteListener {
+        private final InputStream in;
+        private final ServletOutputStream os;
+        private final Runnable onComplete;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private long sent = 0L;
+
+        /**
+         * @param in
+         *            The stream to copy. This will be closed once the copy has
+         *            finished
+         * @param os
+         *            The stream to write to. This must be in non-blocking mode
+         * @param onComplete
+         *            Called once the copy has finished or failed
+         */
+        AsyncStreamCopy(InputStream in, ServletOutputStream os, Runnable onComplete) {
+            this.in = in;
+            this.os = os;
+            this.onComplete = onComplete;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            while (os.isReady()) {
+                int n = in.read(buffer);
+                if (n < 0) {
+                    finish();
+                    return;
+                }
+                sent += n;
+                os.write(buffer, 0, n);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            /*
+             * This is usually just a client disconnecting
+             */
+            log.debug("Download failed after " + sent + " bytes", t);
+            finish();
+        }
+
+        private void finish() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.warn("Problem closing downloaded file", e);
+            }
+            onComplete.run();
+        }
+    }
+
+    /**
+     * Copies part of a file to a channel. The data is only sent without being
+     * copied into the JVM if the target is a {@link FileChannel} or a socket
+     * channel, which a wrapped servlet output stream is not.
+     * 
+     * @param in
+     *            The file to copy from
+     * @param start
+     *            The position of the first byte to copy
+     * @param count
+     *            The number of bytes to copy
+     * @param out
+     *            The channel to copy to
+     */
+    static void transfer(FileChannel in, long start, long count, WritableByteChannel out)
+            throws IOException {
+        long position = start;
+        long end = start + count;
+        while (position < end) {
+            long n = in.transferTo(position, end - position, out);
+            if (n <= 0) {
+                throw new IOException("File was truncated whilst being sent");
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * @return A strong entity tag for the current contents of the file. Result
+     *         files are never modified in place, so the size and modification
+     *         time identify them.
+     */
+    static String getETag(File file) {
+        return "\"" + Long.toHexString(file.length()) + "-"
+                + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    private static boolean isNotModified(HttpServletRequest req, String etag,
+            long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            /*
+             * If-None-Match takes precedence
+             */
+            return noneMatchFails(ifNoneMatch, etag);
+        }
+        long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * @param ifNoneMatch
+     *            The value of an <code>If-None-Match</code> header
+     * @param etag
+     *            The current entity tag of the resource
+     * @return Whether any of the tags in the header match the given tag,
+     *         using the weak comparison, so that the client's copy is
+     *         up-to-date
+     */
+    public static boolean noneMatchFails(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean ifRangeMatches(HttpServletRequest req, String etag,
+            long lastModified) {
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            /*
+             * If-Range uses the strong comparison, so weak tags never match
+             */
+            return ifRange.equals(etag);
+        }
+        long date = getDateHeader(req, "If-Range");
+        return date != -1 && lastModified / 1000 == date / 1000;
+    }
+
+    private static long getDateHeader(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            /*
+             * Invalid dates are ignored
+             */
+            return -1;
+        }
+    }
+
+    /**
+     * Parses the value of a <code>Range</code> header
+     * 
+     * @param range
+     *            The header value
+     * @param length
+     *            The length of the file
+     * @return The first and last byte positions of the range,
+     *         <code>null</code> if the header should be ignored (because it is
+     *         invalid or requests multiple ranges), or an empty array if the
+     *         range cannot be satisfied
+     */
+    static long[] parseRange(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        if (spec.contains(",")) {
+            return null;
+        }
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                /*
+                 * A suffix range: the last n bytes
+                 */
+                long suffix = Long.parseLong(last);
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0 || length == 0) {
+                    return new long[0];
+                }
+                return new long[] { Math.max(0L, length - suffix), length - 1 };
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= length) {
+                return new long[0];
+            }
+            return new long[] { start, Math.min(end, length - 1) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -60,8 +60,13 @@ public class FinishedJobState implements Serializable {
         this.error = error;
         fileLocation = null;
         outputFilename = null;
+        completedTime = System.currentTimeMillis();
     }
     
+    public SubsetRequestParams getParams() {
+        return params;
+    }
+
     public String getId() {
         return params.getJobId();
     }
@@ -92,6 +97,9 @@ public class FinishedJobState implements Serializable {
         if(params.isPoint()) {
             HorizontalPosition pos = params.getBoundingBox().getLowerCorner();
             sb.append("(Lat: "+pos.getY()+", Lon: "+pos.getX()+")");
+        } else if(params.isMultiCountry()) {
+            sb.append(params.getCountryDefinitions().size()+" countries: "
+                    +String.join(", ", params.getCountryDefinitions().keySet()));
         } else if(params.isCountry()){
             sb.append(params.getCountry());
         } else {
@@ -31,16 +31,19 @@ package uk.org.tamsat.dataserver;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
-import java.text.DecimalFormat;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.function.Consumer;
+import java.util.concurrent.ForkJoinPool;
 
-import org.opengis.geometry.Geometry;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,18 +51,25 @@ import uk.ac.rdg.resc.edal.catalogue.DataCatalogue;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
 import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridFeatureWrite;
+import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.feature.GridFeature;
 import uk.ac.rdg.resc.edal.feature.PointSeriesFeature;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
-import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.util.Array1D;
-import uk.ac.rdg.resc.edal.util.Array4D;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
-import uk.ac.rdg.resc.edal.util.TimeUtils;
 import uk.org.tamsat.dataserver.util.CountryDefinition;
+import uk.org.tamsat.dataserver.util.CsvRowEncoder;
+import uk.org.tamsat.dataserver.util.JobCostModel;
+import uk.org.tamsat.dataserver.util.JobCostModel.JobSize;
+import uk.org.tamsat.dataserver.util.JobCostModel.OutputType;
+import uk.org.tamsat.dataserver.util.JobProgress;
+import uk.org.tamsat.dataserver.util.JobProgress.Stage;
+import uk.org.tamsat.dataserver.util.NetcdfSubsetWriter;
+import uk.org.tamsat.dataserver.util.TimeMajorStore;
+import uk.org.tamsat.dataserver.util.TimeSlabReader;
 
 public class SubsetJob implements Callable<Integer> {
     public static interface JobFinished {
@@ -67,35 +77,73 @@ public class SubsetJob implements Callable<Integer> {
     }
 
     private static final Logger log = LoggerFactory.getLogger(SubsetJob.class);
-    private static final DecimalFormat FORMAT_2DP = new DecimalFormat("#.00");
+    /*
+     * NetCDF output has every value masked, compressed and written, rather
+     * than just being averaged, so costs more per value read
+     */
+    private static final long NETCDF_COST_FACTOR = 4L;
+    /*
+     * The cost of opening the data files of a single timestep, in the same
+     * units (values read). This dominates small requests which can't be read
+     * from the time-major store.
+     */
+    private static final long FILE_OPEN_COST = 20000L;
 
     private final SubsetRequestParams params;
     private final DataCatalogue tamsatCatalogue;
     private final File dataDir;
     private final JobFinished callback;
+    private final ForkJoinPool averagingPool;
+    private final TimeMajorStore timeMajorStore;
+    private final NetcdfSubsetWriter netcdfWriter;
+    private final JobProgress progress;
 
     public SubsetJob(SubsetRequestParams params, DataCatalogue tamsatCatalogue, File dataDir,
             JobFinished callback) {
+        this(params, tamsatCatalogue, dataDir, callback, null, null, null, null);
+    }
+
+    /**
+     * @param averagingPool
+     *            A {@link ForkJoinPool} shared between jobs, used to calculate
+     *            area averages in parallel. If <code>null</code>, averages are
+     *            calculated on the thread running this job
+     * @param timeMajorStore
+     *            A {@link TimeMajorStore} of the requested dataset, used to
+     *            read point and small area timeseries. May be
+     *            <code>null</code>
+     * @param netcdfWriter
+     *            The {@link NetcdfSubsetWriter} used to write NetCDF output.
+     *            If <code>null</code>, output is written uncompressed by
+     *            {@link CdmGridFeatureWrite}
+     * @param progress
+     *            The {@link JobProgress} to update whilst running. May be
+     *            <code>null</code>
+     */
+    public SubsetJob(SubsetRequestParams params, DataCatalogue tamsatCatalogue, File dataDir,
+            JobFinished callback, ForkJoinPool averagingPool, TimeMajorStore timeMajorStore,
+            NetcdfSubsetWriter netcdfWriter, JobProgress progress) {
         this.params = params;
         this.tamsatCatalogue = tamsatCatalogue;
         this.dataDir = dataDir;
         this.callback = callback;
+        this.averagingPool = averagingPool;
+        this.timeMajorStore = timeMajorStore;
+        this.netcdfWriter = netcdfWriter;
+        this.progress = progress != null ? progress
+                : new JobProgress(params.getJobId(), Stage.RUNNING);
     }
 
     @Override
     public Integer call() {
         try {
             /*
-             * This job could be submitted before the dataset has been loaded
-             * (usually on a reboot)
-             * 
-             * Wait until it is loaded before running.
+             * Jobs are only queued once their dataset has been loaded, so it
+             * will only be missing if it doesn't exist
              */
             Dataset ds = tamsatCatalogue.getDatasetFromId(params.getDatasetId());
-            while (ds == null) {
-                log.debug("Dataset " + params.getDatasetId() + " not available yet");
-                Thread.sleep(10000L);
-                ds = tamsatCatalogue.getDatasetFromId(params.getDatasetId());
+            if (ds == null) {
+                throw new EdalException("Dataset " + params.getDatasetId() + " is not available");
             }
             if (!(ds instanceof GriddedDataset)) {
                 throw new EdalException("Only gridded datasets may be subset");
@@ -110,178 +158,49 @@ public class SubsetJob implements Callable<Integer> {
 
             BoundingBox bbox = params.getBoundingBox();
             Set<String> varIds = dataset.getVariableIds();
+            progress.setTimestepsTotal(
+                    new TimeSlabReader(dataset, varIds, bbox, params.getTimeRange()).size());
+            progress.setOutputFile(outputFile);
+            progress.setStage(Stage.RUNNING);
             if (params.isNetCDF()) {
                 /*
                  * We want a subset as NetCDF
-                 * 
-                 * Subset the feature and write to disk
                  */
-                log.debug("Extracting region");
-                GridFeature subset = dataset.subsetFeatures(varIds, bbox, null,
-                        params.getTimeRange());
-                /*
-                 * Now get mask for data which is not part of the requested
-                 * Polygon
-                 */
-                Set<GridCoordinates2D> cellsToMask = null;
-                log.debug("Getting masked cells");
-                if (params.isCountry()) {
-                    cellsToMask = getCellsToMask(subset.getDomain().getHorizontalGrid(),
-                            params.getCountryDefinition());
+                if (netcdfWriter != null) {
+                    /*
+                     * Read, mask and write one time slab at a time
+                     */
+                    log.debug("Writing to NetCDF");
+                    netcdfWriter.write(dataset, varIds, bbox, params.getTimeRange(),
+                            this::getCellsToMask, outputFile,
+                            NetcdfSubsetWriter.isNetcdf4Available(), progress);
+                } else {
+                    /*
+                     * Subset the feature and write to disk
+                     */
+                    log.debug("Extracting region");
+                    GridFeature subset = dataset.subsetFeatures(varIds, bbox, null,
+                            params.getTimeRange());
+                    /*
+                     * Now get mask for data which is not part of the requested
+                     * Polygon
+                     */
+                    log.debug("Getting masked cells");
+                    Set<GridCoordinates2D> cellsToMask = getCellsToMask(
+                            subset.getDomain().getHorizontalGrid());
+                    log.debug("Writing to NetCDF");
+                    CdmGridFeatureWrite.gridFeatureToNetCDF(subset, outputFile, cellsToMask);
                 }
-                log.debug("Writing to NetCDF");
-
-                CdmGridFeatureWrite.gridFeatureToNetCDF(subset, outputFile, cellsToMask);
             } else {
                 /*
                  * We want a timeseries as CSV
                  */
-
                 try (BufferedWriter w = new BufferedWriter(new FileWriter(outputFile))) {
-                    /*
-                     * The CSV header will be the same whether this is
-                     * single-cell or area-averaged
-                     */
-                    StringBuilder line = new StringBuilder("time,");
-                    for (String var : varIds) {
-                        line.append(var + ",");
-                    }
-                    w.write(line.substring(0, line.length() - 1) + "\n");
-
-                    /*
-                     * Now deal with point / area distinction
-                     */
-                    if (params.isPoint()) {
-                        /*
-                         * We want a timeseries at a point, so extract with the
-                         * 0-size bounding box.
-                         */
-                        List<? extends PointSeriesFeature> timeseriesFeatures = dataset
-                                .extractTimeseriesFeatures(varIds, bbox, null,
-                                        params.getTimeRange(), null, null);
-                        /*
-                         * This is a timeseries at a point so it should only
-                         * contain one feature
-                         */
-                        if (timeseriesFeatures.size() > 1) {
-                            throw new EdalException(
-                                    "Multiple time series found at a point.  This is an error");
-                        }
-                        PointSeriesFeature feature = timeseriesFeatures.get(0);
-
-                        /*
-                         * Store the value arrays for each variable
-                         */
-                        Map<String, Array1D<Number>> var2Vals = new HashMap<>();
-                        for (String var : varIds) {
-                            var2Vals.put(var, feature.getValues(var));
-                        }
-
-                        /*
-                         * Now write out time series
-                         */
-                        TimeAxis timeAxis = feature.getDomain();
-                        for (int i = 0; i < timeAxis.size(); i++) {
-                            line = new StringBuilder(
-                                    TimeUtils.formatUtcDateOnly(timeAxis.getCoordinateValue(i))
-                                            + ",");
-                            for (String var : varIds) {
-                                Number value = var2Vals.get(var).get(i);
-                                if (value == null || Double.isNaN(value.doubleValue())) {
-                                    value = -999;
-                                }
-                                /*
-                                 * We want to format non-integers to 2 d.p.
-                                 */
-                                if (value instanceof Integer) {
-                                    line.append(value + ",");
-                                } else {
-                                    line.append(FORMAT_2DP.format(value)+",");
-                                }
-                            }
-                            w.write(line.substring(0, line.length() - 1) + "\n");
-                        }
-                    } else {
-                        /*
-                         * Subset into a single GridFeature to ensure a common
-                         * grid, and the minimum horizontal range (will throw an
-                         * exception if not all vars on the same grid, and will
-                         * take care of partial overlaps)
-                         */
-                        GridFeature subset = dataset.subsetFeatures(varIds, bbox, null,
-                                params.getTimeRange());
-
-                        HorizontalGrid grid = subset.getDomain().getHorizontalGrid();
-
-                        Set<GridCoordinates2D> cellsToMask = new HashSet<>();
-                        if (params.isCountry()) {
-                            cellsToMask = getCellsToMask(grid, params.getCountryDefinition());
-                        }
-
-                        /*
-                         * Store the value arrays for each variable
-                         */
-                        Map<String, Array4D<Number>> var2Vals = new HashMap<>();
-                        for (String var : varIds) {
-                            var2Vals.put(var, subset.getValues(var));
-                        }
-
-                        /*
-                         * Now write out time series
-                         */
-                        TimeAxis timeAxis = subset.getDomain().getTimeAxis();
-                        for (int t = 0; t < timeAxis.size(); t++) {
-                            line = new StringBuilder(
-                                    TimeUtils.formatUtcDateOnly(timeAxis.getCoordinateValue(t))
-                                            + ",");
-
-                            /*
-                             * For each variable, calculate the area-weighted
-                             * mean
-                             */
-                            for (String var : varIds) {
-                                double totalVal = 0;
-                                int totalWeight = 0;
-
-                                Array4D<Number> vals = var2Vals.get(var);
-                                for (int i = 0; i < vals.getXSize(); i++) {
-                                    for (int j = 0; j < vals.getYSize(); j++) {
-                                        GridCoordinates2D gc = new GridCoordinates2D(i, j);
-                                        /*
-                                         * If this cell is masked, ignore it
-                                         */
-                                        if (cellsToMask.contains(gc)) {
-                                            continue;
-                                        }
-                                        /*
-                                         * Otherwise add it to the count if it
-                                         * has a value
-                                         */
-                                        Number val = vals.get(t, 0, j, i);
-                                        if (val != null && !Double.isNaN(val.doubleValue())) {
-                                            totalVal += val.doubleValue();
-                                            totalWeight++;
-                                        }
-                                    }
-                                }
-                                if (!Double.isNaN(totalVal) && totalWeight > 0) {
-                                    line.append(FORMAT_2DP.format(totalVal / totalWeight) + ",");
-                                } else {
-                                    /*
-                                     * If we are averaging over somewhere which
-                                     * is all missing data (i.e. the totalVal is
-                                     * NaN, or more likely, the totalWeight is
-                                     * 0), write -999.
-                                     */
-                                    line.append("-999,");
-                                }
-                            }
-                            w.write(line.substring(0, line.length() - 1) + "\n");
-                        }
-                    }
+                    writeCsv(dataset, w);
                 }
             }
 
+            progress.allTimestepsDone();
             log.debug("Job " + params.getJobId() + " completed");
 
             FinishedJobState finishedJobState = new FinishedJobState(params, outputFile);
@@ -300,30 +219,318 @@ public class SubsetJob implements Callable<Integer> {
     }
 
     /**
-     * Finds grid cells whose centres are included in any of the supplied
-     * {@link Geometry}s
+     * Writes the requested timeseries as CSV, including the header
+     * 
+     * @param dataset
+     *            The dataset to read from
+     * @param w
+     *            The {@link Writer} to write to
+     */
+    void writeCsv(GriddedDataset dataset, Writer w) throws EdalException, IOException {
+        BoundingBox bbox = params.getBoundingBox();
+        Set<String> varIds = dataset.getVariableIds();
+        w.write(getCsvHeader(params, varIds));
+
+        /*
+         * Now deal with point / area distinction
+         */
+        if (params.isPoint()) {
+            /*
+             * Read as much as possible from the time-major store, and the rest
+             * (usually the most recent timesteps) from the dataset itself
+             */
+            Extent<DateTime> remaining = params.getTimeRange();
+            if (timeMajorStore != null) {
+                remaining = timeMajorStore.writePointTimeseries(dataset, varIds, bbox, remaining,
+                        w);
+            }
+            if (remaining != null) {
+                writePointTimeseries(dataset, varIds, bbox, remaining, w);
+            }
+        } else if (params.isMultiCountry()) {
+            /*
+             * Average every country in a single pass over their combined
+             * bounding box
+             */
+            new AreaTimeseriesWriter(dataset, varIds, bbox, params.getTimeRange(),
+                    params.getCountryDefinitions().values(), averagingPool).write(w, progress);
+        } else {
+            /*
+             * Small areas can be averaged from the time-major store
+             */
+            Extent<DateTime> remaining = params.getTimeRange();
+            if (timeMajorStore != null && !params.isCountry()) {
+                remaining = timeMajorStore.writeAreaTimeseries(dataset, varIds, bbox, remaining,
+                        w);
+            }
+            /*
+             * Average over the area one time slab at a time, writing rows as
+             * we go
+             */
+            if (remaining != null) {
+                new AreaTimeseriesWriter(dataset, varIds, bbox, remaining,
+                        params.isCountry() ? params.getCountryDefinition() : null,
+                        averagingPool).write(w, progress);
+            }
+        }
+    }
+
+    /**
+     * Estimates the cost of running a request, as the number of values which
+     * need to be read (i.e. grid cells * timesteps * variables), multiplied up
+     * for NetCDF output
+     * 
+     * @param params
+     *            The request
+     * @param dataset
+     *            The dataset which the request is for
+     * @return The estimated cost
+     */
+    public static long estimateCost(SubsetRequestParams params, GriddedDataset dataset)
+            throws EdalException {
+        return getJobSize(params, dataset).getCost();
+    }
+
+    /**
+     * Estimates the cost of calculating a CSV request on the request thread.
+     * As well as the values read, this counts the files opened for each
+     * timestep which cannot be read from the time-major store.
+     * 
+     * @param params
+     *            The request
+     * @param dataset
+     *            The dataset which the request is for
+     * @param timeMajorStore
+     *            The {@link TimeMajorStore} of the dataset. May be
+     *            <code>null</code>
+     * @return The estimated cost
+     */
+    public static long estimateSynchronousCost(SubsetRequestParams params,
+            GriddedDataset dataset, TimeMajorStore timeMajorStore) throws EdalException {
+        Set<String> varIds = dataset.getVariableIds();
+        TimeSlabReader slabReader = new TimeSlabReader(dataset, varIds, params.getBoundingBox(),
+                params.getTimeRange());
+        long timesteps = Math.max(0, slabReader.size());
+        long stored = 0L;
+        if (timeMajorStore != null && params.isPoint()) {
+            stored = timeMajorStore.getStoredPointTimesteps(dataset, varIds,
+                    params.getBoundingBox(), params.getTimeRange());
+        } else if (timeMajorStore != null && !params.isCountry() && !params.isMultiCountry()) {
+            stored = timeMajorStore.getStoredAreaTimesteps(dataset, varIds,
+                    params.getBoundingBox(), params.getTimeRange());
+        }
+        return getJobSize(params, dataset).getCost()
+                + FILE_OPEN_COST * Math.max(0L, timesteps - stored);
+    }
+
+    /**
+     * Measures a request in the terms used by {@link JobCostModel}
+     * 
+     * @param params
+     *            The request
+     * @param dataset
+     *            The dataset which the request is for
+     * @return The {@link JobSize}, including the cost as in
+     *         {@link #estimateCost(SubsetRequestParams, GriddedDataset)}
+     */
+    public static JobSize getJobSize(SubsetRequestParams params, GriddedDataset dataset)
+            throws EdalException {
+        Set<String> varIds = dataset.getVariableIds();
+        TimeSlabReader slabReader = new TimeSlabReader(dataset, varIds, params.getBoundingBox(),
+                params.getTimeRange());
+        long cells = params.isPoint() ? 1L : slabReader.getCellCount();
+        long timesteps = Math.max(0, slabReader.size());
+        long values = cells * timesteps * varIds.size();
+        if (params.isNetCDF()) {
+            return new JobSize(OutputType.NETCDF, values * NETCDF_COST_FACTOR, values);
+        }
+        /*
+         * CSV output has one value per variable per timestep, for each
+         * country if there are several
+         */
+        long columns = varIds.size();
+        if (params.isMultiCountry()) {
+            columns *= params.getCountryDefinitions().size();
+        }
+        return new JobSize(params.isPoint() ? OutputType.POINT_CSV : OutputType.AREA_CSV,
+                values, timesteps * columns);
+    }
+
+    /**
+     * Writes CSV rows for the timeseries at a point, extracted from the
+     * dataset
+     * 
+     * @param dataset
+     *            The dataset to extract data from
+     * @param varIds
+     *            The variables to write, in column order
+     * @param bbox
+     *            The (zero-size) {@link BoundingBox} of the point
+     * @param timeRange
+     *            The time range to extract
+     * @param w
+     *            The {@link Writer} to write the rows to
+     */
+    private static void writePointTimeseries(GriddedDataset dataset, Set<String> varIds,
+            BoundingBox bbox, Extent<DateTime> timeRange, Writer w)
+            throws EdalException, IOException {
+        /*
+         * We want a timeseries at a point, so extract with the 0-size bounding
+         * box.
+         */
+        List<? extends PointSeriesFeature> timeseriesFeatures = dataset
+                .extractTimeseriesFeatures(varIds, bbox, null, timeRange, null, null);
+        /*
+         * This is a timeseries at a point so it should only contain one feature
+         */
+        if (timeseriesFeatures.size() > 1) {
+            throw new EdalException("Multiple time series found at a point.  This is an error");
+        }
+        PointSeriesFeature feature = timeseriesFeatures.get(0);
+
+        /*
+         * Store the value arrays for each variable
+         */
+        Map<String, Array1D<Number>> var2Vals = new HashMap<>();
+        for (String var : varIds) {
+            var2Vals.put(var, feature.getValues(var));
+        }
+
+        /*
+         * Now write out time series
+         */
+        TimeAxis timeAxis = feature.getDomain();
+        CsvRowEncoder row = new CsvRowEncoder();
+        for (int i = 0; i < timeAxis.size(); i++) {
+            row.startRow(timeAxis.getCoordinateValue(i));
+            for (String var : varIds) {
+                Number value = var2Vals.get(var).get(i);
+                /*
+                 * We want to format non-integers to 2 d.p.
+                 */
+                if (value == null || Double.isNaN(value.doubleValue())) {
+                    row.addMissing();
+                } else if (value instanceof Integer) {
+                    row.addValue(value.intValue());
+                } else {
+                    row.addValue(value.doubleValue());
+                }
+            }
+            row.endRow();
+            row.writeTo(w);
+        }
+    }
+
+    /**
+     * Generates the header line for a CSV timeseries.
+     * 
+     * The CSV header will be the same whether this is single-cell or
+     * area-averaged, unless there are multiple countries, in which case there
+     * is a column for each country/variable pair
+     * 
+     * @param params
+     *            The request which the CSV is for
+     * @param varIds
+     *            The variables which will be written, in column order
+     * @return The header, including the terminating newline
+     */
+    static String getCsvHeader(SubsetRequestParams params, Set<String> varIds) {
+        StringBuilder line = new StringBuilder("time,");
+        if (params.isMultiCountry()) {
+            for (String countryId : params.getCountryDefinitions().keySet()) {
+                for (String var : varIds) {
+                    line.append(countryId + "_" + var + ",");
+                }
+            }
+        } else {
+            for (String var : varIds) {
+                line.append(var + ",");
+            }
+        }
+        return line.substring(0, line.length() - 1) + "\n";
+    }
+
+    /**
+     * Finds grid cells which are not part of the requested country or
+     * countries
      * 
      * @param grid
-     *            The {@link HorizontalGrid} to calculate weights for
+     *            The {@link HorizontalGrid} of the subset
+     * @return A {@link Set} of the {@link GridCoordinates2D} which should be
+     *         masked, or <code>null</code> if the request is not for countries
+     */
+    private Set<GridCoordinates2D> getCellsToMask(HorizontalGrid grid) {
+        if (params.isCountry()) {
+            return getCellsToMask(grid, params.getCountryDefinition());
+        } else if (params.isMultiCountry()) {
+            return getCellsToMask(grid, params.getCountryDefinitions().values());
+        }
+        return null;
+    }
+
+    /**
+     * Finds grid cells which are not part of any of the given countries
+     * 
+     * @param grid
+     *            The {@link HorizontalGrid} to find masked cells for. This
+     *            should have been subset to the combined bounding box of the
+     *            countries
+     * @param countryDefinitions
+     *            The {@link CountryDefinition}s to check inclusion of each cell
+     * @return A {@link Set} of the {@link GridCoordinates2D} which are
+     *         <i>not</i> included in any of the given countries
+     */
+    private static Set<GridCoordinates2D> getCellsToMask(HorizontalGrid grid,
+            Collection<CountryDefinition> countryDefinitions) {
+        int xSize = grid.getXSize();
+        int ySize = grid.getYSize();
+        BitSet included = new BitSet(xSize * ySize);
+        for (CountryDefinition country : countryDefinitions) {
+            GridCoordinates2D origin = country.findOrigin(grid);
+            int iMin = Math.max(0, origin.getX());
+            int iMax = Math.min(xSize, origin.getX() + country.getMaskWidth());
+            int jMin = Math.max(0, origin.getY());
+            int jMax = Math.min(ySize, origin.getY() + country.getMaskHeight());
+            for (int j = jMin; j < jMax; j++) {
+                for (int i = iMin; i < iMax; i++) {
+                    if (country.contains(i - origin.getX(), j - origin.getY())) {
+                        included.set(j * xSize + i);
+                    }
+                }
+            }
+        }
+        Set<GridCoordinates2D> ret = new HashSet<>();
+        for (int j = 0; j < ySize; j++) {
+            for (int i = 0; i < xSize; i++) {
+                if (!included.get(j * xSize + i)) {
+                    ret.add(new GridCoordinates2D(i, j));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Finds grid cells which are not part of the given country
+     * 
+     * @param grid
+     *            The {@link HorizontalGrid} to find masked cells for. This
+     *            should have been subset to the bounding box of the country
      * @param countryDefinition
-     *            A {@link List} of {@link Geometry}s to check inclusion of each
-     *            cell
-     * @return A {@link Set} of the {@link GridCoordinates2D} which are included
-     *         in the given bounds
+     *            The {@link CountryDefinition} to check inclusion of each cell
+     * @return A {@link Set} of the {@link GridCoordinates2D} which are
+     *         <i>not</i> included in the given country
      */
     private static Set<GridCoordinates2D> getCellsToMask(HorizontalGrid grid,
             CountryDefinition countryDefinition) {
         Set<GridCoordinates2D> ret = new HashSet<>();
-
-        grid.getDomainObjects().forEach(new Consumer<GridCell2D>() {
-            @Override
-            public void accept(GridCell2D cell) {
-                if (!countryDefinition.contains(cell.getGridCoordinates())) {
-                    ret.add(cell.getGridCoordinates());
+        for (int j = 0; j < grid.getYSize(); j++) {
+            for (int i = 0; i < grid.getXSize(); i++) {
+                if (!countryDefinition.contains(i, j)) {
+                    ret.add(new GridCoordinates2D(i, j));
                 }
             }
-        });
-
+        }
         return ret;
     }
 }
@@ -29,6 +29,8 @@
 package uk.org.tamsat.dataserver;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.joda.time.DateTime;
@@ -49,6 +51,11 @@ public class SubsetRequestParams implements Serializable {
     private boolean isCountry = false;
     private final BoundingBox bbox;
     private CountryDefinition countryDefinition = null;
+    /*
+     * Only set for requests covering more than one country, in the order they
+     * were requested
+     */
+    private LinkedHashMap<String, CountryDefinition> countryDefinitions = null;
     private final Extent<DateTime> timeRange;
     private final boolean getNetcdf;
     private final JobReference jobRef;
@@ -83,6 +90,37 @@ public class SubsetRequestParams implements Serializable {
                 double maxLat = params.getDouble("MAXLAT", 0f);
                 bbox = new BoundingBoxImpl(minLon, minLat, maxLon, maxLat);
                 boundsStr = minLon + "_" + maxLon + "_" + minLat + "_" + maxLat;
+            } else if ("ALL".equals(countryStr) || countryStr.contains(",")) {
+                /*
+                 * Multiple countries, which will all be extracted in a single
+                 * pass over their combined bounding box
+                 */
+                String[] ids;
+                if ("ALL".equals(countryStr)) {
+                    ids = countryBounds.keySet().toArray(new String[0]);
+                    Arrays.sort(ids);
+                } else {
+                    ids = countryStr.split(",");
+                }
+                countryDefinitions = new LinkedHashMap<>();
+                for (String id : ids) {
+                    id = id.trim();
+                    CountryDefinition country = countryBounds.get(id);
+                    if (country == null) {
+                        throw new IncorrectDomainException("No definition for country: " + id);
+                    }
+                    countryDefinitions.put(id, country);
+                }
+                if (countryDefinitions.isEmpty()) {
+                    throw new IncorrectDomainException("No countries specified");
+                }
+                bbox = CountryDefinition.getCombinedBoundingBox(countryDefinitions.values());
+                if ("ALL".equals(countryStr)) {
+                    boundsStr = "all_countries";
+                } else {
+                    boundsStr = countryDefinitions.size() + "_countries_"
+                            + Integer.toHexString(countryDefinitions.keySet().hashCode());
+                }
             } else {
                 countryDefinition = countryBounds.get(countryStr);
                 if (countryDefinition == null) {
@@ -133,6 +171,14 @@ public class SubsetRequestParams implements Serializable {
         return isCountry;
     }
 
+    /**
+     * @return Whether this request is for area averages / subsets of more than
+     *         one country. If so, {@link #getBoundingBox()} covers all of them
+     */
+    public boolean isMultiCountry() {
+        return countryDefinitions != null;
+    }
+
     public String getCountry() {
         return countryStr;
     }
@@ -145,6 +191,15 @@ public class SubsetRequestParams implements Serializable {
         return countryDefinition;
     }
 
+    /**
+     * @return A {@link Map} of country ID to definition for each of the
+     *         requested countries, in the order they should be output, or
+     *         <code>null</code> if this is not a multi-country request
+     */
+    public Map<String, CountryDefinition> getCountryDefinitions() {
+        return countryDefinitions;
+    }
+
     public Extent<DateTime> getTimeRange() {
         return timeRange;
     }
@@ -163,8 +218,14 @@ public class SubsetRequestParams implements Serializable {
 
     @Override
     public String toString() {
-        return (getNetcdf ? "NetCDF: " : "CSV: ") + datasetId + ", "
-                + (countryDefinition != null ? countryDefinition.getLabel() : bbox) + ", "
-                + timeRange;
+        String region;
+        if (countryDefinition != null) {
+            region = countryDefinition.getLabel();
+        } else if (countryDefinitions != null) {
+            region = countryDefinitions.size() + " countries";
+        } else {
+            region = bbox.toString();
+        }
+        return (getNetcdf ? "NetCDF: " : "CSV: ") + datasetId + ", " + region + ", " + timeRange;
     }
 }
@@ -45,6 +45,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.org.tamsat.dataserver.util.JobListing;
+import uk.org.tamsat.dataserver.util.TamsatCatalogue;
 
 /**
  * An {@link HttpServlet} which deals with the admin pages of TAMSAT data
@@ -57,6 +58,7 @@ public class TamsatAdminServlet extends HttpServlet {
     private static final Logger log = LoggerFactory.getLogger(TamsatAdminServlet.class);
 
     private JobListing jobListing;
+    private TamsatCatalogue catalogue;
     private VelocityEngine velocityEngine;
 
     public TamsatAdminServlet() throws IOException, Exception {
@@ -78,6 +80,15 @@ public class TamsatAdminServlet extends HttpServlet {
             log.error("Admin servlet does not have access to the available jobs.");
             throw new ServletException("Admin servlet does not have access to the available jobs.  This is a bug.");
         }
+
+        Object catalogueObj = servletConfig.getServletContext()
+                .getAttribute(TamsatApplicationServlet.CONTEXT_TAMSAT_CATALOGUE);
+        if (catalogueObj instanceof TamsatCatalogue) {
+            catalogue = (TamsatCatalogue) catalogueObj;
+        } else {
+            log.error("Admin servlet does not have access to the catalogue.");
+            throw new ServletException("Admin servlet does not have access to the catalogue.  This is a bug.");
+        }
         
         /*
          * Retrieve the pre-loaded velocity engine
@@ -132,6 +143,9 @@ public class TamsatAdminServlet extends HttpServlet {
 
             context.put("queuedJobs", jobListing.getQueuedJobs());
             context.put("finishedJobs", jobListing.getFinishedJobs());
+            context.put("resultCache", jobListing.getResultCache());
+            context.put("jobScheduler", jobListing.getJobScheduler());
+            context.put("datasetStartups", catalogue.getDatasetStartups());
             try {
                 template.merge(context, response.getWriter());
             } catch (Exception e) {
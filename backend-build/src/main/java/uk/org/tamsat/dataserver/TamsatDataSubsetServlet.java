@@ -29,31 +29,36 @@
 package uk.org.tamsat.dataserver;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.StringWriter;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 
 import javax.mail.Authenticator;
 import javax.mail.Message;
@@ -66,7 +71,6 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -74,24 +78,40 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
-import org.joda.time.DateTime;
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.rdg.resc.edal.catalogue.jaxb.DatasetConfig;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
-import uk.ac.rdg.resc.edal.domain.Extent;
-import uk.ac.rdg.resc.edal.domain.TemporalDomain;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
-import uk.ac.rdg.resc.edal.util.TimeUtils;
 import uk.org.tamsat.dataserver.SubsetJob.JobFinished;
 import uk.org.tamsat.dataserver.util.CountryDefinition;
+import uk.org.tamsat.dataserver.util.CountryMeanCube;
+import uk.org.tamsat.dataserver.util.JobCostModel;
+import uk.org.tamsat.dataserver.util.JobCostModel.JobSize;
+import uk.org.tamsat.dataserver.util.JobEstimate;
 import uk.org.tamsat.dataserver.util.JobListing;
+import uk.org.tamsat.dataserver.util.JobProgress;
+import uk.org.tamsat.dataserver.util.JobProgress.Stage;
+import uk.org.tamsat.dataserver.util.JobScheduler;
+import uk.org.tamsat.dataserver.util.JobScheduler.QueuePosition;
+import uk.org.tamsat.dataserver.util.JobStatusStreams;
+import uk.org.tamsat.dataserver.util.MetadataCache;
+import uk.org.tamsat.dataserver.util.MetadataCache.CachedResponse;
+import uk.org.tamsat.dataserver.util.NetcdfSubsetWriter;
+import uk.org.tamsat.dataserver.util.ResultCache;
+import uk.org.tamsat.dataserver.util.ResultCompression;
 import uk.org.tamsat.dataserver.util.TamsatCatalogue;
 import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.EmailInfo;
+import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.NetcdfOutputInfo;
+import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.SchedulingInfo;
+import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.TimeMajorStoreInfo;
+import uk.org.tamsat.dataserver.util.TimeMajorStore;
 
 /**
  * A servlet which handles the queueing of data subsetting/averaging jobs
@@ -103,12 +123,123 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
     private static final String SUBMITTED_JOBLIST_FILENAME = "joblist-submitted.dat";
 
     private static final long serialVersionUID = 1L;
+    /*
+     * How long clients may use metadata responses for before revalidating
+     * them, in seconds
+     */
+    private static final int METADATA_MAX_AGE = 60;
+    /*
+     * Not defined in HttpServletResponse
+     */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    /*
+     * The range of times after which clients are told to retry rejected jobs,
+     * in seconds
+     */
+    private static final long MIN_RETRY_AFTER = 30L;
+    private static final long MAX_RETRY_AFTER = 3600L;
+    /*
+     * The maximum number of job status event streams which may be open at
+     * once
+     */
+    private static final int MAX_STATUS_STREAMS = 200;
+
+    /**
+     * The reason why a job was not accepted
+     */
+    private static class Rejection {
+        private final int status;
+        private final String message;
+        private final long retryAfterSeconds;
+
+        private Rejection(int status, String message, long retryAfterSeconds) {
+            this.status = status;
+            this.message = message;
+            this.retryAfterSeconds = Math.min(MAX_RETRY_AFTER,
+                    Math.max(MIN_RETRY_AFTER, retryAfterSeconds));
+        }
+    }
 
     private Map<String, SubsetRequestParams> submittedJobs = new Hashtable<>();
-    private ExecutorService jobQueue;
-    private ScheduledExecutorService cleaner;
+    /*
+     * Runs queued jobs, cheapest first
+     */
+    private JobScheduler jobQueue;
+    /*
+     * Predicts the run time and output size of jobs, calibrated from the
+     * queued jobs which have completed. The sizes and start times of queued
+     * jobs are kept until they finish, for calibration.
+     */
+    private JobCostModel costModel = new JobCostModel();
+    private Map<String, JobSize> jobId2Size = new ConcurrentHashMap<>();
+    private Map<String, Long> jobId2StartTime = new ConcurrentHashMap<>();
+    /*
+     * Requests calculated immediately tie up a request thread each, so only a
+     * limited number are allowed at once. Any more are queued.
+     */
+    private Semaphore synchronousPermits;
+    /*
+     * The progress of every unfinished job, for status requests. Once a job
+     * has finished, its status comes from its FinishedJobState.
+     */
+    private Map<String, JobProgress> jobProgress = new ConcurrentHashMap<>();
+    private JobStatusStreams statusStreams;
+    /*
+     * Shared between all running jobs, so that large area averages can make
+     * use of any cores which are not busy with other jobs
+     */
+    private ForkJoinPool averagingPool;
+    /*
+     * Completed results, shared between all requests which produce the same
+     * data
+     */
+    private ResultCache resultCache;
+    /*
+     * Cache keys of submitted jobs, computed when they were submitted
+     */
+    private Map<String, String> jobId2CacheKey = new Hashtable<>();
+    /*
+     * Requests which are waiting for a queued or running job with the same
+     * cache key to finish, rather than being run themselves
+     */
+    private Map<String, List<SubsetRequestParams>> inFlightJobs = new HashMap<>();
+    /*
+     * Jobs for datasets which have not been loaded yet, by dataset ID. These
+     * are added to the queue when their dataset is loaded, so that they don't
+     * occupy a thread while they wait.
+     */
+    private Map<String, List<SubsetRequestParams>> jobsAwaitingDatasets = new HashMap<>();
 
     private Map<String, CountryDefinition> countryBounds;
+    /*
+     * Serialised responses to GETDATASETS, GETCOUNTRIES, GETTIMES and
+     * GETMETADATA
+     */
+    private MetadataCache metadataCache;
+    /*
+     * Precomputed country means for each dataset, used to answer CSV country
+     * requests without running a job. These are updated in the background
+     * whenever a dataset is (re)loaded.
+     */
+    private Map<String, CountryMeanCube> countryMeanCubes = new ConcurrentHashMap<>();
+    private Set<String> pendingCubeUpdates = ConcurrentHashMap.newKeySet();
+    private ExecutorService cubeUpdater;
+    private File cubeDir;
+    /*
+     * Time-major copies of the datasets which are configured to have one,
+     * used for fast point timeseries. These are also updated in the
+     * background whenever a dataset is (re)loaded.
+     */
+    private Map<String, TimeMajorStore> timeMajorStores = new HashMap<>();
+    private Set<String> pendingStoreUpdates = ConcurrentHashMap.newKeySet();
+    private ExecutorService storeUpdater;
+    /*
+     * Chunking and compression settings for NetCDF output, for datasets which
+     * don't use the defaults
+     */
+    private Map<String, NetcdfSubsetWriter> netcdfWriters = new HashMap<>();
+    private NetcdfSubsetWriter defaultNetcdfWriter = new NetcdfSubsetWriter(
+            new NetcdfOutputInfo());
     private TamsatCatalogue tamsatCatalogue;
 
     private File dataDir;
@@ -158,7 +289,12 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
             nThreads = 2;
         }
         log.debug("Using " + nThreads + " threads for data subsetting");
-        jobQueue = Executors.newFixedThreadPool(nThreads);
+        SchedulingInfo schedulingInfo = tamsatCatalogue.getSchedulingInfo();
+        jobQueue = new JobScheduler(nThreads, schedulingInfo.getHeavyThreads(),
+                schedulingInfo.getHeavyCost(), schedulingInfo.getAgingSeconds() * 1000L,
+                schedulingInfo.getMaxRunningJobsPerUser());
+        averagingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        statusStreams = new JobStatusStreams(this::getJobStatuses, MAX_STATUS_STREAMS);
 
         Object configDir = servletConfig.getServletContext()
                 .getAttribute(TamsatApplicationServlet.CONTEXT_CONFIG_DIR);
@@ -179,6 +315,13 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
         }
         log.debug("Prepared temporary data directory at " + dataDir.getAbsolutePath());
 
+        try {
+            resultCache = new ResultCache(new File(dataDir, "cache"),
+                    tamsatCatalogue.getResultCacheInfo().getMaxSizeBytes());
+        } catch (IOException e) {
+            throw new ServletException("Problem creating cache for completed jobs", e);
+        }
+
         Object ve = servletConfig.getServletContext()
                 .getAttribute(TamsatApplicationServlet.CONTEXT_VELOCITY_ENGINE);
         if (ve instanceof VelocityEngine) {
@@ -201,10 +344,48 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
                     e);
         }
 
+        metadataCache = new MetadataCache(tamsatCatalogue, countryBounds);
+
+        if (countryBounds != null) {
+            cubeDir = new File(dataDir, "cubes");
+            if (!cubeDir.exists()) {
+                cubeDir.mkdirs();
+            }
+            cubeUpdater = Executors.newSingleThreadExecutor();
+            tamsatCatalogue.addDatasetListener(this::updateCountryMeanCube);
+            for (Dataset dataset : tamsatCatalogue.getAllDatasets()) {
+                updateCountryMeanCube(dataset);
+            }
+        }
+
+        synchronousPermits = new Semaphore(
+                Math.max(0, tamsatCatalogue.getSynchronousInfo().getMaxConcurrent()));
+
+        File storeDir = new File(dataDir, "timemajor");
+        for (TimeMajorStoreInfo storeInfo : tamsatCatalogue.getTimeMajorStoreInfo()) {
+            timeMajorStores.put(storeInfo.getDatasetId(),
+                    new TimeMajorStore(new File(storeDir, storeInfo.getDatasetId()),
+                            storeInfo.getBlockLength(), storeInfo.getMaxBoxCells()));
+        }
+        if (!timeMajorStores.isEmpty()) {
+            storeUpdater = Executors.newSingleThreadExecutor();
+            tamsatCatalogue.addDatasetListener(this::updateTimeMajorStore);
+            for (Dataset dataset : tamsatCatalogue.getAllDatasets()) {
+                updateTimeMajorStore(dataset);
+            }
+        }
+
+        for (NetcdfOutputInfo outputInfo : tamsatCatalogue.getNetcdfOutputInfo()) {
+            netcdfWriters.put(outputInfo.getDatasetId(), new NetcdfSubsetWriter(outputInfo));
+        }
+
+        tamsatCatalogue.addDatasetListener(this::releaseJobsAwaitingDataset);
+
         /*
-         * If list of persisted running jobs exists, load it into memory and set
-         * jobs to run again
+         * If list of persisted running jobs exists, load it into memory. The
+         * jobs are set running again once the finished jobs are known.
          */
+        Map<String, SubsetRequestParams> previousJobs = new HashMap<>();
         File persistedRunningJobs = new File(dataDir, SUBMITTED_JOBLIST_FILENAME);
         if (persistedRunningJobs.exists()) {
             log.debug("Bringing back uncompleted jobs from previous session");
@@ -212,20 +393,8 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
                     ObjectInputStream ois = new ObjectInputStream(fis)) {
                 Object obj = ois.readObject();
                 if (obj instanceof Map) {
-                    submittedJobs = (Map<String, SubsetRequestParams>) obj;
-
-                    /*
-                     * Now run all of the jobs
-                     */
-                    for (String key : submittedJobs.keySet()) {
-                        SubsetRequestParams subsetParams = submittedJobs.get(key);
-                        jobQueue.submit(
-                                new SubsetJob(subsetParams, tamsatCatalogue, dataDir, this));
-                        submittedJobs.put(subsetParams.getJobId(), subsetParams);
-                    }
-                    saveSubmittedJobList();
+                    previousJobs = (Map<String, SubsetRequestParams>) obj;
                 }
-                log.debug("Previous jobs set running");
             } catch (Throwable e) {
                 log.error(
                         "Problem reading persisted job list.  Jobs running in previous sessions will need to be re-run manually",
@@ -248,6 +417,7 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
                      * Now build the Maps of IDs 2 jobs and email 2 job lists
                      * for easier retrieval
                      */
+                    adoptUncachedResults();
                     /*
                      * TODO Increase available time, since server was down
                      */
@@ -267,50 +437,29 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
         }
 
         /*
-         * Set-up service to check completed jobs to see when they have been
-         * downloaded more than 24 hours ago, or completed over 7 days ago (and
-         * not downloaded)
+         * Now that all finished jobs are known, forget about any whose results
+         * get evicted from the cache
          */
-        cleaner = Executors.newScheduledThreadPool(1);
-        Runnable cleanupJob = new Runnable() {
-            @Override
-            public void run() {
-                List<FinishedJobState> expired = new ArrayList<>();
-                for (FinishedJobState job : finishedJobs) {
-                    if ((job.wasDownloaded()
-                            && (System.currentTimeMillis() - job.getDownloadedTime()) > 1000 * 60
-                                    * 60 * 24)
-                            || (System.currentTimeMillis() - job.getCompletedTime()) > 1000 * 60
-                                    * 60 * 24 * 7) {
-                        log.debug("Job " + job.getId() + " has expired");
-                        if (job.wasDownloaded()) {
-                            log.debug("It was downloaded at " + job.getDownloadedTime() + " (now "
-                                    + System.currentTimeMillis() + ")");
-                        } else {
-                            log.debug("It was created at " + job.getCompletedTime() + " (now "
-                                    + System.currentTimeMillis() + ")");
-                        }
-                        expired.add(job);
-                        File expiredFile = new File(dataDir, job.getId());
-                        boolean delete = expiredFile.delete();
-                        log.debug(delete ? "Delete worked" : "Delete failed");
-                    }
-                }
-                if (expired.size() > 0) {
-                    /*
-                     * Remove any expired jobs from the job list and save it
-                     */
-                    for (FinishedJobState x : expired) {
-                        deleteFinishedJob(x);
-                    }
-                    saveCompletedJobList();
-                }
-            }
-        };
+        resultCache.setEvictionListener(this::resultEvicted);
+
         /*
-         * Run the cleanup job every 15 minutes
+         * Now run all of the previous jobs. These are accepted in the same way
+         * as new ones, so that identical jobs are only run once. The queue is
+         * already running, and jobs may finish while others are still being
+         * accepted.
          */
-        cleaner.scheduleWithFixedDelay(cleanupJob, 15, 15, TimeUnit.MINUTES);
+        for (SubsetRequestParams subsetParams : new ArrayList<>(previousJobs.values())) {
+            try {
+                acceptJob(subsetParams);
+            } catch (Exception e) {
+                log.error("Problem restarting job " + subsetParams.getJobId(), e);
+                jobFinished(new FinishedJobState(subsetParams, e));
+            }
+        }
+        if (!previousJobs.isEmpty()) {
+            saveSubmittedJobList();
+            log.debug("Previous jobs set running");
+        }
 
         log.debug("Data subset servlet started");
     }
@@ -351,8 +500,16 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
     public void destroy() {
         super.destroy();
         jobQueue.shutdown();
+        averagingPool.shutdown();
+        resultCache.saveAccessOrder();
+        statusStreams.shutdown();
+        if (cubeUpdater != null) {
+            cubeUpdater.shutdownNow();
+        }
+        if (storeUpdater != null) {
+            storeUpdater.shutdownNow();
+        }
         tamsatCatalogue.shutdown();
-        cleaner.shutdown();
         GISUtils.releaseEpsgDatabase();
     }
 
@@ -363,14 +520,20 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
         String method = params.getString("REQUEST", null);
         if (method == null) {
             showCompleted(params, resp);
+        } else if (method.equalsIgnoreCase("GETMETADATA")) {
+            getMetadata(req, resp);
         } else if (method.equalsIgnoreCase("GETCOUNTRIES")) {
-            getCountries(resp);
+            getCountries(req, resp);
         } else if (method.equalsIgnoreCase("GETDATASETS")) {
-            getDatasets(resp);
+            getDatasets(req, resp);
         } else if (method.equalsIgnoreCase("GETTIMES")) {
-            getTimes(params, resp);
+            getTimes(params, req, resp);
         } else if (method.equalsIgnoreCase("GETDATA")) {
-            getData(params, resp);
+            getData(params, req, resp);
+        } else if (method.equalsIgnoreCase("ESTIMATE")) {
+            getEstimate(params, req, resp);
+        } else if (method.equalsIgnoreCase("STATUS")) {
+            getStatus(params, req, resp);
         }
     }
 
@@ -387,8 +550,36 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
         context.put("email", email);
         context.put("ref", ref);
         if (email != null && ref != null) {
-            List<FinishedJobState> jobs = jobRef2Jobs.get(new JobReference(email, ref));
+            JobReference jobRef = new JobReference(email, ref);
+            List<FinishedJobState> jobs = jobRef2Jobs.get(jobRef);
             context.put("jobs", jobs);
+            /*
+             * Jobs which haven't finished, with when they should, where that
+             * can be estimated
+             */
+            List<SubsetRequestParams> unfinishedJobs = new ArrayList<>();
+            Map<String, JobEstimate> estimates = new HashMap<>();
+            synchronized (submittedJobs) {
+                for (SubsetRequestParams submitted : submittedJobs.values()) {
+                    if (jobRef.equals(submitted.getJobRef())) {
+                        unfinishedJobs.add(submitted);
+                    }
+                }
+            }
+            List<String> unfinishedIds = new ArrayList<>();
+            for (SubsetRequestParams unfinished : unfinishedJobs) {
+                unfinishedIds.add(unfinished.getJobId());
+            }
+            Map<String, QueuePosition> positions = jobQueue.getQueuePositions(unfinishedIds);
+            for (SubsetRequestParams unfinished : unfinishedJobs) {
+                JobEstimate estimate = estimateQueuedJob(unfinished,
+                        positions.get(unfinished.getJobId()));
+                if (estimate != null && estimate.getCompletionSeconds() >= 0) {
+                    estimates.put(unfinished.getJobId(), estimate);
+                }
+            }
+            context.put("unfinishedJobs", unfinishedJobs);
+            context.put("estimates", estimates);
         }
         try {
             template.merge(context, resp.getWriter());
@@ -398,84 +589,222 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
         }
     }
 
-    private void getCountries(HttpServletResponse resp) throws ServletException {
-        JSONObject countries = new JSONObject();
-        for (Entry<String, CountryDefinition> country : countryBounds.entrySet()) {
-            countries.put(country.getValue().getLabel(), country.getKey());
-        }
-        resp.setContentType("application/json");
-        try {
-            resp.getWriter().write(countries.toString());
-        } catch (IOException e) {
-            log.error("Problem writing country list to output stream", e);
-            throw new ServletException("Problem writing JSON to output stream", e);
-        }
+    private void getCountries(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException {
+        sendMetadata(req, resp, metadataCache.getCountries());
+    }
+
+    private void getDatasets(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException {
+        sendMetadata(req, resp, metadataCache.getDatasets());
     }
 
-    private void getDatasets(HttpServletResponse resp) throws ServletException {
-        JSONArray datasets = new JSONArray();
+    private void getTimes(TamsatRequestParams params, HttpServletRequest req,
+            HttpServletResponse resp) throws ServletException {
         /*
-         * Sort the datasets by ID. This allows the order to be configured by
-         * simply giving the IDs a numerical prefix.
+         * This returns the available time range for the desired dataset
          */
-        List<String> datasetIds = new ArrayList<>();
-        for (Dataset ds : tamsatCatalogue.getAllDatasets()) {
-            datasetIds.add(ds.getId());
-        }
-        Collections.sort(datasetIds);
-        for (String dsId : datasetIds) {
-            JSONObject dsObj = new JSONObject();
-            dsObj.put(dsId, tamsatCatalogue.getDatasetInfo(dsId).getTitle());
-            datasets.put(dsObj);
+        String datasetId = params.getMandatoryString("DATASET");
+        CachedResponse times = metadataCache.getTimes(datasetId);
+        if (times == null) {
+            throw new ServletException(
+                    "Data is not yet loaded on the server - please try again in 5 minutes");
         }
+        sendMetadata(req, resp, times);
+    }
+
+    private void getMetadata(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException {
+        /*
+         * Everything which the subset form needs, in a single request
+         */
+        sendMetadata(req, resp, metadataCache.getBootstrap());
+    }
 
-        resp.setContentType("application/json");
+    /**
+     * Sends a cached JSON response, or a 304 if the client already has it
+     */
+    private void sendMetadata(HttpServletRequest req, HttpServletResponse resp,
+            CachedResponse response) throws ServletException {
+        resp.setHeader("ETag", response.getETag());
+        resp.setHeader("Cache-Control", "public, max-age=" + METADATA_MAX_AGE);
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null && FileDownload.noneMatchFails(ifNoneMatch, response.getETag())) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        resp.setContentType("application/json;charset=UTF-8");
+        resp.setContentLength(response.getBody().length);
         try {
-            resp.getWriter().write(datasets.toString());
+            resp.getOutputStream().write(response.getBody());
         } catch (IOException e) {
-            log.error("Problem writing dataset list to output stream", e);
+            log.error("Problem writing metadata to output stream", e);
             throw new ServletException("Problem writing JSON to output stream", e);
         }
     }
 
-    private void getTimes(TamsatRequestParams params, HttpServletResponse resp)
-            throws ServletException {
+    private void getEstimate(TamsatRequestParams params, HttpServletRequest req,
+            HttpServletResponse resp) throws ServletException {
         /*
-         * This returns the available time range for the desired dataset
+         * Estimates how long a job would take, before it is submitted. This
+         * takes the same parameters as a job, except that EMAIL and REF are
+         * optional.
          */
-        String datasetId = params.getMandatoryString("DATASET");
-        Dataset dataset = tamsatCatalogue.getDatasetFromId(datasetId);
-        if (dataset == null) {
+        Map<String, String> defaults = new HashMap<>();
+        for (String name : new String[] { "EMAIL", "REF" }) {
+            if (params.getString(name) == null) {
+                defaults.put(name, "estimate");
+            }
+        }
+        SubsetRequestParams subsetParams;
+        try {
+            subsetParams = new SubsetRequestParams(params.mergeParameters(defaults),
+                    countryBounds, req.getRequestURL().toString());
+        } catch (EdalException e) {
+            throw new ServletException("Problem parsing parameters for estimate", e);
+        }
+        JobSize size = getJobSize(subsetParams);
+        if (size == null) {
             throw new ServletException(
                     "Data is not yet loaded on the server - please try again in 5 minutes");
         }
-        Set<String> varIds = dataset.getVariableIds();
-        DateTime startTime = null;
-        DateTime endTime = null;
-        for (String varId : varIds) {
-            TemporalDomain tDomain = dataset.getVariableMetadata(varId).getTemporalDomain();
-            Extent<DateTime> tExtent = tDomain.getExtent();
-            if (startTime == null || tExtent.getLow().isBefore(startTime)) {
-                startTime = tExtent.getLow();
-            }
-            if (endTime == null || tExtent.getHigh().isAfter(endTime)) {
-                endTime = tExtent.getHigh();
-            }
-        }
-        JSONObject startEndTimes = new JSONObject();
-        startEndTimes.put("starttime", TimeUtils.dateTimeToISO8601(startTime));
-        startEndTimes.put("endtime", TimeUtils.dateTimeToISO8601(endTime));
-        resp.setContentType("application/json");
+        long runSeconds = (costModel.estimateRunMillis(size) + 999) / 1000;
+        long outputBytes = costModel.estimateOutputBytes(size);
+        JobEstimate estimate;
+        boolean immediate;
+        if (synchronousPermits.availablePermits() > 0 && canWriteSynchronously(subsetParams)) {
+            /*
+             * This would be returned in the response to the job submission,
+             * unless other requests take the remaining permits first
+             */
+            immediate = true;
+            estimate = new JobEstimate(size.getCost(), runSeconds, outputBytes, 0, 0L);
+        } else if (!needsToRun(subsetParams)) {
+            immediate = true;
+            estimate = new JobEstimate(size.getCost(), 0L, outputBytes, 0, 0L);
+        } else {
+            immediate = false;
+            QueuePosition position = jobQueue.getQueuePosition(size.getCost());
+            estimate = new JobEstimate(size.getCost(), runSeconds, outputBytes,
+                    position.getJobsAhead(), position.getStartSeconds());
+        }
+        JSONObject json = estimate.toJSON();
+        json.put("immediate", immediate);
+        sendJson(resp, json);
+    }
+
+    private void getStatus(TamsatRequestParams params, HttpServletRequest req,
+            HttpServletResponse resp) throws ServletException, IOException {
+        /*
+         * The progress of a job, either once or as a stream of events
+         */
+        String id = params.getMandatoryString("ID");
+        String accept = req.getHeader("Accept");
+        if (params.getBoolean("STREAM", false)
+                || (accept != null && accept.contains("text/event-stream"))) {
+            if (!statusStreams.open(req, resp, id)) {
+                resp.setHeader("Retry-After", String.valueOf(MIN_RETRY_AFTER));
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Too many status streams are open.  Please poll instead.");
+            }
+            return;
+        }
+        JSONObject status = getJobStatus(id);
+        if (status == null) {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            status = new JSONObject();
+            status.put("id", id);
+            status.put("error", "No such job");
+        }
+        sendJson(resp, status);
+    }
+
+    /**
+     * @param jobId
+     *            The ID of a job
+     * @return The current status of the job, or <code>null</code> if there is
+     *         no such job
+     */
+    private JSONObject getJobStatus(String jobId) {
+        return getJobStatus(jobId, jobQueue.getQueuePosition(jobId));
+    }
+
+    /**
+     * Finds the status of several jobs at once, looking up their positions in
+     * the queue together
+     * 
+     * @param jobIds
+     *            The IDs of the jobs
+     * @return The current status of each job, by ID. Jobs which don't exist
+     *         are left out.
+     */
+    private Map<String, JSONObject> getJobStatuses(Collection<String> jobIds) {
+        Map<String, QueuePosition> positions = jobQueue.getQueuePositions(jobIds);
+        Map<String, JSONObject> statuses = new HashMap<>();
+        for (String jobId : jobIds) {
+            JSONObject status = getJobStatus(jobId, positions.get(jobId));
+            if (status != null) {
+                statuses.put(jobId, status);
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * @param jobId
+     *            The ID of a job
+     * @param position
+     *            The position of the job in the queue, or <code>null</code>
+     *            if it is not queued
+     * @return The current status of the job, or <code>null</code> if there is
+     *         no such job
+     */
+    private JSONObject getJobStatus(String jobId, QueuePosition position) {
+        JobProgress progress = jobProgress.get(jobId);
+        if (progress != null) {
+            JSONObject json = progress.toJSON();
+            SubsetRequestParams params = submittedJobs.get(jobId);
+            if (params != null) {
+                JobEstimate estimate = estimateQueuedJob(params, position);
+                if (estimate != null) {
+                    json.put("queuePosition", estimate.getJobsAhead());
+                    json.put("completionSeconds", estimate.getCompletionSeconds());
+                }
+            }
+            return json;
+        }
+        FinishedJobState finished = ids2Jobs.get(jobId);
+        if (finished != null) {
+            JSONObject json = new JSONObject();
+            json.put("id", jobId);
+            json.put("stage", Stage.FINISHED.name());
+            json.put("success", finished.success());
+            if (finished.success()) {
+                json.put("url", "?REQUEST=GETDATA&ID=" + jobId);
+            }
+            return json;
+        }
+        return null;
+    }
+
+    /**
+     * Sends a JSON response which must not be cached
+     */
+    private void sendJson(HttpServletResponse resp, JSONObject json) throws ServletException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        resp.setHeader("Cache-Control", "no-store");
+        resp.setContentType("application/json;charset=UTF-8");
+        resp.setContentLength(body.length);
         try {
-            resp.getWriter().write(startEndTimes.toString());
+            resp.getOutputStream().write(body);
         } catch (IOException e) {
-            log.error("Problem writing metadata to output stream", e);
+            log.error("Problem writing JSON to output stream", e);
             throw new ServletException("Problem writing JSON to output stream", e);
         }
     }
 
-    private void getData(TamsatRequestParams params, HttpServletResponse resp)
-            throws ServletException, FileNotFoundException, IOException {
+    private void getData(TamsatRequestParams params, HttpServletRequest req,
+            HttpServletResponse resp) throws ServletException, IOException {
         /*
          * Requests a data file from a previously completed job
          */
@@ -491,24 +820,24 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
         }
 
         /*
-         * Now return the data, with appropriate filename and MIME type
+         * Now return the data, with appropriate filename and MIME type.
+         * 
+         * This handles byte ranges, so that interrupted downloads can be
+         * resumed
          */
         resp.setHeader("Content-Disposition",
                 "inline; filename=" + finishedJobState.getOutputFilename());
-        resp.setContentType(finishedJobState.getOutputFilename().endsWith("csv") ? "text/csv"
-                : "application/x-netcdf");
-        try (FileInputStream is = new FileInputStream(fileToServe);
-                ServletOutputStream os = resp.getOutputStream()) {
-            int n;
-            byte[] buffer = new byte[1024];
-            while ((n = is.read(buffer)) > -1) {
-                os.write(buffer, 0, n); // Don't allow any extra bytes to creep in, final write
-            }
+        if (!FileDownload.serve(req, resp, fileToServe,
+                finishedJobState.getOutputFilename().endsWith("csv") ? "text/csv"
+                        : "application/x-netcdf")) {
+            return;
         }
         /*
-         * Set as downloaded - this means the file may be removed sooner
+         * Set as downloaded, and mark the result as recently used so that it
+         * is kept in the cache
          */
         finishedJobState.setDownloaded();
+        resultCache.touch(fileToServe);
 
         saveCompletedJobList();
     }
@@ -517,6 +846,7 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
         SubsetRequestParams subsetParams;
+        Rejection rejection;
         try {
             /*
              * Parse required parameters. This will throw an exception if they
@@ -527,14 +857,26 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
                     req.getRequestURL().toString().replace("data", "data-subset/data"));
 
             /*
-             * Add the job to the queue
+             * Small CSV requests take less time to calculate than to queue,
+             * so return them straight away unless the client has asked not to.
+             * These never enter the queue, and are limited separately.
              */
-            jobQueue.submit(new SubsetJob(subsetParams, tamsatCatalogue, dataDir, this));
-            log.debug("Added job " + subsetParams.getJobId() + " to the queue");
-            submittedJobs.put(subsetParams.getJobId(), subsetParams);
-            log.debug("Added job " + subsetParams.getJobId() + " to list of submitted jobs");
-            saveSubmittedJobList();
-            log.debug("Saved submitted job list");
+            if (reqParams.getBoolean("SYNC", true) && writeSynchronously(subsetParams, resp)) {
+                log.debug("Job " + subsetParams.getJobId() + " returned synchronously");
+                return;
+            }
+
+            /*
+             * Don't let one user fill the queue, or the queue grow beyond what
+             * can be done in a reasonable time
+             */
+            rejection = checkUserLimit(subsetParams);
+            if (rejection == null) {
+                rejection = checkCapacity(subsetParams);
+            }
+            if (rejection == null) {
+                acceptJob(subsetParams);
+            }
         } catch (Exception e) {
             log.error("Problem parsing parameters and adding job", e);
             throw new ServletException("Problem submitting subset job.", e);
@@ -544,6 +886,13 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
         VelocityContext context = new VelocityContext();
         context.put("email", subsetParams.getJobRef().email);
         context.put("ref", subsetParams.getJobRef().ref);
+        context.put("jobId", subsetParams.getJobId());
+        if (rejection != null) {
+            resp.setStatus(rejection.status);
+            resp.setHeader("Retry-After", String.valueOf(rejection.retryAfterSeconds));
+            context.put("rejection", rejection.message);
+            context.put("retryAfterMinutes", (rejection.retryAfterSeconds + 59) / 60);
+        }
         try {
             template.merge(context, resp.getWriter());
         } catch (Exception e) {
@@ -552,6 +901,202 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
         }
     }
     
+    /**
+     * Checks whether a user may submit another job
+     * 
+     * @param params
+     *            The job to be submitted
+     * @return The reason the job cannot be accepted, or <code>null</code> if it
+     *         can
+     */
+    private Rejection checkUserLimit(SubsetRequestParams params) {
+        int maxQueued = tamsatCatalogue.getSchedulingInfo().getMaxQueuedJobsPerUser();
+        if (maxQueued <= 0) {
+            return null;
+        }
+        String user = getUser(params);
+        int unfinished = 0;
+        synchronized (submittedJobs) {
+            for (SubsetRequestParams submitted : submittedJobs.values()) {
+                if (user.equals(getUser(submitted))) {
+                    unfinished++;
+                }
+            }
+        }
+        if (unfinished < maxQueued) {
+            return null;
+        }
+        log.debug("Rejecting job " + params.getJobId() + ": " + user + " already has "
+                + unfinished + " unfinished jobs");
+        return new Rejection(SC_TOO_MANY_REQUESTS, "You already have " + unfinished
+                + " jobs which have not finished.  "
+                + "Please wait for some of them to complete before submitting any more.",
+                jobQueue.estimateSeconds(estimateCost(params)));
+    }
+
+    /**
+     * Checks whether there is room in the queue for another job
+     * 
+     * @param params
+     *            The job to be submitted
+     * @return The reason the job cannot be accepted, or <code>null</code> if it
+     *         can
+     */
+    private Rejection checkCapacity(SubsetRequestParams params) {
+        long maxBacklog = tamsatCatalogue.getSchedulingInfo().getMaxBacklogCost();
+        if (maxBacklog <= 0 || !needsToRun(params)) {
+            return null;
+        }
+        long cost = estimateCost(params);
+        long backlog = jobQueue.getBacklogCost();
+        /*
+         * A job which is too big on its own is still accepted when the queue
+         * is empty, otherwise it would never be
+         */
+        if (backlog == 0 || backlog + cost <= maxBacklog) {
+            return null;
+        }
+        log.debug("Rejecting job " + params.getJobId() + " (cost " + cost + "): backlog is "
+                + backlog);
+        return new Rejection(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "The server is too busy to accept any more jobs at the moment.",
+                jobQueue.estimateSeconds(backlog + cost - maxBacklog));
+    }
+
+    /**
+     * @param params
+     *            A submitted job
+     * @return <code>false</code> if the job can be answered from the result
+     *         cache or the country means, or by waiting for an identical job,
+     *         <code>true</code> if it will need to be run
+     */
+    private boolean needsToRun(SubsetRequestParams params) {
+        if (coveredByCountryMeanCube(params)) {
+            return false;
+        }
+        String cacheKey = getCacheKey(params);
+        if (cacheKey == null) {
+            return true;
+        }
+        synchronized (inFlightJobs) {
+            return !resultCache.contains(cacheKey) && !inFlightJobs.containsKey(cacheKey);
+        }
+    }
+
+    /**
+     * Accepts a submitted job. It is answered from the result cache or the
+     * country means if possible, otherwise it is queued, and it is recorded
+     * as submitted until it finishes.
+     * 
+     * @param subsetParams
+     *            The job to accept
+     */
+    private void acceptJob(SubsetRequestParams subsetParams) throws EdalException, IOException {
+        String jobId = subsetParams.getJobId();
+        /*
+         * If an identical job has already been run, use its result. If one is
+         * queued or running, wait for it to finish rather than computing the
+         * same data again.
+         */
+        String cacheKey = getCacheKey(subsetParams);
+        File cachedResult;
+        boolean attached = false;
+        boolean registered = false;
+        synchronized (inFlightJobs) {
+            cachedResult = resultCache.get(cacheKey);
+            if (cachedResult == null && cacheKey != null) {
+                if (inFlightJobs.containsKey(cacheKey)) {
+                    /*
+                     * Recorded as submitted before the lock is released, so
+                     * that the job being waited for can't finish without
+                     * seeing this one
+                     */
+                    inFlightJobs.get(cacheKey).add(subsetParams);
+                    jobProgress.put(jobId,
+                            new JobProgress(jobId, Stage.WAITING_FOR_IDENTICAL_JOB));
+                    submittedJobs.put(jobId, subsetParams);
+                    attached = true;
+                } else {
+                    inFlightJobs.put(cacheKey, new ArrayList<>());
+                    jobId2CacheKey.put(jobId, cacheKey);
+                    registered = true;
+                }
+            }
+        }
+        if (cachedResult != null) {
+            log.debug("Job " + jobId + " found in result cache");
+            jobFinished(new FinishedJobState(subsetParams, cachedResult));
+            return;
+        }
+        if (attached) {
+            log.debug("Job " + jobId + " is waiting for an identical job to finish");
+            saveSubmittedJobList();
+            return;
+        }
+
+        /*
+         * CSV country requests can usually be answered immediately from the
+         * precomputed country means
+         */
+        File cubeResult;
+        try {
+            cubeResult = writeFromCountryMeanCube(subsetParams);
+            if (cubeResult == null) {
+                /*
+                 * Recorded as submitted first, so that it is removed if the
+                 * job finishes straight away
+                 */
+                submittedJobs.put(jobId, subsetParams);
+                queueJob(subsetParams);
+            }
+        } catch (RuntimeException e) {
+            abandonJob(subsetParams, registered ? cacheKey : null, e);
+            throw e;
+        }
+        if (cubeResult != null) {
+            log.debug("Job " + jobId + " answered from country means");
+            jobFinished(new FinishedJobState(subsetParams, cubeResult));
+        } else {
+            log.debug("Added job " + jobId + " to list of submitted jobs");
+            saveSubmittedJobList();
+            log.debug("Saved submitted job list");
+        }
+    }
+
+    /**
+     * Forgets a job which could not be queued. Any requests which had
+     * attached to it in the meantime are failed, since it will never finish.
+     * 
+     * @param params
+     *            The job which could not be queued
+     * @param cacheKey
+     *            The key which the job was registered as in flight under, or
+     *            <code>null</code> if it wasn't
+     * @param error
+     *            The reason the job could not be queued
+     */
+    private void abandonJob(SubsetRequestParams params, String cacheKey, Throwable error) {
+        String jobId = params.getJobId();
+        submittedJobs.remove(jobId);
+        jobProgress.remove(jobId);
+        jobId2Size.remove(jobId);
+        List<SubsetRequestParams> waiting = null;
+        synchronized (inFlightJobs) {
+            jobId2CacheKey.remove(jobId);
+            if (cacheKey != null) {
+                waiting = inFlightJobs.remove(cacheKey);
+            }
+        }
+        if (waiting != null) {
+            for (SubsetRequestParams waiter : waiting) {
+                log.debug("Job " + waiter.getJobId() + " failed: " + jobId
+                        + " could not be queued");
+                jobFinished(new FinishedJobState(waiter, error));
+            }
+        }
+        saveSubmittedJobList();
+    }
+
     @Override
     public void jobFinished(FinishedJobState state) {
         log.debug("Dealing with completed job: " + state.getId());
@@ -560,26 +1105,589 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
          */
         submittedJobs.remove(state.getId());
 
+        String cacheKey = jobId2CacheKey.remove(state.getId());
+        JobSize size = jobId2Size.remove(state.getId());
+        Long startTime = jobId2StartTime.remove(state.getId());
         if (!state.success()) {
             log.error("Problem completing job " + state.getId(), state.getError());
+        } else {
+            JobProgress progress = jobProgress.get(state.getId());
+            if (progress != null) {
+                progress.setStage(Stage.STORING);
+            }
+            if (size != null && startTime != null) {
+                /*
+                 * Calibrate from the uncompressed output, which is what the
+                 * estimates are of
+                 */
+                costModel.recordJob(size, System.currentTimeMillis() - startTime,
+                        state.getFileLocation().length());
+            }
+            compressResult(state);
+            state = cacheResult(state, cacheKey);
         }
+
+        /*
+         * Every request which was waiting for this job gets its own copy of
+         * the outcome
+         */
+        List<FinishedJobState> states = new ArrayList<>();
+        states.add(state);
+        if (cacheKey != null) {
+            List<SubsetRequestParams> waiting;
+            synchronized (inFlightJobs) {
+                waiting = inFlightJobs.remove(cacheKey);
+            }
+            if (waiting != null) {
+                for (SubsetRequestParams params : waiting) {
+                    log.debug("Job " + params.getJobId() + " completed by " + state.getId());
+                    submittedJobs.remove(params.getJobId());
+                    if (state.success()) {
+                        states.add(new FinishedJobState(params, state.getFileLocation()));
+                    } else {
+                        states.add(new FinishedJobState(params, state.getError()));
+                    }
+                }
+            }
+        }
+
         log.debug("Adding completed job to maps/lists " + state.getId());
-        addFinishedJob(state);
+        removeExpiredFailures();
+        for (FinishedJobState finished : states) {
+            addFinishedJob(finished);
+            /*
+             * Status requests are now answered from the finished job
+             */
+            jobProgress.remove(finished.getId());
+        }
 
         log.debug("Saving completed job list after completing " + state.getId());
         saveCompletedJobList();
         log.debug("Saving submitted job list after completing " + state.getId());
         saveSubmittedJobList();
 
-        log.debug("Sending email about " + state.getId());
-        try {
-            sendEmail(state.getJobRef(), state.getUrl());
-        } catch (MessagingException e) {
-            log.error("Problem sending email", e);
+        for (FinishedJobState finished : states) {
+            log.debug("Sending email about " + finished.getId());
+            try {
+                sendEmail(finished.getJobRef(), finished.getUrl());
+            } catch (MessagingException e) {
+                log.error("Problem sending email", e);
+            }
         }
         log.debug("All tasks done following completion of " + state.getId());
     }
 
+    /**
+     * @param params
+     *            A request
+     * @return Whether the request is a CSV request whose estimated cost
+     *         (including opening the files of any timesteps which are not in
+     *         a time-major store) is below the configured threshold
+     */
+    private boolean canWriteSynchronously(SubsetRequestParams params) throws EdalException {
+        long maxCost = tamsatCatalogue.getSynchronousInfo().getMaxCost();
+        Dataset dataset = tamsatCatalogue.getDatasetFromId(params.getDatasetId());
+        if (params.isNetCDF() || maxCost <= 0 || !(dataset instanceof GriddedDataset)) {
+            return false;
+        }
+        return SubsetJob.estimateSynchronousCost(params, (GriddedDataset) dataset,
+                timeMajorStores.get(params.getDatasetId())) <= maxCost;
+    }
+
+    /**
+     * Calculates a CSV request immediately and writes it to the response, if
+     * its estimated cost is below the configured threshold and not too many
+     * other requests are being calculated immediately
+     * 
+     * @param params
+     *            The request
+     * @param resp
+     *            The response to write the CSV to
+     * @return <code>true</code> if the CSV was written, <code>false</code> if
+     *         the request should be queued instead (including if it could not
+     *         be calculated, in which case nothing has been written)
+     */
+    private boolean writeSynchronously(SubsetRequestParams params, HttpServletResponse resp)
+            throws EdalException, IOException {
+        if (!canWriteSynchronously(params)) {
+            return false;
+        }
+        if (!synchronousPermits.tryAcquire()) {
+            log.debug("Too many synchronous requests.  Queueing job " + params.getJobId());
+            return false;
+        }
+        StringWriter csv = new StringWriter();
+        try {
+            log.debug("Calculating job " + params.getJobId() + " synchronously");
+            GriddedDataset dataset = (GriddedDataset) tamsatCatalogue
+                    .getDatasetFromId(params.getDatasetId());
+            /*
+             * The output is small, so build it all before sending anything.
+             * A failure part of the way through then can't be mistaken for a
+             * complete file.
+             */
+            createJob(params).writeCsv(dataset, csv);
+        } catch (EdalException | IOException e) {
+            log.warn("Problem calculating job " + params.getJobId()
+                    + " synchronously.  Queueing it instead.", e);
+            return false;
+        } finally {
+            synchronousPermits.release();
+        }
+        resp.setHeader("Content-Disposition", "inline; filename=" + params.getFilename());
+        resp.setContentType("text/csv");
+        byte[] body = csv.toString().getBytes(resp.getCharacterEncoding());
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+        return true;
+    }
+
+    /**
+     * Adds a job to the queue, or if its dataset has not been loaded yet,
+     * holds it until it has been
+     * 
+     * @param params
+     *            The request to run
+     */
+    private void queueJob(SubsetRequestParams params) {
+        String datasetId = params.getDatasetId();
+        JobProgress progress = jobProgress.computeIfAbsent(params.getJobId(),
+                id -> new JobProgress(id, Stage.QUEUED));
+        synchronized (jobsAwaitingDatasets) {
+            /*
+             * Jobs for unknown datasets are queued straight away, so that they
+             * fail rather than waiting forever
+             */
+            if (tamsatCatalogue.getDatasetFromId(datasetId) == null
+                    && tamsatCatalogue.getDatasetInfo(datasetId) != null) {
+                jobsAwaitingDatasets.computeIfAbsent(datasetId, id -> new ArrayList<>())
+                        .add(params);
+                progress.setStage(Stage.WAITING_FOR_DATASET);
+                log.debug("Job " + params.getJobId() + " is waiting for dataset " + datasetId
+                        + " to load");
+                return;
+            }
+        }
+        progress.setStage(Stage.QUEUED);
+        submitJob(params);
+    }
+
+    /**
+     * Accepts any jobs which were waiting for a dataset again, now that it has
+     * been loaded. Their results can only be looked up or shared once the
+     * dataset is known, so they may now be answered from the result cache or
+     * the country means, or wait for an identical job, rather than being run.
+     * 
+     * @param dataset
+     *            The dataset which has been loaded
+     */
+    private void releaseJobsAwaitingDataset(Dataset dataset) {
+        List<SubsetRequestParams> waiting;
+        synchronized (jobsAwaitingDatasets) {
+            waiting = jobsAwaitingDatasets.remove(dataset.getId());
+        }
+        if (waiting != null) {
+            log.debug("Dataset " + dataset.getId() + " loaded.  Queueing " + waiting.size()
+                    + " waiting jobs");
+            for (SubsetRequestParams params : waiting) {
+                try {
+                    acceptJob(params);
+                } catch (Exception e) {
+                    log.error("Problem queueing job " + params.getJobId(), e);
+                    jobFinished(new FinishedJobState(params, e));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a job to the queue, prioritised by its estimated cost
+     * 
+     * @param params
+     *            The request to run
+     */
+    private void submitJob(SubsetRequestParams params) {
+        String jobId = params.getJobId();
+        JobSize size = getJobSize(params);
+        long cost = 0L;
+        if (size != null) {
+            cost = size.getCost();
+            jobId2Size.put(jobId, size);
+        }
+        SubsetJob job = createJob(params);
+        jobQueue.submit(jobId, () -> {
+            jobId2StartTime.put(jobId, System.currentTimeMillis());
+            job.call();
+        }, cost, getUser(params));
+        log.debug("Added job " + jobId + " (cost " + cost + ") to the queue");
+    }
+
+    /**
+     * Estimates when a submitted job will complete
+     * 
+     * @param params
+     *            A job which has been submitted but has not finished
+     * @param position
+     *            The position of the job in the queue, or <code>null</code>
+     *            if it is not queued
+     * @return The estimate, or <code>null</code> if the job is not queued or
+     *         running (e.g. if it is waiting for its dataset to load, or for
+     *         an identical job)
+     */
+    private JobEstimate estimateQueuedJob(SubsetRequestParams params, QueuePosition position) {
+        String jobId = params.getJobId();
+        JobSize size = jobId2Size.get(jobId);
+        if (size == null) {
+            return null;
+        }
+        long runMillis = costModel.estimateRunMillis(size);
+        long outputBytes = costModel.estimateOutputBytes(size);
+        Long startTime = jobId2StartTime.get(jobId);
+        if (startTime != null) {
+            long remainingMillis = Math.max(0L,
+                    runMillis - (System.currentTimeMillis() - startTime));
+            return new JobEstimate(size.getCost(), (remainingMillis + 999) / 1000, outputBytes,
+                    0, 0L);
+        }
+        if (position == null) {
+            return null;
+        }
+        return new JobEstimate(size.getCost(), (runMillis + 999) / 1000, outputBytes,
+                position.getJobsAhead(), position.getStartSeconds());
+    }
+
+    /**
+     * @param params
+     *            A request
+     * @return The estimated cost of the request, or 0 if it cannot be
+     *         estimated
+     */
+    private long estimateCost(SubsetRequestParams params) {
+        JobSize size = getJobSize(params);
+        return size == null ? 0L : size.getCost();
+    }
+
+    /**
+     * @param params
+     *            A request
+     * @return The size of the request, or <code>null</code> if it cannot be
+     *         estimated
+     */
+    private JobSize getJobSize(SubsetRequestParams params) {
+        Dataset dataset = tamsatCatalogue.getDatasetFromId(params.getDatasetId());
+        if (dataset instanceof GriddedDataset) {
+            try {
+                return SubsetJob.getJobSize(params, (GriddedDataset) dataset);
+            } catch (EdalException e) {
+                /*
+                 * The job will most likely fail for the same reason, so it
+                 * may as well do so quickly
+                 */
+                log.warn("Could not estimate the cost of job " + params.getJobId(), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param params
+     *            A request
+     * @return The user who submitted the request, for fair queueing
+     */
+    private static String getUser(SubsetRequestParams params) {
+        String email = params.getJobRef().email;
+        return email == null ? "" : email.trim().toLowerCase();
+    }
+
+    /**
+     * Creates a job to run a subset request, using the shared resources for
+     * its dataset
+     * 
+     * @param params
+     *            The request to run
+     * @return A {@link SubsetJob} which will call back to this servlet when
+     *         finished
+     */
+    private SubsetJob createJob(SubsetRequestParams params) {
+        String datasetId = params.getDatasetId();
+        return new SubsetJob(params, tamsatCatalogue, dataDir, this, averagingPool,
+                timeMajorStores.get(datasetId), getNetcdfWriter(datasetId),
+                jobProgress.get(params.getJobId()));
+    }
+
+    /**
+     * Schedules an update of the country means of a dataset. If one is already
+     * scheduled, this does nothing.
+     * 
+     * @param dataset
+     *            The dataset which has been (re)loaded
+     */
+    private void updateCountryMeanCube(Dataset dataset) {
+        String datasetId = dataset.getId();
+        /*
+         * The files may have been reprocessed, so don't use the cube until
+         * the update has checked it
+         */
+        CountryMeanCube existing = countryMeanCubes.get(datasetId);
+        if (existing != null) {
+            existing.datasetChanged();
+        }
+        if (!(dataset instanceof GriddedDataset) || !pendingCubeUpdates.add(datasetId)) {
+            return;
+        }
+        cubeUpdater.submit(() -> {
+            pendingCubeUpdates.remove(datasetId);
+            /*
+             * Use the latest version of the dataset, and a consistent order of
+             * countries
+             */
+            Dataset current = tamsatCatalogue.getDatasetFromId(datasetId);
+            DatasetConfig datasetInfo = tamsatCatalogue.getDatasetInfo(datasetId);
+            if (!(current instanceof GriddedDataset) || datasetInfo == null) {
+                return;
+            }
+            CountryMeanCube cube = countryMeanCubes.computeIfAbsent(datasetId,
+                    id -> new CountryMeanCube(new File(cubeDir, id + ".cube")));
+            try {
+                cube.update((GriddedDataset) current, datasetInfo.getLocation(),
+                        new TreeMap<>(countryBounds));
+            } catch (Exception e) {
+                log.error("Problem updating country means for " + datasetId, e);
+            }
+        });
+    }
+
+    /**
+     * Schedules an update of the time-major store of a dataset, if it has
+     * one. If an update is already scheduled, this does nothing.
+     * 
+     * @param dataset
+     *            The dataset which has been (re)loaded
+     */
+    private void updateTimeMajorStore(Dataset dataset) {
+        String datasetId = dataset.getId();
+        TimeMajorStore store = timeMajorStores.get(datasetId);
+        if (store == null) {
+            return;
+        }
+        /*
+         * The files may have been reprocessed, so don't use the store until
+         * the update has checked it
+         */
+        store.datasetChanged();
+        if (!(dataset instanceof GriddedDataset) || !pendingStoreUpdates.add(datasetId)) {
+            return;
+        }
+        storeUpdater.submit(() -> {
+            pendingStoreUpdates.remove(datasetId);
+            Dataset current = tamsatCatalogue.getDatasetFromId(datasetId);
+            DatasetConfig datasetInfo = tamsatCatalogue.getDatasetInfo(datasetId);
+            if (!(current instanceof GriddedDataset) || datasetInfo == null) {
+                return;
+            }
+            try {
+                store.update((GriddedDataset) current, datasetInfo.getLocation());
+            } catch (Exception e) {
+                log.error("Problem updating time-major store for " + datasetId, e);
+            }
+        });
+    }
+
+    /**
+     * @param params
+     *            A request
+     * @return Whether the request can currently be answered from the
+     *         precomputed country means, i.e. whether
+     *         {@link #writeFromCountryMeanCube(SubsetRequestParams)} would
+     *         answer it
+     */
+    private boolean coveredByCountryMeanCube(SubsetRequestParams params) {
+        if (params.isNetCDF() || !(params.isCountry() || params.isMultiCountry())) {
+            return false;
+        }
+        CountryMeanCube cube = countryMeanCubes.get(params.getDatasetId());
+        Dataset dataset = tamsatCatalogue.getDatasetFromId(params.getDatasetId());
+        if (cube == null || !(dataset instanceof GriddedDataset)) {
+            return false;
+        }
+        return cube.covers((GriddedDataset) dataset, getCountryIds(params),
+                dataset.getVariableIds(), params.getTimeRange());
+    }
+
+    private static List<String> getCountryIds(SubsetRequestParams params) {
+        return params.isMultiCountry() ? new ArrayList<>(params.getCountryDefinitions().keySet())
+                : Collections.singletonList(params.getCountry());
+    }
+
+    /**
+     * Writes the result of a CSV country request using the precomputed
+     * country means, if they are available
+     * 
+     * @param params
+     *            The request
+     * @return The file containing the result, or <code>null</code> if the
+     *         request could not be answered from the country means
+     */
+    private File writeFromCountryMeanCube(SubsetRequestParams params) {
+        if (params.isNetCDF() || !(params.isCountry() || params.isMultiCountry())) {
+            return null;
+        }
+        CountryMeanCube cube = countryMeanCubes.get(params.getDatasetId());
+        Dataset dataset = tamsatCatalogue.getDatasetFromId(params.getDatasetId());
+        if (cube == null || !(dataset instanceof GriddedDataset)) {
+            return null;
+        }
+        List<String> countries = getCountryIds(params);
+        Set<String> varIds = dataset.getVariableIds();
+
+        File outputFile = new File(dataDir, params.getJobId());
+        boolean written;
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(outputFile))) {
+            written = cube.writeCsv((GriddedDataset) dataset, countries, varIds,
+                    params.getTimeRange(), SubsetJob.getCsvHeader(params, varIds), w);
+        } catch (IOException e) {
+            log.error("Problem reading country means", e);
+            written = false;
+        }
+        if (!written) {
+            outputFile.delete();
+            return null;
+        }
+        return outputFile;
+    }
+
+    /**
+     * @return The key to store the result of the given request under in the
+     *         {@link ResultCache}, or <code>null</code> if it cannot be
+     *         determined (because the dataset is not yet available)
+     */
+    private String getCacheKey(SubsetRequestParams params) {
+        Dataset dataset = tamsatCatalogue.getDatasetFromId(params.getDatasetId());
+        String version = tamsatCatalogue.getDatasetVersion(params.getDatasetId());
+        if (!(dataset instanceof GriddedDataset) || version == null) {
+            return null;
+        }
+        return ResultCache.createKey(params, (GriddedDataset) dataset, version,
+                getNetcdfWriter(params.getDatasetId())
+                        .getSettings(NetcdfSubsetWriter.isNetcdf4Available()));
+    }
+
+    /**
+     * @return The {@link NetcdfSubsetWriter} to write NetCDF subsets of the
+     *         given dataset with
+     */
+    private NetcdfSubsetWriter getNetcdfWriter(String datasetId) {
+        return netcdfWriters.getOrDefault(datasetId, defaultNetcdfWriter);
+    }
+
+    /**
+     * Moves the result of a successful job into the {@link ResultCache}
+     * 
+     * @param cacheKey
+     *            The key to store the result under, or <code>null</code> if
+     *            it should not be shared with other requests
+     * @return A {@link FinishedJobState} pointing to the cached result
+     */
+    private FinishedJobState cacheResult(FinishedJobState state, String cacheKey) {
+        File result = state.getFileLocation();
+        if (result.getParentFile().equals(dataDir)) {
+            if (cacheKey == null) {
+                cacheKey = ResultCache.getUnsharedKey(state.getId());
+            }
+            try {
+                return new FinishedJobState(state.getParams(), resultCache.put(cacheKey, result));
+            } catch (IOException e) {
+                log.error("Problem caching result of job " + state.getId(), e);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Compresses a newly-written result, so that it takes less space in the
+     * cache and can be sent with <code>Content-Encoding: gzip</code>. If this
+     * fails, the uncompressed result is used.
+     */
+    private void compressResult(FinishedJobState state) {
+        File result = state.getFileLocation();
+        int level = tamsatCatalogue.getResultCacheInfo().getCompressionLevel();
+        if (level <= 0 || !result.getParentFile().equals(dataDir)) {
+            return;
+        }
+        try {
+            long length = result.length();
+            if (ResultCompression.compress(result, level)) {
+                log.debug("Compressed result of job " + state.getId() + " from " + length
+                        + " to " + result.length() + " bytes");
+            }
+        } catch (IOException e) {
+            log.error("Problem compressing result of job " + state.getId(), e);
+        }
+    }
+
+    /**
+     * Moves any results from before the {@link ResultCache} was introduced into
+     * it, so that they are subject to eviction
+     */
+    private void adoptUncachedResults() {
+        List<FinishedJobState> adopted = new Vector<>();
+        for (FinishedJobState job : finishedJobs) {
+            if (job.success() && job.getFileLocation().exists()) {
+                job = cacheResult(job, null);
+            }
+            adopted.add(job);
+        }
+        /*
+         * Adopting results may have caused others to be evicted
+         */
+        finishedJobs = new Vector<>();
+        for (FinishedJobState job : adopted) {
+            if (!job.success() || job.getFileLocation().exists()) {
+                finishedJobs.add(job);
+            }
+        }
+    }
+
+    /**
+     * Removes any finished jobs whose results have been evicted from the cache
+     * 
+     * @param file
+     *            The location of the evicted result
+     */
+    private void resultEvicted(File file) {
+        List<FinishedJobState> expired = new ArrayList<>();
+        synchronized (finishedJobs) {
+            for (FinishedJobState job : finishedJobs) {
+                if (file.equals(job.getFileLocation())) {
+                    log.debug("Job " + job.getId() + " has expired");
+                    expired.add(job);
+                }
+            }
+        }
+        for (FinishedJobState job : expired) {
+            deleteFinishedJob(job);
+        }
+    }
+
+    /**
+     * Removes failed jobs which completed over 7 days ago. These have no
+     * result, so will never be evicted from the cache.
+     */
+    private void removeExpiredFailures() {
+        List<FinishedJobState> expired = new ArrayList<>();
+        synchronized (finishedJobs) {
+            for (FinishedJobState job : finishedJobs) {
+                if (!job.success() && (System.currentTimeMillis()
+                        - job.getCompletedTime()) > 1000 * 60 * 60 * 24 * 7) {
+                    expired.add(job);
+                }
+            }
+        }
+        for (FinishedJobState job : expired) {
+            deleteFinishedJob(job);
+        }
+    }
+
     private static final String EMAIL_TITLE = "TAMSAT Data Available";
     private static final String EMAIL_MESSAGE = "Your TAMSAT data is available to download at:\n";
     private static final String EMAIL_ERROR_TITLE = "TAMSAT Data Error";
@@ -634,6 +1742,14 @@ public class TamsatDataSubsetServlet extends HttpServlet implements JobFinished,
         return submittedJobs;
     }
 
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public JobScheduler getJobScheduler() {
+        return jobQueue;
+    }
+
     private void addFinishedJob(FinishedJobState state) {
         /*
          * Add job state to appropriate Maps for easy retrieval
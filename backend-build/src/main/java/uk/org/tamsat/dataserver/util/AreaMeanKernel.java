@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * Calculates the mean of gridded values over a fixed set of cells.
+ * 
+ * The cells to include are calculated once, when the kernel is created, and
+ * stored as primitive index arrays. For each timestep the unmasked values are
+ * gathered into a reusable primitive buffer and then reduced.
+ * 
+ * Values read through an {@link Array4D} are still one object per cell: EDAL
+ * boxes every value as it reads the data, and each lookup passes its indices
+ * in a new array. Only data which is already held in primitive arrays (such
+ * as that read from a {@link TimeMajorStore}) avoids this, using
+ * {@link #mean(double[], int)} or {@link #mean(float[], int)}.
+ * 
+ * Values are summed in x-major order (i.e. all of the y-values for the first
+ * x-index, then all of the y-values for the second, etc.), so that results are
+ * consistent whichever data source the values come from.
+ * 
+ * Instances are not thread-safe, since they share a buffer between calls.
+ * Each thread should create its own (the static methods may be used freely).
+ */
+public class AreaMeanKernel {
+    private final int xSize;
+    private final int ySize;
+    private final int[] xIndices;
+    private final int[] yIndices;
+    private final double[] buffer;
+
+    /**
+     * Creates a kernel which averages over the cells of the given grid which
+     * are within the given country
+     * 
+     * @param grid
+     *            The {@link HorizontalGrid} of the data to average. This
+     *            should have been subset to the bounding box of the country
+     * @param countryDefinition
+     *            The country to average over, or <code>null</code> to average
+     *            over every cell in the grid
+     */
+    public AreaMeanKernel(HorizontalGrid grid, CountryDefinition countryDefinition) {
+        this(grid, countryDefinition, 0, 0);
+    }
+
+    /**
+     * Creates a kernel which averages over the cells of the given grid which
+     * are within the given country, where the grid may extend beyond the
+     * bounding box of the country
+     * 
+     * @param grid
+     *            The {@link HorizontalGrid} of the data to average
+     * @param countryDefinition
+     *            The country to average over, or <code>null</code> to average
+     *            over every cell in the grid
+     * @param xOffset
+     *            The x-index in the grid of the country's first cell
+     * @param yOffset
+     *            The y-index in the grid of the country's first cell
+     */
+    public AreaMeanKernel(HorizontalGrid grid, CountryDefinition countryDefinition, int xOffset,
+            int yOffset) {
+        xSize = grid.getXSize();
+        ySize = grid.getYSize();
+
+        /*
+         * Only cells within the country's bounding box can be included, so
+         * don't bother testing the rest of the grid
+         */
+        int iMin = 0;
+        int iMax = xSize;
+        int jMin = 0;
+        int jMax = ySize;
+        if (countryDefinition != null) {
+            iMin = Math.max(0, xOffset);
+            iMax = Math.min(xSize, xOffset + countryDefinition.getMaskWidth());
+            jMin = Math.max(0, yOffset);
+            jMax = Math.min(ySize, yOffset + countryDefinition.getMaskHeight());
+        }
+
+        int maxCells = Math.max(0, iMax - iMin) * Math.max(0, jMax - jMin);
+        int[] xs = new int[maxCells];
+        int[] ys = new int[maxCells];
+        int n = 0;
+        for (int i = iMin; i < iMax; i++) {
+            for (int j = jMin; j < jMax; j++) {
+                if (countryDefinition == null
+                        || countryDefinition.contains(i - xOffset, j - yOffset)) {
+                    xs[n] = i;
+                    ys[n] = j;
+                    n++;
+                }
+            }
+        }
+        xIndices = new int[n];
+        yIndices = new int[n];
+        System.arraycopy(xs, 0, xIndices, 0, n);
+        System.arraycopy(ys, 0, yIndices, 0, n);
+        buffer = new double[n];
+    }
+
+    /**
+     * @return The number of cells which are included in the mean
+     */
+    public int getCellCount() {
+        return xIndices.length;
+    }
+
+    /**
+     * Calculates the mean of the unmasked values at a single timestep. This
+     * reads each value as a {@link Number}.
+     * 
+     * @param values
+     *            The {@link Array4D} containing the data. This must have the
+     *            same horizontal size as the kernel
+     * @param t
+     *            The time index to average
+     * @return The mean of all non-missing values, or {@link Double#NaN} if
+     *         there are none
+     */
+    public double mean(Array4D<Number> values, int t) {
+        if (values.getXSize() != xSize || values.getYSize() != ySize) {
+            throw new IllegalArgumentException("Data has size " + values.getXSize() + "x"
+                    + values.getYSize() + " but this kernel is for " + xSize + "x" + ySize);
+        }
+        int n = 0;
+        for (int c = 0; c < xIndices.length; c++) {
+            Number val = values.get(t, 0, yIndices[c], xIndices[c]);
+            if (val != null) {
+                buffer[n++] = val.doubleValue();
+            }
+        }
+        return mean(buffer, n);
+    }
+
+    /**
+     * Calculates the mean of the first <code>length</code> values in an array,
+     * ignoring any which are NaN
+     * 
+     * @return The mean, or {@link Double#NaN} if there are no non-NaN values
+     */
+    public static double mean(double[] values, int length) {
+        double total = 0.0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            double val = values[i];
+            if (!Double.isNaN(val)) {
+                total += val;
+                count++;
+            }
+        }
+        return count > 0 ? total / count : Double.NaN;
+    }
+
+    /**
+     * Calculates the mean of the first <code>length</code> values in an array,
+     * ignoring any which are NaN
+     * 
+     * @return The mean, or {@link Double#NaN} if there are no non-NaN values
+     */
+    public static double mean(float[] values, int length) {
+        double total = 0.0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            float val = values[i];
+            if (!Float.isNaN(val)) {
+                total += val;
+                count++;
+            }
+        }
+        return count > 0 ? total / count : Double.NaN;
+    }
+}
@@ -0,0 +1,470 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
+
+/**
+ * Snapshots of the metadata of loaded datasets, so that they can be made
+ * available straight away when the server restarts, rather than after every
+ * file has been rescanned.
+ *
+ * Each snapshot records the files matched by the dataset location (with their
+ * sizes and modification times), the data reading strategy, and the
+ * parameter, grid and time axis of each variable. A snapshot is only used if
+ * the files on disk still match it exactly. Data is still read from the
+ * original files, through the same dataset class that
+ * {@link CdmGridDatasetFactory} would create.
+ *
+ * Only plain gridded variables on a lat-lon grid with ISO times and no
+ * vertical axis are supported, which covers the TAMSAT data. Datasets with
+ * anything else (e.g. vector or uncertainty plugins) are not snapshotted, and
+ * are loaded by a full scan as before.
+ */
+public class CatalogueSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(CatalogueSnapshot.class);
+
+    private static final int MAGIC = 0x54435353;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte AXIS_REGULAR = 'R';
+    private static final byte AXIS_IRREGULAR = 'I';
+
+    /*
+     * The dataset class created by CdmGridDatasetFactory is not public, so it
+     * has to be created by reflection. If this version of EDAL does not have
+     * it, snapshots are disabled.
+     */
+    private static final Constructor<?> CDM_GRID_DATASET;
+    private static final Method GET_DATA_READING_STRATEGY;
+    static {
+        Constructor<?> constructor = null;
+        Method method = null;
+        try {
+            Class<?> datasetClass = Class.forName(
+                    CdmGridDatasetFactory.class.getName() + "$CdmGridDataset");
+            constructor = datasetClass.getDeclaredConstructor(CdmGridDatasetFactory.class,
+                    String.class, String.class, Collection.class, DataReadingStrategy.class);
+            constructor.setAccessible(true);
+            method = GriddedDataset.class.getDeclaredMethod("getDataReadingStrategy");
+            method.setAccessible(true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Cannot create gridded datasets directly.  Catalogue snapshots are disabled.",
+                    e);
+            constructor = null;
+            method = null;
+        }
+        CDM_GRID_DATASET = constructor;
+        GET_DATA_READING_STRATEGY = method;
+    }
+
+    private final File dir;
+
+    /**
+     * @param dir
+     *            The directory to store snapshots in. This will be created if
+     *            it does not exist
+     */
+    public CatalogueSnapshot(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return Whether snapshots can be used with this version of EDAL
+     */
+    public static boolean isSupported() {
+        return CDM_GRID_DATASET != null;
+    }
+
+    private File getSnapshotFile(String datasetId) {
+        return new File(dir, datasetId + ".snapshot");
+    }
+
+    /**
+     * Recreates a dataset from its snapshot
+     *
+     * @param datasetId
+     *            The ID of the dataset
+     * @param location
+     *            The location of the dataset, as configured
+     * @return The dataset, or <code>null</code> if there is no usable
+     *         snapshot (i.e. it doesn't exist, or the files matched by the
+     *         location have changed since it was written)
+     */
+    public GriddedDataset load(String datasetId, String location) {
+        File file = getSnapshotFile(datasetId);
+        if (!isSupported() || !file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                log.debug("Snapshot of " + datasetId + " is not in the current format");
+                return null;
+            }
+            if (!location.equals(in.readUTF())) {
+                log.debug("Location of " + datasetId + " has changed since it was snapshotted");
+                return null;
+            }
+            if (!readFileStamps(in).equals(getFileStamps(location))) {
+                log.debug("Files of " + datasetId + " have changed since it was snapshotted");
+                return null;
+            }
+            DataReadingStrategy strategy = DataReadingStrategy.valueOf(in.readUTF());
+            List<GridVariableMetadata> metadata = readMetadata(in);
+            return (GriddedDataset) CDM_GRID_DATASET.newInstance(new CdmGridDatasetFactory(),
+                    datasetId, location, metadata, strategy);
+        } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+            log.warn("Could not read snapshot of " + datasetId + ".  It will be rescanned.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot of a dataset, replacing any existing one.
+     *
+     * This should be called as soon as possible after the dataset has been
+     * loaded. If files matching its location are added after the dataset was
+     * scanned but before the snapshot is written, the snapshot will wrongly
+     * include them. This only lasts until the next refresh of the dataset,
+     * which will write a new snapshot.
+     *
+     * @param dataset
+     *            The loaded dataset
+     * @param location
+     *            The location of the dataset, as configured
+     * @return Whether a snapshot was written. Datasets with metadata which
+     *         cannot be snapshotted are skipped.
+     */
+    public boolean save(Dataset dataset, String location) throws IOException {
+        String datasetId = dataset.getId();
+        if (!isSupported() || dataset.getClass() != CDM_GRID_DATASET.getDeclaringClass()) {
+            log.debug("Dataset " + datasetId + " cannot be snapshotted");
+            return false;
+        }
+        List<String> stamps = getFileStamps(location);
+        if (stamps.isEmpty()) {
+            return false;
+        }
+
+        List<GridVariableMetadata> metadata = new ArrayList<>();
+        for (String varId : dataset.getVariableIds()) {
+            VariableMetadata varMetadata = dataset.getVariableMetadata(varId);
+            if (!(varMetadata instanceof GridVariableMetadata) || varMetadata.getParent() != null
+                    || !varMetadata.getChildren().isEmpty()) {
+                log.debug("Variable " + varId + " of " + datasetId + " cannot be snapshotted");
+                return false;
+            }
+            metadata.add((GridVariableMetadata) varMetadata);
+        }
+
+        ByteArrayOutputStream metadataBytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(metadataBytes)) {
+            if (!writeMetadata(metadata, out)) {
+                log.debug("Metadata of " + datasetId + " cannot be snapshotted");
+                return false;
+            }
+        }
+        /*
+         * Make sure that the metadata reads back exactly as it is now, so that
+         * a restored dataset behaves identically to a scanned one
+         */
+        List<GridVariableMetadata> readBack = readMetadata(
+                new DataInputStream(new ByteArrayInputStream(metadataBytes.toByteArray())));
+        for (int v = 0; v < metadata.size(); v++) {
+            if (!sameMetadata(metadata.get(v), readBack.get(v))) {
+                log.debug("Metadata of " + datasetId + " does not survive a snapshot");
+                return false;
+            }
+        }
+
+        DataReadingStrategy strategy;
+        try {
+            strategy = (DataReadingStrategy) GET_DATA_READING_STRATEGY.invoke(dataset);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Cannot get data reading strategy of " + datasetId, e);
+        }
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create snapshot directory " + dir);
+        }
+        File file = getSnapshotFile(datasetId);
+        File tmpFile = new File(dir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(location);
+            out.writeInt(stamps.size());
+            for (String stamp : stamps) {
+                out.writeUTF(stamp);
+            }
+            out.writeUTF(strategy.name());
+            metadataBytes.writeTo(out);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Removes the snapshot of a dataset, if there is one
+     *
+     * @param datasetId
+     *            The ID of the dataset
+     */
+    public void delete(String datasetId) {
+        getSnapshotFile(datasetId).delete();
+    }
+
+    /**
+     * @return A sorted list identifying each file matching the location, and
+     *         its current size and modification time
+     */
+    static List<String> getFileStamps(String location) {
+        List<String> stamps = new ArrayList<>();
+        for (File file : CdmUtils.expandGlobExpression(location)) {
+            stamps.add(file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified());
+        }
+        stamps.sort(null);
+        return stamps;
+    }
+
+    /**
+     * @return A hex digest of the stamps of the files matching the location
+     *         (see {@link #getFileStamps(String)}), which changes whenever a
+     *         file is added, removed or rewritten
+     */
+    public static String getFileDigest(String location) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : getDigest(getFileStamps(location))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    static byte[] getDigest(List<String> stamps) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String stamp : stamps) {
+                digest.update(stamp.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * All Java implementations must support SHA-256
+             */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<String> readFileStamps(DataInputStream in) throws IOException {
+        int nFiles = in.readInt();
+        List<String> stamps = new ArrayList<>(nFiles);
+        for (int f = 0; f < nFiles; f++) {
+            stamps.add(in.readUTF());
+        }
+        return stamps;
+    }
+
+    /**
+     * Writes the metadata of the given variables
+     *
+     * @return <code>false</code> if any of the metadata is not supported
+     */
+    private static boolean writeMetadata(List<GridVariableMetadata> metadata,
+            DataOutputStream out) throws IOException {
+        out.writeInt(metadata.size());
+        for (GridVariableMetadata varMetadata : metadata) {
+            Parameter parameter = varMetadata.getParameter();
+            HorizontalGrid grid = varMetadata.getHorizontalDomain();
+            TimeAxis timeAxis = varMetadata.getTemporalDomain();
+            if (parameter.getCategories() != null || varMetadata.getVerticalDomain() != null
+                    || !(grid instanceof RectilinearGrid)
+                    || !GISUtils.isDefaultGeographicCRS(grid.getCoordinateReferenceSystem())
+                    || timeAxis == null
+                    || !ISOChronology.getInstanceUTC().equals(timeAxis.getChronology())) {
+                return false;
+            }
+            writeString(parameter.getVariableId(), out);
+            writeString(parameter.getTitle(), out);
+            writeString(parameter.getDescription(), out);
+            writeString(parameter.getUnits(), out);
+            writeString(parameter.getStandardName(), out);
+            out.writeBoolean(varMetadata.isScalar());
+
+            RectilinearGrid rectilinearGrid = (RectilinearGrid) grid;
+            writeAxis(rectilinearGrid.getXAxis(), out);
+            writeAxis(rectilinearGrid.getYAxis(), out);
+
+            writeString(timeAxis.getName(), out);
+            out.writeInt(timeAxis.size());
+            for (DateTime time : timeAxis.getCoordinateValues()) {
+                out.writeLong(time.getMillis());
+            }
+        }
+        return true;
+    }
+
+    private static List<GridVariableMetadata> readMetadata(DataInputStream in)
+            throws IOException {
+        Chronology chronology = ISOChronology.getInstanceUTC();
+        int nVars = in.readInt();
+        List<GridVariableMetadata> metadata = new ArrayList<>(nVars);
+        for (int v = 0; v < nVars; v++) {
+            Parameter parameter = new Parameter(readString(in), readString(in), readString(in),
+                    readString(in), readString(in));
+            boolean scalar = in.readBoolean();
+
+            /*
+             * Only lat-lon grids are snapshotted, so the x-axis is always
+             * longitude
+             */
+            ReferenceableAxis<Double> xAxis = readAxis(in, true);
+            ReferenceableAxis<Double> yAxis = readAxis(in, false);
+            HorizontalGrid grid;
+            if (xAxis instanceof RegularAxis && yAxis instanceof RegularAxis) {
+                grid = new RegularGridImpl((RegularAxis) xAxis, (RegularAxis) yAxis,
+                        GISUtils.defaultGeographicCRS());
+            } else {
+                grid = new RectilinearGridImpl(xAxis, yAxis, GISUtils.defaultGeographicCRS());
+            }
+
+            String timeAxisName = readString(in);
+            int nTimes = in.readInt();
+            List<DateTime> times = new ArrayList<>(nTimes);
+            for (int t = 0; t < nTimes; t++) {
+                times.add(new DateTime(in.readLong(), chronology));
+            }
+            TimeAxis timeAxis = new TimeAxisImpl(timeAxisName, times);
+
+            metadata.add(new GridVariableMetadata(parameter, grid, null, timeAxis, scalar));
+        }
+        return metadata;
+    }
+
+    private static boolean sameMetadata(GridVariableMetadata a, GridVariableMetadata b) {
+        return a.getParameter().equals(b.getParameter()) && a.isScalar() == b.isScalar()
+                && a.getHorizontalDomain().equals(b.getHorizontalDomain())
+                && a.getTemporalDomain().equals(b.getTemporalDomain());
+    }
+
+    private static void writeAxis(ReferenceableAxis<Double> axis, DataOutputStream out)
+            throws IOException {
+        writeString(axis.getName(), out);
+        if (axis instanceof RegularAxis) {
+            out.writeByte(AXIS_REGULAR);
+            out.writeDouble(axis.getCoordinateValue(0));
+            out.writeDouble(((RegularAxis) axis).getCoordinateSpacing());
+            out.writeInt(axis.size());
+        } else {
+            out.writeByte(AXIS_IRREGULAR);
+            out.writeInt(axis.size());
+            for (Double value : axis.getCoordinateValues()) {
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    private static ReferenceableAxis<Double> readAxis(DataInputStream in, boolean isLongitude)
+            throws IOException {
+        String name = readString(in);
+        byte type = in.readByte();
+        if (type == AXIS_REGULAR) {
+            return new RegularAxisImpl(name, in.readDouble(), in.readDouble(), in.readInt(),
+                    isLongitude);
+        } else if (type == AXIS_IRREGULAR) {
+            int size = in.readInt();
+            List<Double> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(in.readDouble());
+            }
+            return new ReferenceableAxisImpl(name, values, isLongitude);
+        }
+        throw new IOException("Unknown axis type " + type);
+    }
+
+    private static void writeString(String string, DataOutputStream out) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -28,36 +28,175 @@
 
 package uk.org.tamsat.dataserver.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 
+/**
+ * Defines a country as a set of grid cells, relative to the lower-left corner
+ * of the country's bounding box.
+ * 
+ * Membership tests are performed against a bitset covering the country's
+ * bounding box, which is built once when the definition is created (or
+ * deserialised), so that testing every cell of a subset grid is linear in the
+ * size of the grid rather than in the product of the grid and country sizes.
+ */
 public class CountryDefinition implements Serializable {
     private static final long serialVersionUID = 1L;
     private final String label;
     private final List<GridCoordinates2D> cells;
     private final BoundingBox bbox;
 
+    /*
+     * The mask index. This is derived entirely from the list of cells, so it
+     * is not serialised, but rebuilt on deserialisation.
+     */
+    private transient int maskWidth;
+    private transient int maskHeight;
+    private transient BitSet mask;
+
     public CountryDefinition(String label, List<GridCoordinates2D> cells, BoundingBox bbox) {
         this.label = label;
         this.cells = cells;
         this.bbox = bbox;
+        buildMask();
+    }
+
+    private void buildMask() {
+        int width = 0;
+        int height = 0;
+        for (GridCoordinates2D cell : cells) {
+            if (cell.getX() < 0 || cell.getY() < 0) {
+                throw new IllegalArgumentException(
+                        "Country cells must be relative to the bounding box, but " + label
+                                + " contains the cell " + cell);
+            }
+            width = Math.max(width, cell.getX() + 1);
+            height = Math.max(height, cell.getY() + 1);
+        }
+        BitSet bits = new BitSet(width * height);
+        for (GridCoordinates2D cell : cells) {
+            bits.set(cell.getY() * width + cell.getX());
+        }
+        maskWidth = width;
+        maskHeight = height;
+        mask = bits;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        buildMask();
     }
 
     public String getLabel() {
         return label;
     }
 
+    /**
+     * @param x
+     *            The x-index of the cell, relative to the bounding box
+     * @param y
+     *            The y-index of the cell, relative to the bounding box
+     * @return Whether the given cell is within this country
+     */
+    public boolean contains(int x, int y) {
+        if (x < 0 || y < 0 || x >= maskWidth || y >= maskHeight) {
+            return false;
+        }
+        return mask.get(y * maskWidth + x);
+    }
+
     public boolean contains(GridCoordinates2D cell) {
-        return cells.contains(cell);
+        return contains(cell.getX(), cell.getY());
+    }
+
+    /**
+     * @return The width (in grid cells) of the smallest box containing every
+     *         cell of this country
+     */
+    public int getMaskWidth() {
+        return maskWidth;
     }
-    
+
+    /**
+     * @return The height (in grid cells) of the smallest box containing every
+     *         cell of this country
+     */
+    public int getMaskHeight() {
+        return maskHeight;
+    }
+
+    public List<GridCoordinates2D> getCells() {
+        return Collections.unmodifiableList(cells);
+    }
+
     public BoundingBox getBoundingBox() {
         return bbox;
     }
 
+    /**
+     * @param countries
+     *            A non-empty {@link Collection} of countries
+     * @return The smallest {@link BoundingBox} which contains every one of
+     *         the countries
+     */
+    public static BoundingBox getCombinedBoundingBox(Collection<CountryDefinition> countries) {
+        double minLon = Double.MAX_VALUE;
+        double minLat = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        for (CountryDefinition country : countries) {
+            BoundingBox countryBbox = country.getBoundingBox();
+            minLon = Math.min(minLon, countryBbox.getMinX());
+            minLat = Math.min(minLat, countryBbox.getMinY());
+            maxLon = Math.max(maxLon, countryBbox.getMaxX());
+            maxLat = Math.max(maxLat, countryBbox.getMaxY());
+        }
+        return new BoundingBoxImpl(minLon, minLat, maxLon, maxLat);
+    }
+
+    /**
+     * Finds where this country sits within a grid which covers a larger area
+     * than the country's bounding box (e.g. the combined bounding box of
+     * several countries)
+     * 
+     * @param grid
+     *            The {@link RectilinearGrid} to find the country in
+     * @return The coordinates in the grid corresponding to the cell (0,0) of
+     *         this country. This is the cell which would be at (0,0) if the
+     *         grid's dataset were subset to this country's bounding box.
+     */
+    public GridCoordinates2D findOrigin(HorizontalGrid grid) {
+        if (!(grid instanceof RectilinearGrid)) {
+            throw new IllegalArgumentException(
+                    "Countries can only be located within rectilinear grids");
+        }
+        RectilinearGrid rectGrid = (RectilinearGrid) grid;
+        return new GridCoordinates2D(
+                findStartIndex(rectGrid.getXAxis(), bbox.getMinX(), bbox.getMaxX()),
+                findStartIndex(rectGrid.getYAxis(), bbox.getMinY(), bbox.getMaxY()));
+    }
+
+    /*
+     * Matches the way in which GriddedDataset chooses the first index when
+     * subsetting to a bounding box
+     */
+    private static int findStartIndex(ReferenceableAxis<Double> axis, double min, double max) {
+        int index = axis.findIndexOf(axis.isAscending() ? min : max);
+        return index < 0 ? 0 : index;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
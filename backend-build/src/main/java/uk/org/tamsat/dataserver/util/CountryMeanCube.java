@@ -0,0 +1,558 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
+/**
+ * A precomputed table of the area mean of every variable of a dataset over
+ * every country, at every timestep, stored in a binary file.
+ * 
+ * The file consists of a header describing the countries and variables,
+ * followed by one fixed-length record per timestep, in time order. Each
+ * record contains the time (as milliseconds since the epoch), followed by the
+ * mean of each variable for the first country, then each variable for the
+ * second country, etc. Means are stored as doubles, exactly as calculated by
+ * {@link AreaMeanKernel}, so that output generated from the cube is identical
+ * to output calculated from the gridded data.
+ * 
+ * New timesteps are appended as they appear in the dataset, so the cube only
+ * needs to be built from scratch if the dataset or the country definitions
+ * change. The files which the means were calculated from are recorded in a
+ * {@link FileStampLedger}, and if any of them are reprocessed, the timesteps
+ * which may have come from them are recalculated.
+ *
+ * Whenever the dataset is reloaded, {@link #datasetChanged()} must be called.
+ * The cube is then not used until it has been checked against the files of
+ * the dataset by the next {@link #update(GriddedDataset, String, Map)}.
+ */
+public class CountryMeanCube {
+    private static final Logger log = LoggerFactory.getLogger(CountryMeanCube.class);
+
+    private static final int MAGIC = 0x54434d43;
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    private final FileStampLedger ledger;
+
+    /*
+     * Header information. Only valid if headerLength > 0
+     */
+    private List<String> countryIds = new ArrayList<>();
+    private int[] countryHashes = new int[0];
+    private List<String> varIds = new ArrayList<>();
+    private long headerLength = 0L;
+    private int recordLength = 0;
+
+    /*
+     * The time of each record in the file
+     */
+    private long[] times = new long[0];
+    private int size = 0;
+
+    /*
+     * Only one update may run at a time. Reads are not blocked by updates,
+     * except briefly while a slab is appended.
+     */
+    private final Object updateLock = new Object();
+
+    /*
+     * The number of times the dataset has been reloaded, and the number of
+     * reloads which the cube has been checked against
+     */
+    private final AtomicLong changes = new AtomicLong();
+    private volatile long checkedChanges = -1L;
+
+    /**
+     * Opens a cube, reading any data already present in the given file
+     * 
+     * @param file
+     *            The file to store the cube in
+     */
+    public CountryMeanCube(File file) {
+        this.file = file;
+        this.ledger = new FileStampLedger(new File(file.getPath() + ".files"));
+        if (file.exists()) {
+            try {
+                readHeaderAndTimes();
+            } catch (IOException e) {
+                log.warn("Could not read country mean cube " + file + ". It will be rebuilt.", e);
+                clear();
+            }
+        }
+    }
+
+    private synchronized void readHeaderAndTimes() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC || raf.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a country mean cube in the current format");
+            }
+            int nCountries = raf.readInt();
+            List<String> countries = new ArrayList<>();
+            int[] hashes = new int[nCountries];
+            for (int c = 0; c < nCountries; c++) {
+                countries.add(raf.readUTF());
+                hashes[c] = raf.readInt();
+            }
+            int nVars = raf.readInt();
+            List<String> vars = new ArrayList<>();
+            for (int v = 0; v < nVars; v++) {
+                vars.add(raf.readUTF());
+            }
+            long header = raf.getFilePointer();
+            int record = getRecordLength(nCountries, nVars);
+
+            /*
+             * Ignore any partial record left over from an interrupted update
+             */
+            int n = (int) ((raf.length() - header) / record);
+            long[] recordTimes = new long[Math.max(16, n)];
+            for (int t = 0; t < n; t++) {
+                raf.seek(header + (long) t * record);
+                recordTimes[t] = raf.readLong();
+            }
+
+            countryIds = countries;
+            countryHashes = hashes;
+            varIds = vars;
+            headerLength = header;
+            recordLength = record;
+            times = recordTimes;
+            size = n;
+        }
+    }
+
+    private static int getRecordLength(int nCountries, int nVars) {
+        return 8 + 8 * nCountries * nVars;
+    }
+
+    private synchronized void clear() {
+        countryIds = new ArrayList<>();
+        countryHashes = new int[0];
+        varIds = new ArrayList<>();
+        headerLength = 0L;
+        recordLength = 0;
+        times = new long[0];
+        size = 0;
+    }
+
+    /**
+     * Discards the contents of the cube, and starts a new one for the given
+     * countries and variables
+     */
+    private synchronized void reset(Map<String, CountryDefinition> countries, List<String> vars)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(countries.size());
+            for (Entry<String, CountryDefinition> country : countries.entrySet()) {
+                out.writeUTF(country.getKey());
+                out.writeInt(country.getValue().hashCode());
+            }
+            out.writeInt(vars.size());
+            for (String var : vars) {
+                out.writeUTF(var);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0L);
+            raf.write(bytes.toByteArray());
+        }
+
+        countryIds = new ArrayList<>(countries.keySet());
+        countryHashes = new int[countries.size()];
+        int c = 0;
+        for (CountryDefinition country : countries.values()) {
+            countryHashes[c++] = country.hashCode();
+        }
+        varIds = new ArrayList<>(vars);
+        headerLength = bytes.size();
+        recordLength = getRecordLength(countryIds.size(), varIds.size());
+        times = new long[16];
+        size = 0;
+    }
+
+    /**
+     * @return Whether the cube was built for exactly these countries and
+     *         variables, and its times are the first timesteps of the given
+     *         axis
+     */
+    private synchronized boolean isConsistentWith(Map<String, CountryDefinition> countries,
+            Set<String> vars, TimeAxis timeAxis) {
+        if (headerLength == 0L || !countryIds.equals(new ArrayList<>(countries.keySet()))
+                || !varIds.containsAll(vars) || varIds.size() != vars.size()) {
+            return false;
+        }
+        int c = 0;
+        for (CountryDefinition country : countries.values()) {
+            if (countryHashes[c++] != country.hashCode()) {
+                return false;
+            }
+        }
+        if (size > timeAxis.size()) {
+            return false;
+        }
+        for (int t = 0; t < size; t++) {
+            if (times[t] != timeAxis.getCoordinateValue(t).getMillis()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes records from the end of the cube
+     * 
+     * @param newSize
+     *            The number of records to keep
+     */
+    private synchronized void truncate(int newSize) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(headerLength + (long) newSize * recordLength);
+        }
+        size = newSize;
+    }
+
+    /**
+     * Appends records to the end of the cube
+     * 
+     * @param recordTimes
+     *            The time of each record
+     * @param records
+     *            The encoded records
+     */
+    private synchronized void append(long[] recordTimes, byte[] records) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(headerLength + (long) size * recordLength);
+            raf.write(records);
+        }
+        if (size + recordTimes.length > times.length) {
+            times = Arrays.copyOf(times, Math.max(times.length * 2, size + recordTimes.length));
+        }
+        System.arraycopy(recordTimes, 0, times, size, recordTimes.length);
+        size += recordTimes.length;
+    }
+
+    /**
+     * @return The number of timesteps in the cube
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Stops the cube from being used until it has been checked against the
+     * files of the dataset. This should be called as soon as the dataset has
+     * been reloaded, before the next update.
+     */
+    public void datasetChanged() {
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Brings the cube up-to-date with a dataset, calculating means for any
+     * timesteps which are not yet present. Timesteps which may have come from
+     * files which have since changed are recalculated. If the countries,
+     * variables or existing times do not match, the cube is rebuilt from
+     * scratch.
+     * 
+     * This can take a long time, and should not be called on a request thread.
+     * 
+     * @param dataset
+     *            The dataset to calculate means from. All variables must share
+     *            the same grid.
+     * @param location
+     *            The location of the files of the dataset, as configured
+     * @param countries
+     *            The countries to calculate means over
+     */
+    public void update(GriddedDataset dataset, String location,
+            Map<String, CountryDefinition> countries) throws EdalException, IOException {
+        synchronized (updateLock) {
+            /*
+             * Any reload after this point will need checking again
+             */
+            long checking = changes.get();
+            Set<String> datasetVars = dataset.getVariableIds();
+            TimeAxis timeAxis = dataset.getVariableMetadata(datasetVars.iterator().next())
+                    .getTemporalDomain();
+            if (timeAxis == null || countries.isEmpty()) {
+                return;
+            }
+            List<String> stamps = CatalogueSnapshot.getFileStamps(location);
+            if (!isConsistentWith(countries, datasetVars, timeAxis)) {
+                log.debug("Building country mean cube " + file + " from scratch");
+                reset(countries, new ArrayList<>(datasetVars));
+            } else {
+                int valid = ledger.getValidCount(stamps, size());
+                if (valid < size()) {
+                    log.debug("Files of country mean cube " + file
+                            + " have changed.  Recalculating from timestep " + valid);
+                    truncate(valid);
+                }
+            }
+            ledger.record(stamps, size());
+            /*
+             * Everything in the cube is now up-to-date, and anything added
+             * from here on will be
+             */
+            checkedChanges = checking;
+            int first = size();
+            if (first >= timeAxis.size()) {
+                return;
+            }
+            log.debug("Adding timesteps " + first + " to " + (timeAxis.size() - 1)
+                    + " to country mean cube " + file);
+
+            /*
+             * Read the combined area of every country once per slab, and
+             * average each country within it
+             */
+            List<String> vars;
+            List<CountryDefinition> countryList;
+            synchronized (this) {
+                vars = new ArrayList<>(varIds);
+                countryList = new ArrayList<>(countries.values());
+            }
+            TimeSlabReader slabReader = new TimeSlabReader(dataset, datasetVars,
+                    CountryDefinition.getCombinedBoundingBox(countryList),
+                    Extents.newExtent(timeAxis.getCoordinateValue(first),
+                            timeAxis.getCoordinateValue(timeAxis.size() - 1)));
+            for (int s = 0; s < slabReader.getSlabCount(); s++) {
+                GridFeature slab = slabReader.readSlab(s);
+                HorizontalGrid grid = slab.getDomain().getHorizontalGrid();
+                List<AreaMeanKernel> kernels = new ArrayList<>();
+                for (CountryDefinition country : countryList) {
+                    GridCoordinates2D origin = country.findOrigin(grid);
+                    kernels.add(new AreaMeanKernel(grid, country, origin.getX(), origin.getY()));
+                }
+                List<Array4D<Number>> varVals = new ArrayList<>();
+                for (String var : vars) {
+                    varVals.add(slab.getValues(var));
+                }
+
+                TimeAxis slabTimes = slab.getDomain().getTimeAxis();
+                long[] recordTimes = new long[slabTimes.size()];
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (DataOutputStream out = new DataOutputStream(bytes)) {
+                    for (int t = 0; t < slabTimes.size(); t++) {
+                        recordTimes[t] = slabTimes.getCoordinateValue(t).getMillis();
+                        out.writeLong(recordTimes[t]);
+                        for (AreaMeanKernel kernel : kernels) {
+                            for (Array4D<Number> vals : varVals) {
+                                out.writeDouble(kernel.mean(vals, t));
+                            }
+                        }
+                    }
+                }
+                append(recordTimes, bytes.toByteArray());
+            }
+            log.debug("Country mean cube " + file + " now has " + size() + " timesteps");
+        }
+    }
+
+    /**
+     * Checks whether the cube can currently answer a request, without reading
+     * any data
+     * 
+     * @param dataset
+     *            The dataset which the cube was built from
+     * @param countries
+     *            The IDs of the requested countries
+     * @param vars
+     *            The requested variables
+     * @param timeRange
+     *            The requested time range
+     * @return <code>true</code> if
+     *         {@link #writeCsv(GriddedDataset, List, Set, Extent, String, Writer)}
+     *         would write the request
+     */
+    public boolean covers(GriddedDataset dataset, List<String> countries, Set<String> vars,
+            Extent<DateTime> timeRange) {
+        TimeAxis timeAxis = dataset.getVariableMetadata(vars.iterator().next())
+                .getTemporalDomain();
+        int[] tRange = getTimeIndices(timeAxis, timeRange);
+        return tRange != null
+                && getOffsets(timeAxis, tRange[0], tRange[1], countries, vars) != null;
+    }
+
+    /**
+     * @return The first and last indices of the time axis within the time
+     *         range, or <code>null</code> if there are none
+     */
+    private static int[] getTimeIndices(TimeAxis timeAxis, Extent<DateTime> timeRange) {
+        if (timeAxis == null) {
+            return null;
+        }
+        /*
+         * This matches the way that subsetFeatures treats times outside of the
+         * axis
+         */
+        int tMin = timeAxis.findIndexOf(timeRange.getLow());
+        int tMax = timeAxis.findIndexOf(timeRange.getHigh());
+        tMin = tMin == -1 ? 0 : tMin;
+        tMax = tMax == -1 ? timeAxis.size() - 1 : tMax;
+        if (tMax < tMin) {
+            return null;
+        }
+        return new int[] { tMin, tMax };
+    }
+
+    /**
+     * @return The offsets within each record of the requested values, in
+     *         column order, or <code>null</code> if the cube does not (yet)
+     *         contain the requested data
+     */
+    private synchronized int[] getOffsets(TimeAxis timeAxis, int tMin, int tMax,
+            List<String> countries, Set<String> vars) {
+        if (checkedChanges != changes.get() || headerLength == 0L || tMax >= size
+                || times[tMin] != timeAxis.getCoordinateValue(tMin).getMillis()
+                || times[tMax] != timeAxis.getCoordinateValue(tMax).getMillis()) {
+            return null;
+        }
+        int[] offsets = new int[countries.size() * vars.size()];
+        int i = 0;
+        for (String country : countries) {
+            int c = countryIds.indexOf(country);
+            if (c < 0) {
+                return null;
+            }
+            for (String var : vars) {
+                int v = varIds.indexOf(var);
+                if (v < 0) {
+                    return null;
+                }
+                offsets[i++] = 8 + 8 * (c * varIds.size() + v);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Writes CSV rows for area-averaged timeseries of the given countries
+     * from the cube, in the same format as they would be calculated from the
+     * gridded data. Nothing is written if the cube does not cover the request.
+     * 
+     * @param dataset
+     *            The dataset which the cube was built from
+     * @param countries
+     *            The IDs of the countries to write, in column order
+     * @param vars
+     *            The variables to write, in column order
+     * @param timeRange
+     *            The time range to write
+     * @param header
+     *            A header to write before the rows
+     * @param w
+     *            The {@link Writer} to write to
+     * @return <code>true</code> if the rows were written, <code>false</code> if
+     *         the cube does not (yet) contain the requested data
+     */
+    public boolean writeCsv(GriddedDataset dataset, List<String> countries, Set<String> vars,
+            Extent<DateTime> timeRange, String header, Writer w) throws IOException {
+        TimeAxis timeAxis = dataset.getVariableMetadata(vars.iterator().next())
+                .getTemporalDomain();
+        int[] tRange = getTimeIndices(timeAxis, timeRange);
+        if (tRange == null) {
+            return false;
+        }
+        int tMin = tRange[0];
+        int tMax = tRange[1];
+
+        int[] offsets;
+        ByteBuffer data;
+        synchronized (this) {
+            offsets = getOffsets(timeAxis, tMin, tMax, countries, vars);
+            if (offsets == null) {
+                return false;
+            }
+
+            /*
+             * Records are contiguous in time, so read them all at once
+             */
+            data = ByteBuffer.allocate((tMax - tMin + 1) * recordLength);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    FileChannel channel = raf.getChannel()) {
+                long position = headerLength + (long) tMin * recordLength;
+                while (data.hasRemaining()) {
+                    if (channel.read(data, position + data.position()) < 0) {
+                        throw new IOException("Unexpected end of country mean cube " + file);
+                    }
+                }
+            }
+        }
+
+        w.write(header);
+        CsvRowEncoder row = new CsvRowEncoder();
+        for (int t = tMin; t <= tMax; t++) {
+            int record = (t - tMin) * recordLength;
+            row.startRow(timeAxis.getCoordinateValue(t));
+            for (int offset : offsets) {
+                /*
+                 * If we are averaging over somewhere which is all missing
+                 * data, this will write -999.
+                 */
+                row.addValue(data.getDouble(record + offset));
+            }
+            row.endRow();
+            row.writeTo(w);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.org.tamsat.dataserver.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.GJChronology;
+import org.joda.time.chrono.ISOChronology;
+
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+
+/**
+ * Encodes rows of CSV timeseries output into a reusable character buffer.
+ * 
+ * Each row consists of a date, formatted as by
+ * {@link TimeUtils#formatUtcDateOnly(DateTime)}, followed by a number of
+ * values. Non-integer values are formatted exactly as
+ * <code>new DecimalFormat("#.00")</code> would format them, and missing values
+ * are written as -999.
+ * 
+ * Dates and values are formatted directly into the buffer, without creating
+ * any intermediate objects. Values which cannot be formatted quickly with
+ * certainty (those which are very large, or within rounding error of half a
+ * hundredth) are passed to a {@link DecimalFormat}, so the output is always
+ * identical to it.
+ * 
+ * Instances are not thread-safe, but hold no shared state, so each thread
+ * should simply create its own.
+ */
+public class CsvRowEncoder {
+    /*
+     * Values with a magnitude below this can be scaled by 100 with an error
+     * much less than the tolerance below
+     */
+    private static final double MAX_FAST_VALUE = 1e9;
+    private static final double TIE_TOLERANCE = 1e-4;
+
+    private char[] buffer = new char[1024];
+    private int length = 0;
+    private DecimalFormat format2dp = null;
+
+    /**
+     * Starts a new row, writing the date
+     * 
+     * @param time
+     *            The time of the row
+     * @return This encoder
+     */
+    public CsvRowEncoder startRow(DateTime time) {
+        ensureCapacity(11);
+        long millis = time.getMillis();
+        if (isIsoUtc(time.getChronology(), millis)) {
+            long days = Math.floorDiv(millis, 86400000L);
+            /*
+             * Convert days since 1970-01-01 to a date in the proleptic
+             * Gregorian calendar (see http://howardhinnant.github.io/date_algorithms.html)
+             */
+            long z = days + 719468L;
+            long era = Math.floorDiv(z, 146097L);
+            long doe = z - era * 146097L;
+            long yoe = (doe - doe / 1460L + doe / 36524L - doe / 146096L) / 365L;
+            long doy = doe - (365L * yoe + yoe / 4L - yoe / 100L);
+            long mp = (5L * doy + 2L) / 153L;
+            int day = (int) (doy - (153L * mp + 2L) / 5L + 1L);
+            int month = (int) (mp < 10L ? mp + 3L : mp - 9L);
+            long year = yoe + era * 400L + (month <= 2 ? 1L : 0L);
+            if (year >= 0L && year <= 9999L) {
+                appendDigits((int) year, 4);
+                buffer[length++] = '-';
+                appendDigits(month, 2);
+                buffer[length++] = '-';
+                appendDigits(day, 2);
+                return this;
+            }
+        }
+        append(TimeUtils.formatUtcDateOnly(time));
+        return this;
+    }
+
+    /**
+     * @return Whether the fields of a time in the given chronology are the
+     *         same as in the UTC ISO chronology
+     */
+    private static boolean isIsoUtc(Chronology chronology, long millis) {
+        if (chronology.getZone() != DateTimeZone.UTC) {
+            return false;
+        }
+        if (chronology instanceof ISOChronology) {
+            return true;
+        }
+        /*
+         * The default CF calendar. This is identical to ISO after the
+         * Gregorian cutover.
+         */
+        return chronology instanceof GJChronology
+                && millis >= ((GJChronology) chronology).getGregorianCutover().getMillis();
+    }
+
+    /**
+     * Adds a value to the current row, formatted to 2 decimal places. NaN is
+     * written as -999.
+     * 
+     * @param value
+     *            The value to add
+     * @return This encoder
+     */
+    public CsvRowEncoder addValue(double value) {
+        if (Double.isNaN(value)) {
+            return addMissing();
+        }
+        ensureCapacity(32);
+        buffer[length++] = ',';
+        double magnitude = Math.abs(value);
+        if (magnitude < MAX_FAST_VALUE) {
+            double scaled = magnitude * 100.0;
+            double floor = Math.floor(scaled);
+            double fraction = scaled - floor;
+            if (Math.abs(fraction - 0.5) > TIE_TOLERANCE) {
+                long hundredths = (long) floor + (fraction > 0.5 ? 1L : 0L);
+                /*
+                 * DecimalFormat keeps the sign of negative values (including
+                 * -0.0), even when they round to zero
+                 */
+                if (Double.doubleToRawLongBits(value) < 0L) {
+                    buffer[length++] = '-';
+                }
+                long whole = hundredths / 100L;
+                if (whole > 0L) {
+                    appendLong(whole);
+                }
+                buffer[length++] = '.';
+                appendDigits((int) (hundredths % 100L), 2);
+                return this;
+            }
+        }
+        /*
+         * Very large values and near-ties need exact rounding of the binary
+         * value, so let DecimalFormat deal with them
+         */
+        if (format2dp == null) {
+            format2dp = new DecimalFormat("#.00");
+        }
+        append(format2dp.format(value));
+        return this;
+    }
+
+    /**
+     * Adds an integer value to the current row
+     * 
+     * @param value
+     *            The value to add
+     * @return This encoder
+     */
+    public CsvRowEncoder addValue(int value) {
+        ensureCapacity(12);
+        buffer[length++] = ',';
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                append(Integer.toString(value));
+                return this;
+            }
+            buffer[length++] = '-';
+            value = -value;
+        }
+        appendLong(value);
+        return this;
+    }
+
+    /**
+     * Adds a missing value (-999) to the current row
+     * 
+     * @return This encoder
+     */
+    public CsvRowEncoder addMissing() {
+        ensureCapacity(5);
+        buffer[length++] = ',';
+        buffer[length++] = '-';
+        buffer[length++] = '9';
+        buffer[length++] = '9';
+        buffer[length++] = '9';
+        return this;
+    }
+
+    /**
+     * Ends the current row
+     */
+    public void endRow() {
+        ensureCapacity(1);
+        buffer[length++] = '\n';
+    }
+
+    /**
+     * @return The number of characters which have been encoded since the
+     *         encoder was last cleared
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Writes all encoded rows, and clears the buffer
+     * 
+     * @param w
+     *            The {@link Writer} to write to
+     */
+    public void writeTo(Writer w) throws IOException {
+        w.write(buffer, 0, length);
+        length = 0;
+    }
+
+    /**
+     * Discards all encoded rows
+     */
+    public void clear() {
+        length = 0;
+    }
+
+    /**
+     * @return All encoded rows
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private void append(String str) {
+        ensureCapacity(str.length());
+        str.getChars(0, str.length(), buffer, length);
+        length += str.length();
+    }
+
+    /**
+     * Appends a non-negative value, zero-padded to the given number of digits
+     */
+    private void appendDigits(int value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[length + i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Appends a non-negative value
+     */
+    private void appendLong(long value) {
+        int digits = 1;
+        for (long v = value; v >= 10L; v /= 10L) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[length + i] = (char) ('0' + value % 10L);
+            value /= 10L;
+        }
+        length += digits;
+    }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.catalogue.jaxb.CatalogueConfig;
+import uk.ac.rdg.resc.edal.catalogue.jaxb.DatasetConfig;
+import uk.ac.rdg.resc.edal.catalogue.jaxb.DatasetConfig.DatasetState;
+
+/**
+ * Periodically checks whether the files making up each dataset have changed,
+ * and refreshes only those datasets which have.
+ *
+ * A dataset's files are summarised by a digest of the path, size and
+ * modification time of every file matching its location. Computing this only
+ * needs a directory listing, so it is cheap compared to a rescan (which opens
+ * every file), and can be done every few minutes. New data is then available
+ * shortly after it arrives, and datasets don't need to be rescanned on a
+ * fixed schedule.
+ */
+public class DatasetChangeMonitor {
+    private static final Logger log = LoggerFactory.getLogger(DatasetChangeMonitor.class);
+
+    private final CatalogueConfig config;
+    private final ScheduledExecutorService checker;
+
+    /*
+     * The digest of the files of each dataset when it was last loaded (or
+     * refreshed). Only accessed on the checker thread.
+     */
+    private final Map<String, byte[]> loadedDigests = new HashMap<>();
+
+    /**
+     * Creates a monitor and starts checking for changes
+     *
+     * @param config
+     *            The {@link CatalogueConfig} containing the datasets to
+     *            monitor
+     * @param checkIntervalMinutes
+     *            The time between checks
+     */
+    public DatasetChangeMonitor(CatalogueConfig config, int checkIntervalMinutes) {
+        this.config = config;
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dataset-change-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        /*
+         * Datasets have just started loading, so record the files they are
+         * being loaded from now. Anything added after this will trigger a
+         * refresh, possibly an unnecessary one.
+         */
+        checker.execute(this::recordDigests);
+        checker.scheduleWithFixedDelay(this::checkForChanges, checkIntervalMinutes,
+                checkIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops checking for changes
+     */
+    public void shutdown() {
+        checker.shutdownNow();
+    }
+
+    private void recordDigests() {
+        for (DatasetConfig datasetConfig : config.getDatasets()) {
+            if (!datasetConfig.isDisabled()) {
+                loadedDigests.put(datasetConfig.getId(), CatalogueSnapshot
+                        .getDigest(CatalogueSnapshot.getFileStamps(datasetConfig.getLocation())));
+            }
+        }
+    }
+
+    private void checkForChanges() {
+        try {
+            for (DatasetConfig datasetConfig : config.getDatasets()) {
+                if (datasetConfig.isDisabled()) {
+                    continue;
+                }
+                String id = datasetConfig.getId();
+                List<String> stamps = CatalogueSnapshot.getFileStamps(datasetConfig.getLocation());
+                byte[] digest = CatalogueSnapshot.getDigest(stamps);
+                if (Arrays.equals(digest, loadedDigests.get(id))) {
+                    continue;
+                }
+                /*
+                 * A refresh requested while the dataset is being loaded would
+                 * be lost when the load completes, so wait until it has
+                 * finished and check again
+                 */
+                DatasetState state = datasetConfig.getState();
+                if (state == DatasetState.LOADING || state == DatasetState.UPDATING
+                        || state == DatasetState.NEEDS_REFRESH) {
+                    continue;
+                }
+                log.info("Files of dataset " + id + " have changed (now " + stamps.size()
+                        + " files).  Refreshing.");
+                loadedDigests.put(id, digest);
+                datasetConfig.forceRefresh();
+            }
+        } catch (Exception e) {
+            /*
+             * Don't let an exception stop future checks
+             */
+            log.error("Problem checking datasets for changes", e);
+        }
+    }
+}
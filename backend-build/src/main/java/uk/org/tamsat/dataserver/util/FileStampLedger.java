@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the files which an append-only store of timesteps (such as a
+ * {@link CountryMeanCube} or a {@link TimeMajorStore}) was built from, so that
+ * the store can tell when data it already holds has been reprocessed.
+ *
+ * Files are identified by their stamps (see
+ * {@link CatalogueSnapshot#getFileStamps(String)}), so a file which is
+ * rewritten gets a new stamp. Each stamp is recorded along with the number of
+ * timesteps which had been stored when it was first seen. New files only add
+ * new timesteps (otherwise the times of the store would no longer match the
+ * dataset), so none of the timesteps stored before a file was first seen can
+ * have come from it. If that file is later changed or removed, only the
+ * timesteps from that point on need to be recalculated.
+ */
+class FileStampLedger {
+    private static final Logger log = LoggerFactory.getLogger(FileStampLedger.class);
+
+    private static final int MAGIC = 0x5446534c;
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    /*
+     * Stamp to the number of timesteps stored when the file was first seen.
+     * null if nothing is known about the files of the store.
+     */
+    private Map<String, Integer> firstSeen = null;
+
+    /**
+     * @param file
+     *            The file to keep the ledger in. If this exists, it is read.
+     */
+    FileStampLedger(File file) {
+        this.file = file;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Not a file ledger in the current format");
+                }
+                int n = in.readInt();
+                Map<String, Integer> stamps = new HashMap<>();
+                for (int f = 0; f < n; f++) {
+                    String stamp = in.readUTF();
+                    stamps.put(stamp, in.readInt());
+                }
+                firstSeen = stamps;
+            } catch (IOException e) {
+                log.warn("Could not read file ledger " + file
+                        + ".  Its store will be rebuilt.", e);
+            }
+        }
+    }
+
+    /**
+     * @param stamps
+     *            The current stamps of the files of the dataset
+     * @param stored
+     *            The number of timesteps currently in the store
+     * @return The number of timesteps at the start of the store which were
+     *         calculated only from files which have not changed since. If
+     *         nothing has been recorded, this is 0.
+     */
+    synchronized int getValidCount(List<String> stamps, int stored) {
+        if (firstSeen == null) {
+            return 0;
+        }
+        Set<String> current = new HashSet<>(stamps);
+        int valid = stored;
+        for (Entry<String, Integer> entry : firstSeen.entrySet()) {
+            if (!current.contains(entry.getKey())) {
+                valid = Math.min(valid, entry.getValue());
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Records the files which timesteps are about to be added to the store
+     * from. This must be called after any invalid timesteps have been removed
+     * from the store, and before any new ones are added.
+     *
+     * @param stamps
+     *            The current stamps of the files of the dataset
+     * @param stored
+     *            The number of timesteps currently in the store
+     */
+    synchronized void record(List<String> stamps, int stored) throws IOException {
+        Map<String, Integer> updated = new HashMap<>();
+        for (String stamp : stamps) {
+            Integer seen = firstSeen == null ? null : firstSeen.get(stamp);
+            updated.put(stamp, seen == null ? stored : Math.min(seen, stored));
+        }
+        firstSeen = updated;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(updated.size());
+            for (Entry<String, Integer> entry : updated.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }
+        /*
+         * Replace the ledger in a single step, so that an interrupted update
+         * never leaves it half-written
+         */
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(bytes.toByteArray());
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
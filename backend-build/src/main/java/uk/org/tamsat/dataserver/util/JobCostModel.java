@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Estimates how long subset jobs will take to run and how large their output
+ * will be, calibrated from the jobs which have actually been run.
+ * 
+ * For each {@link OutputType}, the run time is modelled as a fixed overhead
+ * plus a time per unit of cost (see
+ * {@link uk.org.tamsat.dataserver.SubsetJob#estimateCost}), fitted by least
+ * squares. Each sample's weight decays as more jobs are run, so the model
+ * follows changes in load and storage. The output size is modelled as a
+ * number of bytes per value written, averaged in the same way.
+ * 
+ * Until enough jobs have been run, the estimates are based on default rates.
+ */
+public class JobCostModel {
+    /**
+     * The kinds of output, each of which has its own model
+     */
+    public static enum OutputType {
+        POINT_CSV, AREA_CSV, NETCDF
+    }
+
+    /**
+     * The size of a job, in the terms used by the model
+     */
+    public static class JobSize {
+        private final OutputType type;
+        private final long cost;
+        private final long outputValues;
+
+        /**
+         * @param type
+         *            The kind of output
+         * @param cost
+         *            The estimated cost of the job
+         * @param outputValues
+         *            The number of values which will be written
+         */
+        public JobSize(OutputType type, long cost, long outputValues) {
+            this.type = type;
+            this.cost = cost;
+            this.outputValues = outputValues;
+        }
+
+        public OutputType getType() {
+            return type;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        public long getOutputValues() {
+            return outputValues;
+        }
+    }
+
+    /*
+     * The weight kept by earlier samples each time a new one is added
+     */
+    private static final double DECAY = 0.95;
+    /*
+     * The defaults, which are used as two initial samples of unit weight
+     */
+    private static final double DEFAULT_OVERHEAD_MILLIS = 1000.0;
+    private static final double DEFAULT_MILLIS_PER_COST = 1.0 / 20000.0;
+    private static final double DEFAULT_SAMPLE_COST = 1.0e8;
+    private static final double BYTES_SMOOTHING = 0.1;
+
+    /*
+     * Decayed sums for a weighted least squares fit of run time to cost
+     */
+    private static class RunTimeFit {
+        private double w = 0.0;
+        private double x = 0.0;
+        private double y = 0.0;
+        private double xx = 0.0;
+        private double xy = 0.0;
+        private long samples = 0L;
+
+        private RunTimeFit() {
+            add(0.0, DEFAULT_OVERHEAD_MILLIS, 1.0);
+            add(DEFAULT_SAMPLE_COST,
+                    DEFAULT_OVERHEAD_MILLIS + DEFAULT_SAMPLE_COST * DEFAULT_MILLIS_PER_COST, 1.0);
+        }
+
+        private void add(double cost, double millis, double weight) {
+            w += weight;
+            x += weight * cost;
+            y += weight * millis;
+            xx += weight * cost * cost;
+            xy += weight * cost * millis;
+        }
+
+        private void decay() {
+            w *= DECAY;
+            x *= DECAY;
+            y *= DECAY;
+            xx *= DECAY;
+            xy *= DECAY;
+        }
+
+        private double estimate(double cost) {
+            double meanX = x / w;
+            double meanY = y / w;
+            double variance = xx / w - meanX * meanX;
+            double slope;
+            if (variance > 0.0) {
+                slope = (xy / w - meanX * meanY) / variance;
+            } else {
+                slope = DEFAULT_MILLIS_PER_COST;
+            }
+            /*
+             * Noisy samples can give a negative slope or intercept, neither
+             * of which make sense
+             */
+            slope = Math.max(0.0, slope);
+            double intercept = Math.max(0.0, meanY - slope * meanX);
+            return intercept + slope * cost;
+        }
+    }
+
+    private final Map<OutputType, RunTimeFit> runTimes = new EnumMap<>(OutputType.class);
+    private final Map<OutputType, Double> bytesPerValue = new EnumMap<>(OutputType.class);
+
+    public JobCostModel() {
+        for (OutputType type : OutputType.values()) {
+            runTimes.put(type, new RunTimeFit());
+        }
+        /*
+         * A CSV row is an ISO8601 time followed by values to 2 d.p. NetCDF
+         * values are 4-byte floats, deflated.
+         */
+        bytesPerValue.put(OutputType.POINT_CSV, 16.0);
+        bytesPerValue.put(OutputType.AREA_CSV, 16.0);
+        bytesPerValue.put(OutputType.NETCDF, 2.0);
+    }
+
+    /**
+     * @param size
+     *            The size of a job
+     * @return The estimated time it will take to run, in milliseconds
+     */
+    public synchronized long estimateRunMillis(JobSize size) {
+        return Math.round(runTimes.get(size.type).estimate(size.cost));
+    }
+
+    /**
+     * @param size
+     *            The size of a job
+     * @return The estimated size of its output, in bytes
+     */
+    public synchronized long estimateOutputBytes(JobSize size) {
+        return Math.round(bytesPerValue.get(size.type) * size.outputValues);
+    }
+
+    /**
+     * Records a job which has completed successfully
+     * 
+     * @param size
+     *            The size of the job
+     * @param runMillis
+     *            How long it took to run
+     * @param outputBytes
+     *            The size of its output
+     */
+    public synchronized void recordJob(JobSize size, long runMillis, long outputBytes) {
+        RunTimeFit fit = runTimes.get(size.type);
+        fit.decay();
+        fit.add(size.cost, runMillis, 1.0);
+        fit.samples++;
+        if (size.outputValues > 0) {
+            double measured = (double) outputBytes / size.outputValues;
+            bytesPerValue.put(size.type, (1.0 - BYTES_SMOOTHING) * bytesPerValue.get(size.type)
+                    + BYTES_SMOOTHING * measured);
+        }
+    }
+
+    /**
+     * @param type
+     *            The kind of output
+     * @return The number of jobs which the model of this kind of output has
+     *         been calibrated from
+     */
+    public synchronized long getSamples(OutputType type) {
+        return runTimes.get(type).samples;
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import org.json.JSONObject;
+
+/**
+ * The expected run time, output size and completion time of a subset job
+ */
+public class JobEstimate {
+    private final long cost;
+    private final long runSeconds;
+    private final long outputBytes;
+    private final int jobsAhead;
+    private final long startSeconds;
+
+    /**
+     * @param cost
+     *            The estimated cost of the job
+     * @param runSeconds
+     *            The time the job is expected to take to run, in seconds
+     * @param outputBytes
+     *            The expected size of the output, in bytes
+     * @param jobsAhead
+     *            The number of queued jobs which will run first
+     * @param startSeconds
+     *            The time until the job is expected to start, in seconds, or
+     *            -1 if this is unknown
+     */
+    public JobEstimate(long cost, long runSeconds, long outputBytes, int jobsAhead,
+            long startSeconds) {
+        this.cost = cost;
+        this.runSeconds = runSeconds;
+        this.outputBytes = outputBytes;
+        this.jobsAhead = jobsAhead;
+        this.startSeconds = startSeconds;
+    }
+
+    public long getCost() {
+        return cost;
+    }
+
+    public long getRunSeconds() {
+        return runSeconds;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public int getJobsAhead() {
+        return jobsAhead;
+    }
+
+    public long getStartSeconds() {
+        return startSeconds;
+    }
+
+    /**
+     * @return The time until the job is expected to complete, in seconds, or
+     *         -1 if this is unknown
+     */
+    public long getCompletionSeconds() {
+        return startSeconds < 0 ? -1L : startSeconds + runSeconds;
+    }
+
+    /**
+     * @return The time until the job is expected to complete, rounded up to
+     *         whole minutes, or -1 if this is unknown
+     */
+    public long getCompletionMinutes() {
+        long completionSeconds = getCompletionSeconds();
+        return completionSeconds < 0 ? -1L : (completionSeconds + 59) / 60;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("cost", cost);
+        json.put("runtimeSeconds", runSeconds);
+        json.put("outputBytes", outputBytes);
+        json.put("queuePosition", jobsAhead);
+        json.put("startSeconds", startSeconds);
+        json.put("completionSeconds", getCompletionSeconds());
+        return json;
+    }
+}
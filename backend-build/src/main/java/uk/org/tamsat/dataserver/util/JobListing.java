@@ -38,4 +38,8 @@ public interface JobListing {
     public List<FinishedJobState> getFinishedJobs();
 
     public Map<String, SubsetRequestParams> getQueuedJobs();
+
+    public ResultCache getResultCache();
+
+    public JobScheduler getJobScheduler();
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.File;
+
+import org.json.JSONObject;
+
+/**
+ * The progress of a single subset job, from submission until it finishes.
+ * 
+ * This is updated by the thread running the job and read by any number of
+ * status requests, so every field is volatile. Updates are made at most once
+ * per time slab, so they don't slow the job down. The number of bytes written
+ * is read from the output file when requested, rather than being counted.
+ */
+public class JobProgress {
+    /**
+     * The stages which a job passes through
+     */
+    public static enum Stage {
+        /** Waiting for its dataset to be loaded */
+        WAITING_FOR_DATASET,
+        /** Waiting for an identical job to finish */
+        WAITING_FOR_IDENTICAL_JOB,
+        /** Waiting for a thread to run on */
+        QUEUED,
+        /** Reading the data and writing the output */
+        RUNNING,
+        /** Compressing and storing the output */
+        STORING,
+        /** Finished, successfully or not */
+        FINISHED
+    }
+
+    private final String jobId;
+    private volatile Stage stage;
+    private volatile int timestepsTotal = 0;
+    private volatile int timestepsDone = 0;
+    private volatile File outputFile = null;
+    private volatile long bytesWritten = 0L;
+    private volatile long updated;
+
+    /**
+     * @param jobId
+     *            The ID of the job
+     * @param stage
+     *            The initial stage of the job
+     */
+    public JobProgress(String jobId, Stage stage) {
+        this.jobId = jobId;
+        setStage(stage);
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public void setStage(Stage stage) {
+        /*
+         * The output file is moved once the job has finished running, so
+         * record its final size
+         */
+        File file = outputFile;
+        if (file != null && stage != Stage.RUNNING) {
+            bytesWritten = file.length();
+            outputFile = null;
+        }
+        this.stage = stage;
+        updated = System.currentTimeMillis();
+    }
+
+    /**
+     * @param outputFile
+     *            The file which the job is writing to. Its size is reported
+     *            until the job leaves the {@link Stage#RUNNING} stage.
+     */
+    public void setOutputFile(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * @param timestepsTotal
+     *            The number of timesteps which the job will process
+     */
+    public void setTimestepsTotal(int timestepsTotal) {
+        this.timestepsTotal = timestepsTotal;
+        updated = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that more timesteps have been processed. This must only be
+     * called by the thread running the job.
+     * 
+     * @param timesteps
+     *            The number of timesteps which have just been processed
+     */
+    public void addTimesteps(int timesteps) {
+        timestepsDone = Math.min(timestepsTotal, timestepsDone + timesteps);
+        updated = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that every timestep has been processed
+     */
+    public void allTimestepsDone() {
+        timestepsDone = timestepsTotal;
+        updated = System.currentTimeMillis();
+    }
+
+    public int getTimestepsTotal() {
+        return timestepsTotal;
+    }
+
+    public int getTimestepsDone() {
+        return timestepsDone;
+    }
+
+    /**
+     * @return The number of bytes of output written so far. Whilst running,
+     *         this excludes any which are still buffered.
+     */
+    public long getBytesWritten() {
+        File file = outputFile;
+        return file != null ? file.length() : bytesWritten;
+    }
+
+    /**
+     * @return The time of the last update, in milliseconds since the epoch
+     */
+    public long getUpdated() {
+        return updated;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("id", jobId);
+        json.put("stage", stage.name());
+        json.put("timestepsDone", timestepsDone);
+        json.put("timestepsTotal", timestepsTotal);
+        json.put("bytesWritten", getBytesWritten());
+        json.put("updated", updated);
+        return json;
+    }
+}
@@ -0,0 +1,810 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs jobs in order of their estimated cost, so that small jobs aren't stuck
+ * behind large ones, whilst sharing the threads fairly between users.
+ * 
+ * Each user's jobs are given a deadline when they are submitted, which is the
+ * submission time plus <code>agingMillis</code> for every doubling of its
+ * cost. A user's jobs run in deadline order, so a job runs before any job of
+ * twice its cost which was submitted less than <code>agingMillis</code>
+ * earlier, but after any which was submitted before that. Large jobs therefore
+ * still run eventually, however many small jobs arrive.
+ * 
+ * Users take turns using deficit round robin: on each turn a user is credited
+ * with {@link #QUANTUM} and may run jobs until their credit is less than the
+ * cost of their next job. A user who submits hundreds of jobs therefore gets
+ * the same share of the work as one who submits a few, and users with small
+ * jobs don't wait for large jobs of other users. Each user may also only have
+ * a limited number of jobs running at once.
+ * 
+ * Jobs with a cost of at least <code>heavyCost</code> run on a separate,
+ * smaller, set of threads, so that they can never occupy all of the threads.
+ * 
+ * The time which jobs spend waiting is recorded for each {@link CostClass},
+ * and the work done for each user in their {@link UserShare}. The total cost
+ * of the jobs which have not finished, and the rate at which recent jobs have
+ * been completed, give an estimate of how long new work will have to wait.
+ */
+public class JobScheduler {
+    private static final Logger log = LoggerFactory.getLogger(JobScheduler.class);
+
+    /*
+     * The upper bounds of each cost class. The final class has no upper bound.
+     */
+    private static final long[] COST_CLASS_LIMITS = new long[] { 10000L, 1000000L, 100000000L,
+            10000000000L };
+    /**
+     * The credit which each user is given on each turn. This is about the
+     * cost of a point timeseries, so users with small jobs take turns at
+     * running single jobs.
+     */
+    public static final long QUANTUM = 10000L;
+    /*
+     * The period over which the drain rate is measured
+     */
+    private static final long RATE_WINDOW_MILLIS = 15 * 60 * 1000L;
+    /*
+     * How long a user with no queued or running jobs is remembered for
+     */
+    private static final long USER_EXPIRY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Statistics about the jobs in a range of costs
+     */
+    public static class CostClass {
+        private final String label;
+        private int queued = 0;
+        private long started = 0L;
+        private long totalWaitMillis = 0L;
+        private long maxWaitMillis = 0L;
+
+        private CostClass(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return A description of the range of costs in this class
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return The number of jobs in this class which are waiting to run
+         */
+        public synchronized int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return The number of jobs in this class which have started running
+         */
+        public synchronized long getStarted() {
+            return started;
+        }
+
+        /**
+         * @return The mean time which jobs in this class waited before
+         *         running, in milliseconds
+         */
+        public synchronized long getMeanWaitMillis() {
+            return started == 0 ? 0L : totalWaitMillis / started;
+        }
+
+        /**
+         * @return The longest time which a job in this class waited before
+         *         running, in milliseconds
+         */
+        public synchronized long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        private synchronized void jobQueued() {
+            queued++;
+        }
+
+        private synchronized void jobStarted(long waitMillis) {
+            queued--;
+            started++;
+            totalWaitMillis += waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+        }
+    }
+
+    /**
+     * A snapshot of the work done for a user
+     */
+    public static class UserShare {
+        private final String user;
+        private final int queued;
+        private final int running;
+        private final long started;
+        private final long startedCost;
+        private final int sharePercent;
+
+        private UserShare(UserState state, long totalStartedCost) {
+            this.user = state.user;
+            this.queued = state.queued;
+            this.running = state.running;
+            this.started = state.started;
+            this.startedCost = state.startedCost;
+            this.sharePercent = totalStartedCost == 0 ? 0
+                    : (int) Math.round(100.0 * state.startedCost / totalStartedCost);
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * @return The number of the user's jobs which are waiting to run
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return The number of the user's jobs which are running
+         */
+        public int getRunning() {
+            return running;
+        }
+
+        /**
+         * @return The number of the user's jobs which have started running
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * @return The total estimated cost of the user's jobs which have
+         *         started running
+         */
+        public long getStartedCost() {
+            return startedCost;
+        }
+
+        /**
+         * @return The percentage of the total estimated cost of all started
+         *         jobs which belongs to this user
+         */
+        public int getSharePercent() {
+            return sharePercent;
+        }
+    }
+
+    /**
+     * Where a job is, or would be, in the queue
+     */
+    public static class QueuePosition {
+        private final int jobsAhead;
+        private final long costAhead;
+        private final long startSeconds;
+
+        private QueuePosition(int jobsAhead, long costAhead, long startSeconds) {
+            this.jobsAhead = jobsAhead;
+            this.costAhead = costAhead;
+            this.startSeconds = startSeconds;
+        }
+
+        /**
+         * @return The number of queued jobs which will run first
+         */
+        public int getJobsAhead() {
+            return jobsAhead;
+        }
+
+        /**
+         * @return The total cost of the queued jobs which will run first, and
+         *         of the running jobs
+         */
+        public long getCostAhead() {
+            return costAhead;
+        }
+
+        /**
+         * @return The estimated time until the job starts, in seconds, or -1
+         *         if there is no recent measure of the drain rate
+         */
+        public long getStartSeconds() {
+            return startSeconds;
+        }
+    }
+
+    /*
+     * Everything below here is guarded by the lock on the JobScheduler
+     */
+
+    private class ScheduledJob implements Comparable<ScheduledJob> {
+        private final String id;
+        private final Runnable job;
+        private final long cost;
+        private final UserState user;
+        private final CostClass costClass;
+        private final long submitted;
+        private final long deadline;
+        /*
+         * Breaks ties, so that jobs with the same deadline run in the order
+         * they were submitted
+         */
+        private final long sequence;
+
+        private ScheduledJob(String id, Runnable job, long cost, UserState user) {
+            this.id = id;
+            this.job = job;
+            this.cost = cost;
+            this.user = user;
+            this.costClass = costClasses.get(getCostClassIndex(cost));
+            this.submitted = System.currentTimeMillis();
+            this.deadline = getDeadline(submitted, cost);
+            this.sequence = sequenceNumber++;
+        }
+
+        @Override
+        public int compareTo(ScheduledJob other) {
+            int comparison = Long.compare(deadline, other.deadline);
+            if (comparison == 0) {
+                comparison = Long.compare(sequence, other.sequence);
+            }
+            return comparison;
+        }
+    }
+
+    private static class UserState {
+        private final String user;
+        private int queued = 0;
+        private int running = 0;
+        private long started = 0L;
+        private long startedCost = 0L;
+        /*
+         * When a job was last submitted or finished for this user
+         */
+        private long lastActive = System.currentTimeMillis();
+
+        private UserState(String user) {
+            this.user = user;
+        }
+
+        private boolean isIdle() {
+            return queued == 0 && running == 0;
+        }
+    }
+
+    /*
+     * A user's queued jobs in one lane
+     */
+    private static class UserQueue {
+        private final UserState user;
+        private final PriorityQueue<ScheduledJob> jobs = new PriorityQueue<>();
+        private long deficit = 0L;
+
+        private UserQueue(UserState user) {
+            this.user = user;
+        }
+    }
+
+    /*
+     * A set of threads and the queues of jobs which they run
+     */
+    private class Lane {
+        private int nThreads = 0;
+        private long runningCost = 0L;
+        private final Map<String, UserQueue> userQueues = new HashMap<>();
+        /*
+         * Users with queued jobs, in the order in which they will take turns.
+         * The user whose turn it is is removed from here.
+         */
+        private final Deque<UserQueue> activeUsers = new ArrayDeque<>();
+        private UserQueue currentTurn = null;
+
+        private void add(ScheduledJob job) {
+            UserQueue userQueue = userQueues.computeIfAbsent(job.user.user,
+                    u -> new UserQueue(job.user));
+            if (userQueue.jobs.isEmpty() && userQueue != currentTurn) {
+                activeUsers.addLast(userQueue);
+            }
+            userQueue.jobs.add(job);
+        }
+
+        private boolean isEmpty() {
+            return activeUsers.isEmpty() && currentTurn == null;
+        }
+
+        /*
+         * Finds the queued jobs which would run before a job with the given
+         * deadline. This ignores the sharing between users, so is only
+         * approximate.
+         */
+        private QueuePosition getPosition(long deadline, long sequence) {
+            int jobsAhead = 0;
+            long costAhead = runningCost;
+            for (UserQueue userQueue : userQueues.values()) {
+                for (ScheduledJob job : userQueue.jobs) {
+                    if (job.deadline < deadline
+                            || (job.deadline == deadline && job.sequence < sequence)) {
+                        jobsAhead++;
+                        costAhead += job.cost;
+                    }
+                }
+            }
+            return new QueuePosition(jobsAhead, costAhead,
+                    getStartSeconds(costAhead, getCostPerThreadMillis() * nThreads));
+        }
+
+        /*
+         * Finds the positions of several queued jobs in a single pass over the
+         * queue, adding them to the given map
+         */
+        private void getPositions(Set<String> ids, Map<String, QueuePosition> positions) {
+            List<ScheduledJob> queued = new ArrayList<>();
+            for (UserQueue userQueue : userQueues.values()) {
+                queued.addAll(userQueue.jobs);
+            }
+            Collections.sort(queued);
+            double costPerMillis = getCostPerThreadMillis() * nThreads;
+            long costAhead = runningCost;
+            for (int jobsAhead = 0; jobsAhead < queued.size(); jobsAhead++) {
+                ScheduledJob job = queued.get(jobsAhead);
+                if (ids.contains(job.id)) {
+                    positions.put(job.id, new QueuePosition(jobsAhead, costAhead,
+                            getStartSeconds(costAhead, costPerMillis)));
+                }
+                costAhead += job.cost;
+            }
+        }
+
+        private long getStartSeconds(long costAhead, double costPerMillis) {
+            if (costAhead == 0L) {
+                return 0L;
+            } else if (costPerMillis <= 0.0) {
+                return -1L;
+            }
+            return (long) Math.ceil(costAhead / costPerMillis / 1000.0);
+        }
+
+        private boolean canRun(UserQueue userQueue) {
+            return userQueue.user.running < maxRunningPerUser;
+        }
+
+        /*
+         * Removes the next job to run, or returns null if no users may run a
+         * job at the moment
+         */
+        private ScheduledJob next() {
+            boolean anyCanRun = currentTurn != null && canRun(currentTurn);
+            for (UserQueue userQueue : activeUsers) {
+                anyCanRun |= canRun(userQueue);
+            }
+            if (!anyCanRun) {
+                return null;
+            }
+            while (true) {
+                if (currentTurn != null) {
+                    if (canRun(currentTurn)
+                            && currentTurn.deficit >= currentTurn.jobs.peek().cost) {
+                        ScheduledJob job = currentTurn.jobs.poll();
+                        currentTurn.deficit -= job.cost;
+                        if (currentTurn.jobs.isEmpty()) {
+                            currentTurn.deficit = 0L;
+                            userQueues.remove(currentTurn.user.user);
+                            currentTurn = null;
+                        }
+                        return job;
+                    }
+                    activeUsers.addLast(currentTurn);
+                    currentTurn = null;
+                }
+                skipEmptyRounds();
+                UserQueue userQueue = activeUsers.pollFirst();
+                if (canRun(userQueue)) {
+                    userQueue.deficit += QUANTUM;
+                    currentTurn = userQueue;
+                } else {
+                    activeUsers.addLast(userQueue);
+                }
+            }
+        }
+
+        /*
+         * If no user can run a job after one more quantum, credits everyone
+         * with the rounds in which nothing would run. Otherwise a large job
+         * could take millions of rounds to run.
+         */
+        private void skipEmptyRounds() {
+            long rounds = Long.MAX_VALUE;
+            for (UserQueue userQueue : activeUsers) {
+                if (canRun(userQueue)) {
+                    long shortfall = userQueue.jobs.peek().cost - userQueue.deficit;
+                    rounds = Math.min(rounds, (shortfall + QUANTUM - 1) / QUANTUM);
+                }
+            }
+            if (rounds > 1 && rounds != Long.MAX_VALUE) {
+                for (UserQueue userQueue : activeUsers) {
+                    if (canRun(userQueue)) {
+                        userQueue.deficit += (rounds - 1) * QUANTUM;
+                    }
+                }
+            }
+        }
+    }
+
+    private final long heavyCost;
+    private final long agingMillis;
+    private final int maxRunningPerUser;
+    private final Lane lightLane = new Lane();
+    private final Lane heavyLane = new Lane();
+    private final Map<String, UserState> users = new TreeMap<>();
+    private final Map<String, ScheduledJob> queuedJobs = new HashMap<>();
+    private final List<CostClass> costClasses = new ArrayList<>();
+    private final int nThreads;
+    private long sequenceNumber = 0L;
+    /*
+     * The total cost of all queued and running jobs
+     */
+    private long backlogCost = 0L;
+    /*
+     * The finish time, cost and run time of each job which finished within
+     * RATE_WINDOW_MILLIS, oldest first
+     */
+    private final Deque<long[]> recentJobs = new ArrayDeque<>();
+    private boolean shutdown = false;
+
+    /**
+     * Creates a scheduler and starts its threads
+     * 
+     * @param nThreads
+     *            The total number of threads to run jobs on
+     * @param heavyThreads
+     *            The number of these threads which run heavy jobs. This is
+     *            reduced if necessary so that at least one thread runs other
+     *            jobs.
+     * @param heavyCost
+     *            The cost at and above which a job is heavy
+     * @param agingMillis
+     *            The time after which a job will run before one of twice its
+     *            cost
+     * @param maxRunningPerUser
+     *            The maximum number of jobs which each user may have running
+     *            at once
+     */
+    public JobScheduler(int nThreads, int heavyThreads, long heavyCost, long agingMillis,
+            int maxRunningPerUser) {
+        this.heavyCost = heavyCost;
+        this.agingMillis = agingMillis;
+        this.maxRunningPerUser = Math.max(1, maxRunningPerUser);
+
+        long lowerLimit = 0L;
+        for (long limit : COST_CLASS_LIMITS) {
+            costClasses.add(new CostClass(lowerLimit + " - " + (limit - 1)));
+            lowerLimit = limit;
+        }
+        costClasses.add(new CostClass(">= " + lowerLimit));
+
+        heavyThreads = Math.max(1, Math.min(heavyThreads, nThreads - 1));
+        int lightThreads = Math.max(1, nThreads - heavyThreads);
+        this.nThreads = lightThreads + heavyThreads;
+        log.debug("Using " + lightThreads + " threads for jobs with a cost below " + heavyCost
+                + " and " + heavyThreads + " for heavier jobs");
+        startThreads(lightLane, lightThreads, "subset-job-");
+        startThreads(heavyLane, heavyThreads, "heavy-subset-job-");
+    }
+
+    private void startThreads(Lane lane, int nThreads, String threadPrefix) {
+        lane.nThreads = nThreads;
+        for (int i = 1; i <= nThreads; i++) {
+            new Thread(() -> runJobs(lane), threadPrefix + i).start();
+        }
+    }
+
+    private long getDeadline(long submitted, long cost) {
+        double doublings = Math.log(Math.max(1L, cost)) / Math.log(2.0);
+        return submitted + (long) (doublings * agingMillis);
+    }
+
+    private static int getCostClassIndex(long cost) {
+        for (int i = 0; i < COST_CLASS_LIMITS.length; i++) {
+            if (cost < COST_CLASS_LIMITS[i]) {
+                return i;
+            }
+        }
+        return COST_CLASS_LIMITS.length;
+    }
+
+    /**
+     * Adds a job to the queue
+     * 
+     * @param id
+     *            The ID of the job, which can be used to find its
+     *            {@link QueuePosition}
+     * @param job
+     *            The job to run
+     * @param cost
+     *            The estimated cost of the job. Only the relative costs of
+     *            jobs matter.
+     * @param user
+     *            The user who submitted the job
+     */
+    public synchronized void submit(String id, Runnable job, long cost, String user) {
+        if (shutdown) {
+            throw new IllegalStateException("The job scheduler has been shut down");
+        }
+        removeExpiredUsers();
+        UserState userState = users.computeIfAbsent(user, UserState::new);
+        userState.lastActive = System.currentTimeMillis();
+        ScheduledJob scheduledJob = new ScheduledJob(id, job, cost, userState);
+        queuedJobs.put(id, scheduledJob);
+        userState.queued++;
+        backlogCost += cost;
+        scheduledJob.costClass.jobQueued();
+        (cost >= heavyCost ? heavyLane : lightLane).add(scheduledJob);
+        notifyAll();
+    }
+
+    private void runJobs(Lane lane) {
+        while (true) {
+            ScheduledJob job;
+            synchronized (this) {
+                job = lane.next();
+                while (job == null) {
+                    if (shutdown && lane.isEmpty()) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    job = lane.next();
+                }
+                queuedJobs.remove(job.id);
+                lane.runningCost += job.cost;
+                job.user.queued--;
+                job.user.running++;
+                job.user.started++;
+                job.user.startedCost += job.cost;
+            }
+            long startTime = System.currentTimeMillis();
+            job.costClass.jobStarted(startTime - job.submitted);
+            try {
+                job.job.run();
+            } catch (RuntimeException e) {
+                log.error("Unexpected problem running job", e);
+            } finally {
+                synchronized (this) {
+                    long finishTime = System.currentTimeMillis();
+                    recentJobs.addLast(new long[] { finishTime, job.cost, finishTime - startTime });
+                    backlogCost -= job.cost;
+                    lane.runningCost -= job.cost;
+                    job.user.running--;
+                    job.user.lastActive = finishTime;
+                    /*
+                     * This user may now be able to run another job
+                     */
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The total estimated cost of all jobs which are queued or
+     *         running
+     */
+    public synchronized long getBacklogCost() {
+        return backlogCost;
+    }
+
+    /**
+     * @return The rate at which work is being completed when all threads are
+     *         busy, in cost per second, measured from recently finished jobs.
+     *         This is 0 if no jobs have finished recently.
+     */
+    public synchronized long getDrainRate() {
+        return (long) (1000.0 * getCostPerThreadMillis() * nThreads);
+    }
+
+    /*
+     * The cost completed per millisecond by each busy thread, or 0 if no
+     * jobs have finished recently
+     */
+    private double getCostPerThreadMillis() {
+        long cutoff = System.currentTimeMillis() - RATE_WINDOW_MILLIS;
+        long totalCost = 0L;
+        long totalRunMillis = 0L;
+        Iterator<long[]> iterator = recentJobs.iterator();
+        while (iterator.hasNext()) {
+            long[] finished = iterator.next();
+            if (finished[0] < cutoff) {
+                iterator.remove();
+            } else {
+                totalCost += finished[1];
+                totalRunMillis += finished[2];
+            }
+        }
+        if (totalRunMillis == 0L) {
+            return 0.0;
+        }
+        return (double) totalCost / totalRunMillis;
+    }
+
+    /**
+     * @param id
+     *            The ID of a job
+     * @return The position of the job in the queue, or <code>null</code> if
+     *         it is not queued (including if it is running)
+     */
+    public synchronized QueuePosition getQueuePosition(String id) {
+        ScheduledJob job = queuedJobs.get(id);
+        if (job == null) {
+            return null;
+        }
+        Lane lane = job.cost >= heavyCost ? heavyLane : lightLane;
+        return lane.getPosition(job.deadline, job.sequence);
+    }
+
+    /**
+     * Finds the positions of several jobs at once. This takes a single pass
+     * over the queue, rather than one for each job.
+     * 
+     * @param ids
+     *            The IDs of jobs
+     * @return The positions of those jobs which are queued (not running), by
+     *         ID
+     */
+    public synchronized Map<String, QueuePosition> getQueuePositions(Collection<String> ids) {
+        Set<String> queued = new HashSet<>();
+        for (String id : ids) {
+            if (queuedJobs.containsKey(id)) {
+                queued.add(id);
+            }
+        }
+        Map<String, QueuePosition> positions = new HashMap<>();
+        if (!queued.isEmpty()) {
+            lightLane.getPositions(queued, positions);
+            heavyLane.getPositions(queued, positions);
+        }
+        return positions;
+    }
+
+    /**
+     * @param cost
+     *            The cost of a job which has not been submitted
+     * @return The position which the job would have in the queue if it was
+     *         submitted now
+     */
+    public synchronized QueuePosition getQueuePosition(long cost) {
+        Lane lane = cost >= heavyCost ? heavyLane : lightLane;
+        return lane.getPosition(getDeadline(System.currentTimeMillis(), cost), Long.MAX_VALUE);
+    }
+
+    /**
+     * Estimates how long it will take to complete some work at the current
+     * drain rate
+     * 
+     * @param cost
+     *            The cost of the work
+     * @return The estimated time, in seconds, or -1 if there is no recent
+     *         measure of the drain rate
+     */
+    public long estimateSeconds(long cost) {
+        long drainRate = getDrainRate();
+        if (drainRate <= 0) {
+            return -1L;
+        }
+        return (cost + drainRate - 1) / drainRate;
+    }
+
+    /**
+     * @return Statistics for each range of job costs, in increasing order of
+     *         cost
+     */
+    public List<CostClass> getCostClasses() {
+        return costClasses;
+    }
+
+    /**
+     * @return A snapshot of the work done for each user who has a job queued
+     *         or running, or who has had one within the last day, ordered by
+     *         user
+     */
+    public synchronized List<UserShare> getUserShares() {
+        removeExpiredUsers();
+        long totalStartedCost = 0L;
+        for (UserState state : users.values()) {
+            totalStartedCost += state.startedCost;
+        }
+        List<UserShare> shares = new ArrayList<>();
+        for (UserState state : users.values()) {
+            shares.add(new UserShare(state, totalStartedCost));
+        }
+        return Collections.unmodifiableList(shares);
+    }
+
+    /*
+     * Forgets users who have had no jobs queued or running for
+     * USER_EXPIRY_MILLIS, so that the users map doesn't grow forever. Users
+     * with queued jobs are never removed, since their jobs refer to their
+     * state.
+     */
+    private void removeExpiredUsers() {
+        long cutoff = System.currentTimeMillis() - USER_EXPIRY_MILLIS;
+        Iterator<UserState> iterator = users.values().iterator();
+        while (iterator.hasNext()) {
+            UserState state = iterator.next();
+            if (state.isIdle() && state.lastActive < cutoff) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The cost at and above which jobs run on the heavy job threads
+     */
+    public long getHeavyCost() {
+        return heavyCost;
+    }
+
+    /**
+     * @return The maximum number of jobs which each user may have running at
+     *         once
+     */
+    public int getMaxRunningPerUser() {
+        return maxRunningPerUser;
+    }
+
+    /**
+     * Stops accepting new jobs. Jobs which have already been submitted will
+     * still run.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+}
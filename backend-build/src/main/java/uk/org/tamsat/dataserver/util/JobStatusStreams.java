@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the status of jobs as streams of Server-Sent Events, so that clients
+ * can follow a job without polling.
+ * 
+ * Streams are asynchronous, so they don't hold a request thread. A single
+ * thread looks up the status of every streamed job once a second, and sends
+ * an event whenever the status has changed. The stream is closed once the job
+ * has finished.
+ * 
+ * Writes are non-blocking, so a slow client can't hold up the others. A
+ * stream which is still sending earlier events is skipped, and brought
+ * up-to-date as soon as it can be written to again.
+ */
+public class JobStatusStreams {
+    private static final Logger log = LoggerFactory.getLogger(JobStatusStreams.class);
+
+    private static final long UPDATE_INTERVAL_MILLIS = 1000L;
+    /*
+     * Comments are sent at least this often, so that idle connections aren't
+     * closed by proxies
+     */
+    private static final long KEEPALIVE_MILLIS = 15000L;
+    /*
+     * Recorded as the last status sent once a job is known not to exist
+     */
+    private static final String NOT_FOUND = "notfound";
+
+    private static class Stream {
+        private final String jobId;
+        private final AsyncContext async;
+        private final ServletOutputStream out;
+        private String lastSent = null;
+        private long lastWrite = 0L;
+        private volatile boolean closed = false;
+
+        private Stream(String jobId, AsyncContext async, ServletOutputStream out) {
+            this.jobId = jobId;
+            this.async = async;
+            this.out = out;
+        }
+    }
+
+    private final Function<Collection<String>, Map<String, JSONObject>> statusLookup;
+    private final int maxStreams;
+    private final List<Stream> streams = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService updater;
+
+    /**
+     * @param statusLookup
+     *            Returns the status of each of the jobs with the given IDs, by
+     *            ID. Jobs which don't exist are left out. A job has finished
+     *            when its status has a <code>stage</code> of
+     *            <code>FINISHED</code>.
+     * @param maxStreams
+     *            The maximum number of streams which may be open at once
+     */
+    public JobStatusStreams(Function<Collection<String>, Map<String, JSONObject>> statusLookup,
+            int maxStreams) {
+        this.statusLookup = statusLookup;
+        this.maxStreams = maxStreams;
+        updater = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "job-status-streams");
+            thread.setDaemon(true);
+            return thread;
+        });
+        updater.scheduleWithFixedDelay(this::updateAll, UPDATE_INTERVAL_MILLIS,
+                UPDATE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts streaming the status of a job in response to a request
+     * 
+     * @param req
+     *            The request, which must support asynchronous processing
+     * @param resp
+     *            The response to stream events to
+     * @param jobId
+     *            The ID of the job
+     * @return <code>false</code> if too many streams are already open, in
+     *         which case nothing has been written to the response
+     */
+    public boolean open(HttpServletRequest req, HttpServletResponse resp, String jobId)
+            throws IOException {
+        if (streams.size() >= maxStreams) {
+            return false;
+        }
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0L);
+        Stream stream;
+        try {
+            stream = new Stream(jobId, async, resp.getOutputStream());
+        } catch (IOException | RuntimeException e) {
+            async.complete();
+            throw e;
+        }
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                streams.remove(stream);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                streams.remove(stream);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                streams.remove(stream);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        /*
+         * This is called as soon as the stream can be written to, so the
+         * current status is sent straight away, and again whenever a stream
+         * which was skipped can be written to
+         */
+        stream.out.setWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible() {
+                try {
+                    updater.execute(() -> update(stream));
+                } catch (RejectedExecutionException e) {
+                    /*
+                     * Shutting down
+                     */
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.debug("Closing status stream for job " + jobId, t);
+                close(stream);
+            }
+        });
+        /*
+         * Only added once writes are non-blocking, so that updates never
+         * block on it
+         */
+        streams.add(stream);
+        if (stream.closed) {
+            streams.remove(stream);
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of streams which are currently open
+     */
+    public int getOpenStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Closes all streams and stops sending updates
+     */
+    public void shutdown() {
+        updater.shutdownNow();
+        for (Stream stream : streams) {
+            close(stream);
+        }
+    }
+
+    private void updateAll() {
+        /*
+         * Look up every job at once, so that the queue is only examined once
+         */
+        Set<String> jobIds = new HashSet<>();
+        for (Stream stream : streams) {
+            if (!stream.closed && isReady(stream)) {
+                jobIds.add(stream.jobId);
+            }
+        }
+        if (jobIds.isEmpty()) {
+            return;
+        }
+        Map<String, JSONObject> statuses;
+        try {
+            statuses = statusLookup.apply(jobIds);
+        } catch (RuntimeException e) {
+            /*
+             * Try again next time, rather than stopping all updates
+             */
+            log.error("Problem looking up the status of streamed jobs", e);
+            return;
+        }
+        for (Stream stream : streams) {
+            if (jobIds.contains(stream.jobId)) {
+                update(stream, statuses.get(stream.jobId));
+            }
+        }
+    }
+
+    private void update(Stream stream) {
+        if (stream.closed) {
+            return;
+        }
+        JSONObject status;
+        try {
+            status = statusLookup.apply(Collections.singleton(stream.jobId)).get(stream.jobId);
+        } catch (RuntimeException e) {
+            log.error("Problem looking up the status of job " + stream.jobId, e);
+            return;
+        }
+        update(stream, status);
+    }
+
+    /**
+     * Sends the status of a job to a stream, if it has changed and the stream
+     * can be written to without blocking. This must only be called on the
+     * updater thread.
+     * 
+     * @param status
+     *            The current status of the job, or <code>null</code> if there
+     *            is no such job
+     */
+    private void update(Stream stream, JSONObject status) {
+        if (stream.closed) {
+            return;
+        }
+        try {
+            /*
+             * Skip streams which are still sending earlier events. They will
+             * be updated as soon as they can be written to.
+             */
+            if (!stream.out.isReady()) {
+                return;
+            }
+            String data;
+            String event;
+            boolean last;
+            if (status == null) {
+                data = NOT_FOUND;
+                event = "event: notfound\ndata: {}\n\n";
+                last = true;
+            } else {
+                data = status.toString();
+                event = "data: " + data + "\n\n";
+                last = "FINISHED".equals(status.optString("stage"));
+            }
+            if (!data.equals(stream.lastSent)) {
+                send(stream, event);
+                stream.lastSent = data;
+            } else if (System.currentTimeMillis() - stream.lastWrite > KEEPALIVE_MILLIS) {
+                send(stream, ": keepalive\n\n");
+            }
+            /*
+             * If the last event couldn't be sent straight away, close once it
+             * has been
+             */
+            if (last && stream.out.isReady()) {
+                close(stream);
+            }
+        } catch (IOException | RuntimeException e) {
+            /*
+             * Usually because the client has gone away
+             */
+            log.debug("Closing status stream for job " + stream.jobId, e);
+            close(stream);
+        }
+    }
+
+    private boolean isReady(Stream stream) {
+        try {
+            return stream.out.isReady();
+        } catch (RuntimeException e) {
+            log.debug("Closing status stream for job " + stream.jobId, e);
+            close(stream);
+            return false;
+        }
+    }
+
+    /*
+     * Writes an event without blocking. The stream must be ready.
+     */
+    private static void send(Stream stream, String event) throws IOException {
+        stream.out.write(event.getBytes(StandardCharsets.UTF_8));
+        if (stream.out.isReady()) {
+            stream.out.flush();
+        }
+        stream.lastWrite = System.currentTimeMillis();
+    }
+
+    private void close(Stream stream) {
+        stream.closed = true;
+        streams.remove(stream);
+        try {
+            stream.async.complete();
+        } catch (IllegalStateException e) {
+            /*
+             * Already completed
+             */
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.domain.TemporalDomain;
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+import uk.org.tamsat.dataserver.util.TamsatCatalogue.DatasetListener;
+
+/**
+ * Holds the serialised JSON responses to the metadata requests made by the
+ * subset form (the list of datasets, the list of countries, and the time range
+ * of each dataset), so that they are only built once.
+ * 
+ * Every response is stamped with the catalogue version it was built from.
+ * The version is incremented whenever a dataset is (re)loaded, so any
+ * response built before then is rebuilt the next time it is requested. Each
+ * response has a strong entity tag derived from its content, so clients can
+ * revalidate cheaply, and a refresh which doesn't change a response doesn't
+ * change its tag.
+ */
+public class MetadataCache implements DatasetListener {
+    /**
+     * A serialised JSON response
+     */
+    public static class CachedResponse {
+        private final long version;
+        private final byte[] body;
+        private final String etag;
+
+        private CachedResponse(long version, JSONObject json) {
+            this(version, json.toString());
+        }
+
+        private CachedResponse(long version, JSONArray json) {
+            this(version, json.toString());
+        }
+
+        private CachedResponse(long version, String json) {
+            this.version = version;
+            this.body = json.getBytes(StandardCharsets.UTF_8);
+            this.etag = "\"" + hash(body) + "\"";
+        }
+
+        /**
+         * @return The UTF-8 encoded JSON. This must not be modified.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+    }
+
+    private final TamsatCatalogue catalogue;
+    private final Map<String, CountryDefinition> countryBounds;
+
+    private final AtomicLong version = new AtomicLong();
+    /*
+     * The countries are fixed once they have been loaded, so this is never
+     * invalidated
+     */
+    private final CachedResponse countries;
+    private volatile CachedResponse datasets = null;
+    private volatile CachedResponse bootstrap = null;
+    private final Map<String, CachedResponse> times = new ConcurrentHashMap<>();
+
+    /**
+     * @param catalogue
+     *            The catalogue to describe. This will be registered as a
+     *            {@link DatasetListener} on it
+     * @param countryBounds
+     *            The available countries, or <code>null</code> if none are
+     *            available
+     */
+    public MetadataCache(TamsatCatalogue catalogue, Map<String, CountryDefinition> countryBounds) {
+        this.catalogue = catalogue;
+        this.countryBounds = countryBounds;
+        countries = new CachedResponse(0L, buildCountries());
+        catalogue.addDatasetListener(this);
+    }
+
+    @Override
+    public void datasetLoaded(Dataset dataset) {
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return The version of the catalogue which responses are currently
+     *         built from
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return A JSON object mapping country labels to their IDs
+     */
+    public CachedResponse getCountries() {
+        return countries;
+    }
+
+    /**
+     * @return A JSON array of single-entry objects mapping dataset IDs to
+     *         their titles, sorted by ID
+     */
+    public CachedResponse getDatasets() {
+        long current = version.get();
+        CachedResponse response = datasets;
+        if (response == null || response.version != current) {
+            response = new CachedResponse(current, buildDatasets());
+            datasets = response;
+        }
+        return response;
+    }
+
+    /**
+     * @param datasetId
+     *            The ID of the dataset
+     * @return A JSON object containing the start and end times of the
+     *         dataset, or <code>null</code> if it is not loaded
+     */
+    public CachedResponse getTimes(String datasetId) {
+        long current = version.get();
+        CachedResponse response = times.get(datasetId);
+        if (response == null || response.version != current) {
+            JSONObject json = buildTimes(datasetId);
+            if (json == null) {
+                return null;
+            }
+            response = new CachedResponse(current, json);
+            times.put(datasetId, response);
+        }
+        return response;
+    }
+
+    /**
+     * @return A JSON object containing everything which the subset form needs
+     *         in one response: <code>datasets</code> (as in
+     *         {@link #getDatasets()}), <code>countries</code> (as in
+     *         {@link #getCountries()}) and <code>times</code>, mapping each
+     *         loaded dataset ID to its times (as in {@link #getTimes(String)})
+     */
+    public CachedResponse getBootstrap() {
+        long current = version.get();
+        CachedResponse response = bootstrap;
+        if (response == null || response.version != current) {
+            JSONObject json = new JSONObject();
+            json.put("datasets", buildDatasets());
+            json.put("countries", buildCountries());
+            JSONObject allTimes = new JSONObject();
+            for (Dataset dataset : catalogue.getAllDatasets()) {
+                JSONObject datasetTimes = buildTimes(dataset.getId());
+                if (datasetTimes != null) {
+                    allTimes.put(dataset.getId(), datasetTimes);
+                }
+            }
+            json.put("times", allTimes);
+            response = new CachedResponse(current, json);
+            bootstrap = response;
+        }
+        return response;
+    }
+
+    private JSONObject buildCountries() {
+        JSONObject json = new JSONObject();
+        if (countryBounds != null) {
+            for (Entry<String, CountryDefinition> country : countryBounds.entrySet()) {
+                json.put(country.getValue().getLabel(), country.getKey());
+            }
+        }
+        return json;
+    }
+
+    private JSONArray buildDatasets() {
+        JSONArray json = new JSONArray();
+        /*
+         * Sort the datasets by ID. This allows the order to be configured by
+         * simply giving the IDs a numerical prefix.
+         */
+        List<String> datasetIds = new ArrayList<>();
+        for (Dataset ds : catalogue.getAllDatasets()) {
+            datasetIds.add(ds.getId());
+        }
+        Collections.sort(datasetIds);
+        for (String dsId : datasetIds) {
+            JSONObject dsObj = new JSONObject();
+            dsObj.put(dsId, catalogue.getDatasetInfo(dsId).getTitle());
+            json.put(dsObj);
+        }
+        return json;
+    }
+
+    private JSONObject buildTimes(String datasetId) {
+        Dataset dataset = catalogue.getDatasetFromId(datasetId);
+        if (dataset == null) {
+            return null;
+        }
+        DateTime startTime = null;
+        DateTime endTime = null;
+        for (String varId : dataset.getVariableIds()) {
+            TemporalDomain tDomain = dataset.getVariableMetadata(varId).getTemporalDomain();
+            Extent<DateTime> tExtent = tDomain.getExtent();
+            if (startTime == null || tExtent.getLow().isBefore(startTime)) {
+                startTime = tExtent.getLow();
+            }
+            if (endTime == null || tExtent.getHigh().isAfter(endTime)) {
+                endTime = tExtent.getHigh();
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put("starttime", TimeUtils.dateTimeToISO8601(startTime));
+        json.put("endtime", TimeUtils.dateTimeToISO8601(endTime));
+        return json;
+    }
+
+    private static String hash(byte[] body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * Every Java implementation must support SHA-256
+             */
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
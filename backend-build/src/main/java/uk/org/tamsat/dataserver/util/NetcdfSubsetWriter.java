@@ -0,0 +1,677 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.NetcdfFileWriter.Version;
+import ucar.nc2.Variable;
+import ucar.nc2.jni.netcdf.Nc4Iosp;
+import ucar.nc2.write.Nc4Chunking;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridFeatureWrite;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.NetcdfOutputInfo;
+
+/**
+ * Writes a {@link GridFeature} to a NetCDF file, with the same layout as
+ * {@link CdmGridFeatureWrite}, but with configurable chunking and compression.
+ * 
+ * When the native NetCDF-4 library is available, the file is written as
+ * NetCDF-4 with each data variable chunked and deflated. The default chunk
+ * shape is long in time and small in space, which suits users extracting
+ * timeseries from the downloaded files.
+ * 
+ * Subsets can be written directly from a dataset, in which case the output
+ * file is defined up front and the data is then read, masked and written one
+ * time slab at a time. Only one slab is held in memory at once, so this can
+ * write subsets which are far larger than the heap.
+ * 
+ * When the native library is not available, an uncompressed NetCDF-3 file is
+ * written instead. NetCDF-3 has no 64-bit integer type, so in this case the
+ * time variable is written as doubles rather than longs.
+ */
+public class NetcdfSubsetWriter {
+    private static final Logger log = LoggerFactory.getLogger(NetcdfSubsetWriter.class);
+
+    private static final float FILL_VALUE = Float.NEGATIVE_INFINITY;
+
+    private static Boolean netcdf4Available = null;
+
+    private final int deflateLevel;
+    private final boolean shuffle;
+    private final int timeChunk;
+    private final int latChunk;
+    private final int lonChunk;
+
+    /**
+     * @param outputInfo
+     *            The chunking and compression settings to use
+     */
+    public NetcdfSubsetWriter(NetcdfOutputInfo outputInfo) {
+        this(outputInfo.getDeflateLevel(), outputInfo.isShuffle(), outputInfo.getTimeChunk(),
+                outputInfo.getLatChunk(), outputInfo.getLonChunk());
+    }
+
+    /**
+     * @param deflateLevel
+     *            The deflate level, from 0 (no compression) to 9
+     * @param shuffle
+     *            Whether to apply the shuffle filter before compressing
+     * @param timeChunk
+     *            The number of timesteps in each chunk
+     * @param latChunk
+     *            The number of latitude points in each chunk
+     * @param lonChunk
+     *            The number of longitude points in each chunk
+     */
+    public NetcdfSubsetWriter(int deflateLevel, boolean shuffle, int timeChunk, int latChunk,
+            int lonChunk) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("Deflate level must be between 0 and 9");
+        }
+        if (timeChunk < 1 || latChunk < 1 || lonChunk < 1) {
+            throw new IllegalArgumentException("Chunk sizes must be positive");
+        }
+        this.deflateLevel = deflateLevel;
+        this.shuffle = shuffle;
+        this.timeChunk = timeChunk;
+        this.latChunk = latChunk;
+        this.lonChunk = lonChunk;
+    }
+
+    /**
+     * @return Whether the native NetCDF-4 library is available. If not, output
+     *         will be written as uncompressed NetCDF-3.
+     */
+    public static synchronized boolean isNetcdf4Available() {
+        if (netcdf4Available == null) {
+            try {
+                netcdf4Available = Nc4Iosp.isClibraryPresent();
+            } catch (LinkageError e) {
+                log.warn("Could not load the NetCDF-4 library", e);
+                netcdf4Available = false;
+            }
+            if (!netcdf4Available) {
+                log.warn("NetCDF-4 library not present.  NetCDF output will not be compressed");
+            }
+        }
+        return netcdf4Available;
+    }
+
+    /**
+     * @param netcdf4
+     *            Whether the output will be written as NetCDF-4
+     * @return A description of everything which affects the files written
+     *         (other than the data itself), so that results written with
+     *         different settings can be told apart
+     */
+    public String getSettings(boolean netcdf4) {
+        if (!netcdf4) {
+            return "netcdf3";
+        }
+        return "netcdf4;deflate=" + deflateLevel + ";shuffle=" + shuffle + ";chunks="
+                + timeChunk + "," + latChunk + "," + lonChunk;
+    }
+
+    /**
+     * Writes a {@link GridFeature} to file, as NetCDF-4 if possible
+     * 
+     * @param feature
+     *            The {@link GridFeature} to write
+     * @param outputFile
+     *            The file to write to
+     * @param cellsToMask
+     *            The horizontal grid cells which should be written as missing
+     *            data. May be <code>null</code>
+     */
+    public void write(GridFeature feature, File outputFile, Set<GridCoordinates2D> cellsToMask)
+            throws IOException, InvalidRangeException {
+        write(feature, outputFile, cellsToMask, isNetcdf4Available());
+    }
+
+    /**
+     * Writes a {@link GridFeature} to file
+     * 
+     * @param feature
+     *            The {@link GridFeature} to write
+     * @param outputFile
+     *            The file to write to
+     * @param cellsToMask
+     *            The horizontal grid cells which should be written as missing
+     *            data. May be <code>null</code>
+     * @param netcdf4
+     *            <code>true</code> to write chunked and compressed NetCDF-4,
+     *            <code>false</code> to write uncompressed NetCDF-3
+     */
+    public void write(GridFeature feature, File outputFile, Set<GridCoordinates2D> cellsToMask,
+            boolean netcdf4) throws IOException, InvalidRangeException {
+        if (!isSupported(feature)) {
+            /*
+             * Leave anything unusual to EDAL, which will either write it or
+             * throw an appropriate exception
+             */
+            CdmGridFeatureWrite.gridFeatureToNetCDF(feature, outputFile, cellsToMask);
+            return;
+        }
+        TimeAxis tAxis = feature.getDomain().getTimeAxis();
+        SlabFileWriter writer = new SlabFileWriter(feature,
+                tAxis == null ? null : tAxis.getCoordinateValues(), cellsToMask, outputFile,
+                netcdf4, timeChunk);
+        try {
+            writer.writeSlab(feature, 0);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Extracts a subset of a dataset and writes it to file, as NetCDF-4 if
+     * possible. Data is read and written one time slab at a time, so memory
+     * use does not depend on the length of the requested time range.
+     * 
+     * @param dataset
+     *            The {@link GriddedDataset} to read data from
+     * @param varIds
+     *            The variables to write
+     * @param bbox
+     *            The {@link BoundingBox} to extract
+     * @param timeRange
+     *            The time range to extract
+     * @param cellsToMask
+     *            Calculates the horizontal grid cells which should be written
+     *            as missing data from the grid of the subset. May be
+     *            <code>null</code>
+     * @param outputFile
+     *            The file to write to
+     */
+    public void write(GriddedDataset dataset, Set<String> varIds, BoundingBox bbox,
+            Extent<DateTime> timeRange,
+            Function<HorizontalGrid, Set<GridCoordinates2D>> cellsToMask, File outputFile)
+            throws EdalException, IOException, InvalidRangeException {
+        write(dataset, varIds, bbox, timeRange, cellsToMask, outputFile, isNetcdf4Available());
+    }
+
+    /**
+     * Extracts a subset of a dataset and writes it to file. Data is read and
+     * written one time slab at a time, so memory use does not depend on the
+     * length of the requested time range.
+     * 
+     * @param dataset
+     *            The {@link GriddedDataset} to read data from
+     * @param varIds
+     *            The variables to write
+     * @param bbox
+     *            The {@link BoundingBox} to extract
+     * @param timeRange
+     *            The time range to extract
+     * @param cellsToMask
+     *            Calculates the horizontal grid cells which should be written
+     *            as missing data from the grid of the subset. May be
+     *            <code>null</code>
+     * @param outputFile
+     *            The file to write to
+     * @param netcdf4
+     *            <code>true</code> to write chunked and compressed NetCDF-4,
+     *            <code>false</code> to write uncompressed NetCDF-3
+     */
+    public void write(GriddedDataset dataset, Set<String> varIds, BoundingBox bbox,
+            Extent<DateTime> timeRange,
+            Function<HorizontalGrid, Set<GridCoordinates2D>> cellsToMask, File outputFile,
+            boolean netcdf4) throws EdalException, IOException, InvalidRangeException {
+        write(dataset, varIds, bbox, timeRange, cellsToMask, outputFile, netcdf4, null);
+    }
+
+    /**
+     * Extracts a subset of a dataset and writes it to file, reporting
+     * progress as each time slab is written
+     * 
+     * @param dataset
+     *            The {@link GriddedDataset} to read data from
+     * @param varIds
+     *            The variables to write
+     * @param bbox
+     *            The {@link BoundingBox} to extract
+     * @param timeRange
+     *            The time range to extract
+     * @param cellsToMask
+     *            Calculates the horizontal grid cells which should be written
+     *            as missing data from the grid of the subset. May be
+     *            <code>null</code>
+     * @param outputFile
+     *            The file to write to
+     * @param netcdf4
+     *            <code>true</code> to write chunked and compressed NetCDF-4,
+     *            <code>false</code> to write uncompressed NetCDF-3
+     * @param progress
+     *            The {@link JobProgress} to update, or <code>null</code>
+     */
+    public void write(GriddedDataset dataset, Set<String> varIds, BoundingBox bbox,
+            Extent<DateTime> timeRange,
+            Function<HorizontalGrid, Set<GridCoordinates2D>> cellsToMask, File outputFile,
+            boolean netcdf4, JobProgress progress)
+            throws EdalException, IOException, InvalidRangeException {
+        /*
+         * Align the slabs with the chunks, so that no chunk is split between
+         * two slabs. If a whole time chunk does not fit in a slab, the chunks
+         * are shortened to the slab length instead.
+         */
+        TimeSlabReader slabReader = new TimeSlabReader(dataset, varIds, bbox, timeRange,
+                TimeSlabReader.DEFAULT_SLAB_VALUES, 1, netcdf4 ? timeChunk : 1);
+        GridFeature slab = slabReader.readSlab(0);
+        HorizontalGrid grid = slab.getDomain().getHorizontalGrid();
+        Set<GridCoordinates2D> maskedCells = cellsToMask == null ? null : cellsToMask.apply(grid);
+        if (!isSupported(slab)) {
+            CdmGridFeatureWrite.gridFeatureToNetCDF(
+                    dataset.subsetFeatures(varIds, bbox, null, timeRange), outputFile,
+                    maskedCells);
+            return;
+        }
+
+        TimeAxis tAxis = slabReader.getTimeAxis();
+        List<DateTime> times = null;
+        if (tAxis != null && slab.getDomain().getTimeAxis() != null) {
+            times = tAxis.getCoordinateValues().subList(slabReader.getFirstIndex(),
+                    slabReader.getLastIndex() + 1);
+        }
+        SlabFileWriter writer = new SlabFileWriter(slab, times, maskedCells, outputFile, netcdf4,
+                Math.min(timeChunk, slabReader.getSlabLength()));
+        try {
+            writer.writeSlab(slab, 0);
+            if (progress != null) {
+                progress.addTimesteps(slabReader.getSlabSize(0));
+            }
+            for (int s = 1; s < slabReader.getSlabCount(); s++) {
+                /*
+                 * Release the previous slab before reading the next
+                 */
+                slab = null;
+                slab = slabReader.readSlab(s);
+                writer.writeSlab(slab, s * slabReader.getSlabLength());
+                if (progress != null) {
+                    progress.addTimesteps(slabReader.getSlabSize(s));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return Whether the given feature can be written by this class, rather
+     *         than needing to be passed to {@link CdmGridFeatureWrite}
+     */
+    private static boolean isSupported(GridFeature feature) {
+        HorizontalGrid grid = feature.getDomain().getHorizontalGrid();
+        return grid instanceof RectilinearGrid
+                && GISUtils.isDefaultGeographicCRS(grid.getCoordinateReferenceSystem());
+    }
+
+    /**
+     * An open output file, to which time slabs of data can be written
+     */
+    private class SlabFileWriter {
+        private final NetcdfFileWriter writer;
+        private final List<Variable> dataVars = new ArrayList<>();
+        private final boolean[] masked;
+        private final int xSize;
+        private final int ySize;
+        private final int zSize;
+        private final boolean hasT;
+        private final boolean hasZ;
+        private final int tStep;
+        private final int yStep;
+        private final int xStep;
+
+        /**
+         * Defines and creates the output file, and writes the coordinate
+         * variables
+         * 
+         * @param template
+         *            A {@link GridFeature} with the same variables, horizontal
+         *            grid and vertical axis as the data which will be written
+         * @param times
+         *            All of the times which will be written, or
+         *            <code>null</code> if there is no time axis
+         * @param cellsToMask
+         *            The horizontal grid cells which should be written as
+         *            missing data. May be <code>null</code>
+         * @param outputFile
+         *            The file to write to
+         * @param netcdf4
+         *            Whether to write NetCDF-4 rather than NetCDF-3
+         * @param tChunk
+         *            The number of timesteps in each chunk
+         */
+        SlabFileWriter(GridFeature template, List<DateTime> times,
+                Set<GridCoordinates2D> cellsToMask, File outputFile, boolean netcdf4,
+                int tChunk) throws IOException, InvalidRangeException {
+            RectilinearGrid grid = (RectilinearGrid) template.getDomain().getHorizontalGrid();
+            VerticalAxis zAxis = template.getDomain().getVerticalAxis();
+            xSize = grid.getXSize();
+            ySize = grid.getYSize();
+            zSize = zAxis == null ? 1 : zAxis.size();
+            hasT = times != null;
+            hasZ = zAxis != null;
+            int tSize = hasT ? times.size() : 1;
+
+            /*
+             * Flag the masked cells once, rather than looking them up for
+             * every timestep
+             */
+            masked = new boolean[xSize * ySize];
+            if (cellsToMask != null) {
+                for (GridCoordinates2D cell : cellsToMask) {
+                    if (cell.getX() >= 0 && cell.getX() < xSize && cell.getY() >= 0
+                            && cell.getY() < ySize) {
+                        masked[cell.getY() * xSize + cell.getX()] = true;
+                    }
+                }
+            }
+
+            /*
+             * NetCDF-4 data is written one chunk at a time, so that each chunk
+             * is compressed exactly once, however small the chunk cache is.
+             * NetCDF-3 data is contiguous, so is written a level at a time.
+             */
+            tStep = netcdf4 ? Math.min(tChunk, tSize) : 1;
+            yStep = netcdf4 ? Math.min(latChunk, ySize) : ySize;
+            xStep = netcdf4 ? Math.min(lonChunk, xSize) : xSize;
+
+            writer = netcdf4
+                    ? NetcdfFileWriter.createNew(Version.netcdf4, outputFile.getAbsolutePath(),
+                            new SubsetChunking(tChunk))
+                    : NetcdfFileWriter.createNew(Version.netcdf3, outputFile.getAbsolutePath());
+            try {
+                define(template, grid, zAxis, times, netcdf4);
+            } catch (IOException | InvalidRangeException | RuntimeException e) {
+                writer.close();
+                throw e;
+            }
+        }
+
+        private void define(GridFeature template, RectilinearGrid grid, VerticalAxis zAxis,
+                List<DateTime> times, boolean netcdf4) throws IOException, InvalidRangeException {
+            writer.setFill(false);
+            if (!netcdf4) {
+                writer.setLargeFile(true);
+            }
+
+            List<Dimension> dims = new ArrayList<>();
+            if (hasT) {
+                dims.add(writer.addDimension(null, "time", times.size()));
+            }
+            if (hasZ) {
+                dims.add(writer.addDimension(null, "z", zSize));
+            }
+            dims.add(writer.addDimension(null, "lat", ySize));
+            dims.add(writer.addDimension(null, "lon", xSize));
+
+            /*
+             * Coordinate variables
+             */
+            Variable latVar = writer.addVariable(null, "lat", DataType.FLOAT, "lat");
+            latVar.addAttribute(new Attribute("units", "degrees_north"));
+            Array latVals = Array.factory(DataType.FLOAT, new int[] { ySize });
+            for (int j = 0; j < ySize; j++) {
+                latVals.setFloat(j, grid.getYAxis().getCoordinateValue(j).floatValue());
+            }
+            Variable lonVar = writer.addVariable(null, "lon", DataType.FLOAT, "lon");
+            lonVar.addAttribute(new Attribute("units", "degrees_east"));
+            Array lonVals = Array.factory(DataType.FLOAT, new int[] { xSize });
+            for (int i = 0; i < xSize; i++) {
+                lonVals.setFloat(i, grid.getXAxis().getCoordinateValue(i).floatValue());
+            }
+
+            Variable zVar = null;
+            Array zVals = null;
+            if (hasZ) {
+                zVar = writer.addVariable(null, "z", DataType.FLOAT, "z");
+                zVar.addAttribute(new Attribute("units", zAxis.getVerticalCrs().getUnits()));
+                zVar.addAttribute(new Attribute("positive",
+                        zAxis.getVerticalCrs().isPositiveUpwards() ? "up" : "down"));
+                zVals = Array.factory(DataType.FLOAT, new int[] { zSize });
+                for (int k = 0; k < zSize; k++) {
+                    zVals.setFloat(k, zAxis.getCoordinateValue(k).floatValue());
+                }
+            }
+
+            Variable timeVar = null;
+            Array timeVals = null;
+            if (hasT) {
+                DataType timeType = netcdf4 ? DataType.LONG : DataType.DOUBLE;
+                timeVar = writer.addVariable(null, "time", timeType, "time");
+                timeVar.addAttribute(new Attribute("units", "seconds since 1970-1-1 0:0"));
+                timeVals = Array.factory(timeType, new int[] { times.size() });
+                for (int t = 0; t < times.size(); t++) {
+                    timeVals.setLong(t, times.get(t).getMillis() / 1000L);
+                }
+            }
+
+            /*
+             * Data variables
+             */
+            for (String varId : template.getVariableIds()) {
+                Variable var = writer.addVariable(null, varId, DataType.FLOAT, dims);
+                dataVars.add(var);
+                Parameter parameter = template.getParameter(varId);
+                addAttribute(writer, var, "units", parameter.getUnits());
+                addAttribute(writer, var, "standard_name", parameter.getStandardName());
+                addAttribute(writer, var, "long_name", parameter.getDescription());
+                writer.addVariableAttribute(var, new Attribute("_FillValue", FILL_VALUE));
+                for (Entry<Object, Object> property : template.getFeatureProperties()
+                        .entrySet()) {
+                    if (property.getKey() instanceof String) {
+                        String key = (String) property.getKey();
+                        if (property.getValue() instanceof String) {
+                            writer.addVariableAttribute(var,
+                                    new Attribute(key, (String) property.getValue()));
+                        } else if (property.getValue() instanceof Number) {
+                            writer.addVariableAttribute(var,
+                                    new Attribute(key, (Number) property.getValue()));
+                        }
+                    }
+                }
+            }
+
+            writer.addGroupAttribute(null, new Attribute("Conventions", "CF-1.6"));
+            writer.addGroupAttribute(null,
+                    new Attribute("CreatedBy", "TAMSAT Data Subset Service"));
+
+            writer.create();
+
+            writer.write(latVar, latVals);
+            writer.write(lonVar, lonVals);
+            if (zVar != null) {
+                writer.write(zVar, zVals);
+            }
+            if (timeVar != null) {
+                writer.write(timeVar, timeVals);
+            }
+        }
+
+        /**
+         * Writes the data from a single time slab
+         * 
+         * @param slab
+         *            A {@link GridFeature} with the same variables and domain
+         *            as the template, apart from the time axis
+         * @param tOffset
+         *            The index in the output file of the first timestep in the
+         *            slab
+         */
+        void writeSlab(GridFeature slab, int tOffset) throws IOException, InvalidRangeException {
+            HorizontalGrid grid = slab.getDomain().getHorizontalGrid();
+            if (grid.getXSize() != xSize || grid.getYSize() != ySize) {
+                throw new IOException("Time slabs do not share a horizontal grid");
+            }
+            TimeAxis slabTimes = slab.getDomain().getTimeAxis();
+            int tSize = hasT ? slabTimes.size() : 1;
+            for (Variable var : dataVars) {
+                Array4D<Number> values = slab.getValues(var.getShortName());
+                for (int tStart = 0; tStart < tSize; tStart += tStep) {
+                    int nT = Math.min(tStep, tSize - tStart);
+                    for (int yStart = 0; yStart < ySize; yStart += yStep) {
+                        int nY = Math.min(yStep, ySize - yStart);
+                        for (int xStart = 0; xStart < xSize; xStart += xStep) {
+                            int nX = Math.min(xStep, xSize - xStart);
+                            Array data = Array.factory(DataType.FLOAT,
+                                    shape(hasT, hasZ, nT, zSize, nY, nX));
+                            int index = 0;
+                            for (int t = tStart; t < tStart + nT; t++) {
+                                for (int z = 0; z < zSize; z++) {
+                                    for (int j = yStart; j < yStart + nY; j++) {
+                                        for (int i = xStart; i < xStart + nX; i++) {
+                                            Number value = values.get(t, z, j, i);
+                                            if (value == null || masked[j * xSize + i]) {
+                                                data.setFloat(index++, FILL_VALUE);
+                                            } else {
+                                                data.setFloat(index++, value.floatValue());
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                            writer.write(var,
+                                    shape(hasT, hasZ, tOffset + tStart, 0, yStart, xStart),
+                                    data);
+                        }
+                    }
+                }
+            }
+        }
+
+        void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Builds a shape or origin array for a data variable, which has time and
+     * vertical dimensions only if the feature does
+     */
+    private static int[] shape(boolean hasTime, boolean hasZ, int t, int z, int y, int x) {
+        int[] shape = new int[2 + (hasTime ? 1 : 0) + (hasZ ? 1 : 0)];
+        int d = 0;
+        if (hasTime) {
+            shape[d++] = t;
+        }
+        if (hasZ) {
+            shape[d++] = z;
+        }
+        shape[d++] = y;
+        shape[d] = x;
+        return shape;
+    }
+
+    private static void addAttribute(NetcdfFileWriter writer, Variable var, String name,
+            String value) {
+        if (value != null) {
+            writer.addVariableAttribute(var, new Attribute(name, value));
+        }
+    }
+
+    /**
+     * Chunks and compresses the data variables according to the configured
+     * settings. Coordinate variables are small, so are left contiguous.
+     */
+    private class SubsetChunking implements Nc4Chunking {
+        private final int tChunk;
+
+        SubsetChunking(int tChunk) {
+            this.tChunk = tChunk;
+        }
+
+        @Override
+        public boolean isChunked(Variable v) {
+            return v.getRank() > 1;
+        }
+
+        @Override
+        public long[] computeChunking(Variable v) {
+            long[] chunks = new long[v.getRank()];
+            for (int d = 0; d < chunks.length; d++) {
+                Dimension dim = v.getDimension(d);
+                int chunk;
+                switch (dim.getShortName()) {
+                case "time":
+                    chunk = tChunk;
+                    break;
+                case "lat":
+                    chunk = latChunk;
+                    break;
+                case "lon":
+                    chunk = lonChunk;
+                    break;
+                default:
+                    chunk = 1;
+                }
+                chunks[d] = Math.min(chunk, dim.getLength());
+            }
+            return chunks;
+        }
+
+        @Override
+        public int getDeflateLevel(Variable v) {
+            return deflateLevel;
+        }
+
+        @Override
+        public boolean isShuffle(Variable v) {
+            return shuffle;
+        }
+    }
+}
@@ -0,0 +1,427 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.org.tamsat.dataserver.SubsetRequestParams;
+
+/**
+ * A cache of completed subset results, stored as files in a single directory.
+ * 
+ * Each file is named by a key which is a hash of everything which determines
+ * its contents (see
+ * {@link #createKey(SubsetRequestParams, GriddedDataset, String, String)}), so that
+ * identical requests can be served from the same file, regardless of who made
+ * them.
+ * 
+ * The total size of the cache is limited. When it is exceeded, the least
+ * recently used results are deleted, and any registered
+ * {@link EvictionListener} is notified so that it can forget about them.
+ * 
+ * Result files are never modified once they are in the cache, so that their
+ * size and modification time can validate resumed downloads. How recently
+ * each was used is therefore kept in memory, and saved to a separate file
+ * whenever a result is added and by {@link #saveAccessOrder()}.
+ */
+public class ResultCache {
+    private static final Logger log = LoggerFactory.getLogger(ResultCache.class);
+
+    /**
+     * Receives notifications when results are removed from the cache
+     */
+    public static interface EvictionListener {
+        /**
+         * Called when a result has been evicted. The file will already have
+         * been deleted.
+         * 
+         * @param file
+         *            The location of the result which was evicted
+         */
+        public void resultEvicted(File file);
+    }
+
+    /*
+     * Prefix for keys of results which can't be shared with other requests.
+     * These never collide with hashes, since those are pure hex
+     */
+    private static final String UNSHARED_PREFIX = "job-";
+    /*
+     * The keys of the results, least recently used first. Neither hashes nor
+     * unshared keys start with a dot.
+     */
+    private static final String ACCESS_ORDER_FILENAME = ".access-order";
+
+    private final File cacheDir;
+    private final File accessOrderFile;
+    private final long maxSizeBytes;
+    /*
+     * Key to result file, in access order
+     */
+    private final LinkedHashMap<String, File> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes = 0L;
+
+    private long hits = 0L;
+    private long misses = 0L;
+    private long evictions = 0L;
+
+    private EvictionListener evictionListener = null;
+
+    /**
+     * Creates a cache, adopting any results which are already in the cache
+     * directory from a previous session
+     * 
+     * @param cacheDir
+     *            The directory to store results in
+     * @param maxSizeBytes
+     *            The maximum total size of all results
+     */
+    public ResultCache(File cacheDir, long maxSizeBytes) throws IOException {
+        this.cacheDir = cacheDir;
+        this.accessOrderFile = new File(cacheDir, ACCESS_ORDER_FILENAME);
+        this.maxSizeBytes = maxSizeBytes;
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create cache directory " + cacheDir);
+        }
+
+        Map<String, File> existing = new HashMap<>();
+        File[] files = cacheDir
+                .listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+        if (files != null) {
+            /*
+             * Any results missing from the saved order are treated as the
+             * least recently used, oldest first
+             */
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                existing.put(file.getName(), file);
+            }
+        }
+        List<String> order = new ArrayList<>();
+        if (accessOrderFile.exists()) {
+            try {
+                order = Files.readAllLines(accessOrderFile.toPath(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                log.warn("Could not read the access order of the result cache", e);
+            }
+        }
+        Set<String> ordered = new HashSet<>(order);
+        if (files != null) {
+            for (File file : files) {
+                if (!ordered.contains(file.getName())) {
+                    results.put(file.getName(), file);
+                }
+            }
+        }
+        for (String key : order) {
+            File file = existing.get(key);
+            if (file != null) {
+                results.put(key, file);
+            }
+        }
+        for (File file : results.values()) {
+            sizeBytes += file.length();
+        }
+        log.debug("Result cache contains " + results.size() + " results (" + sizeBytes
+                + " bytes)");
+    }
+
+    public synchronized void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Retrieves a result from the cache, marking it as recently used
+     * 
+     * @param key
+     *            The key of the result. May be <code>null</code>, in which case
+     *            this counts as a miss.
+     * @return The file containing the result, or <code>null</code> if it is not
+     *         present
+     */
+    public synchronized File get(String key) {
+        File file = key == null ? null : results.get(key);
+        if (file != null && file.exists()) {
+            hits++;
+            return file;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Checks whether a result is in the cache, without marking it as recently
+     * used or counting it as a hit or miss
+     * 
+     * @param key
+     *            The key of the result. May be <code>null</code>
+     * @return Whether a result is present for the key
+     */
+    public synchronized boolean contains(String key) {
+        /*
+         * get() would move the result to the end of the access order
+         */
+        return key != null && results.containsKey(key) && new File(cacheDir, key).exists();
+    }
+
+    /**
+     * Marks a result as recently used, without affecting the hit/miss counts
+     * 
+     * @param file
+     *            The file returned from {@link #get(String)} or
+     *            {@link #put(String, File)}
+     */
+    public synchronized void touch(File file) {
+        /*
+         * Moves it to the end of the access order
+         */
+        results.get(file.getName());
+    }
+
+    /**
+     * Moves a newly-generated result into the cache, evicting older results
+     * if the cache is now too large.
+     * 
+     * @param key
+     *            The key to store the result under
+     * @param result
+     *            The file containing the result. This will be moved into the
+     *            cache
+     * @return The new location of the result
+     */
+    public synchronized File put(String key, File result) throws IOException {
+        File cached = new File(cacheDir, key);
+        if (!result.equals(cached)) {
+            Files.move(result.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        File previous = results.remove(key);
+        if (previous != null) {
+            sizeBytes -= previous.length();
+        }
+        results.put(key, cached);
+        sizeBytes += cached.length();
+
+        /*
+         * Evict least-recently-used results until we are under budget. The
+         * result we have just added is the most recent, so is only evicted if
+         * it is too large to fit on its own.
+         */
+        Iterator<Entry<String, File>> iterator = results.entrySet().iterator();
+        while (sizeBytes > maxSizeBytes && results.size() > 1 && iterator.hasNext()) {
+            Entry<String, File> eldest = iterator.next();
+            File file = eldest.getValue();
+            long length = file.length();
+            iterator.remove();
+            if (!file.delete() && file.exists()) {
+                log.error("Could not delete cached result " + file);
+            }
+            sizeBytes -= length;
+            evictions++;
+            log.debug("Evicted cached result " + eldest.getKey() + " (" + length + " bytes)");
+            if (evictionListener != null) {
+                evictionListener.resultEvicted(file);
+            }
+        }
+        saveAccessOrder();
+        return cached;
+    }
+
+    /**
+     * Saves how recently each result was used, so that the least recently
+     * used results are still evicted first after a restart. This is done
+     * whenever a result is added, and should also be done on shutdown.
+     */
+    public synchronized void saveAccessOrder() {
+        File tmpFile = new File(cacheDir, ACCESS_ORDER_FILENAME + ".tmp");
+        try {
+            Files.write(tmpFile.toPath(), results.keySet(), StandardCharsets.UTF_8);
+            Files.move(tmpFile.toPath(), accessOrderFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not save the access order of the result cache", e);
+        }
+    }
+
+    /**
+     * @param jobId
+     *            The ID of the job which produced a result
+     * @return A key to store a result under which will never be matched by
+     *         another request. This is used when the contents of a result
+     *         could not be determined in advance (e.g. when the dataset was not
+     *         loaded), so that it still counts towards the size of the cache.
+     */
+    public static String getUnsharedKey(String jobId) {
+        return UNSHARED_PREFIX + jobId;
+    }
+
+    /**
+     * Creates a key which identifies the contents of the result of a request.
+     * 
+     * The bounding box and time range are snapped to the indices of the
+     * dataset which they select, in the same way as when the data is
+     * extracted, so that requests which differ only slightly will share a key.
+     * 
+     * @param params
+     *            The request
+     * @param dataset
+     *            The dataset which will be subset
+     * @param datasetVersion
+     *            Identifies the contents of the dataset (see
+     *            {@link TamsatCatalogue#getDatasetVersion(String)}), so that
+     *            results are still found after a restart or rescan, but not
+     *            once the data has changed
+     * @param netcdfSettings
+     *            For NetCDF requests, the settings which the output will be
+     *            written with (see {@link NetcdfSubsetWriter#getSettings}).
+     *            Ignored for CSV requests.
+     * @return A key to use for storing the result of the request
+     */
+    public static String createKey(SubsetRequestParams params, GriddedDataset dataset,
+            String datasetVersion, String netcdfSettings) {
+        StringBuilder canonical = new StringBuilder();
+        canonical.append("dataset=" + dataset.getId());
+        canonical.append(";version=" + datasetVersion);
+        /*
+         * Keys outlive the configuration, which may change the variables
+         */
+        canonical.append(";vars=" + new TreeSet<>(dataset.getVariableIds()));
+        canonical.append(";format=" + (params.isNetCDF() ? "netcdf:" + netcdfSettings : "csv"));
+
+        GridVariableMetadata metadata = dataset
+                .getVariableMetadata(dataset.getVariableIds().iterator().next());
+        HorizontalGrid grid = metadata.getHorizontalDomain();
+        BoundingBox bbox = params.getBoundingBox();
+        if (params.isPoint()) {
+            GridCoordinates2D cell = grid.findIndexOf(bbox.getLowerCorner());
+            canonical.append(
+                    ";point=" + (cell == null ? "none" : cell.getX() + "," + cell.getY()));
+        } else if (params.isMultiCountry()) {
+            canonical.append(";countries=");
+            for (Map.Entry<String, CountryDefinition> country : params.getCountryDefinitions()
+                    .entrySet()) {
+                canonical.append(country.getKey() + ":" + country.getValue().hashCode() + ",");
+            }
+        } else if (params.isCountry()) {
+            canonical.append(";country=" + params.getCountry() + ":"
+                    + params.getCountryDefinition().hashCode());
+        } else if (grid instanceof RectilinearGrid) {
+            RectilinearGrid rectGrid = (RectilinearGrid) grid;
+            canonical.append(";x=" + snap(rectGrid.getXAxis(), bbox.getMinX(), bbox.getMaxX()));
+            canonical.append(";y=" + snap(rectGrid.getYAxis(), bbox.getMinY(), bbox.getMaxY()));
+        } else {
+            canonical.append(";bbox=" + bbox);
+        }
+
+        TimeAxis timeAxis = metadata.getTemporalDomain();
+        if (timeAxis != null) {
+            int tMin = timeAxis.findIndexOf(params.getTimeRange().getLow());
+            int tMax = timeAxis.findIndexOf(params.getTimeRange().getHigh());
+            canonical.append(";t=" + (tMin == -1 ? 0 : tMin) + "-"
+                    + (tMax == -1 ? timeAxis.size() - 1 : tMax));
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * Every Java implementation must support SHA-256
+             */
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /*
+     * Matches the way in which GriddedDataset chooses the range of indices
+     * when subsetting to a bounding box
+     */
+    private static String snap(ReferenceableAxis<Double> axis, double min, double max) {
+        int start = axis.findIndexOf(axis.isAscending() ? min : max);
+        int end = axis.findIndexOf(axis.isAscending() ? max : min);
+        return (start < 0 ? 0 : start) + "-" + (end < 0 ? axis.size() - 1 : end);
+    }
+
+    public synchronized int getResultCount() {
+        return results.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
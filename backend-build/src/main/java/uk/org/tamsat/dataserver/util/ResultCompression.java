@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses subset results with gzip once they have been written, so that
+ * they take less space in the {@link ResultCache} and can be sent to clients
+ * which accept <code>Content-Encoding: gzip</code> without any further work.
+ * 
+ * Compressed results keep their original names, and are recognised by the
+ * gzip magic number, so results written before compression was enabled are
+ * still served correctly.
+ * 
+ * CSV and NetCDF-3 files typically compress 5-20 times. NetCDF-4 files are
+ * already compressed internally, so are left as they are.
+ */
+public class ResultCompression {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] GZIP_MAGIC = { 0x1f, (byte) 0x8b };
+    private static final byte[] HDF5_MAGIC = { (byte) 0x89, 'H', 'D', 'F' };
+
+    private ResultCompression() {
+    }
+
+    /**
+     * @param file
+     *            The file to test
+     * @return Whether the file is gzip-compressed
+     */
+    public static boolean isCompressed(File file) throws IOException {
+        return startsWith(file, GZIP_MAGIC);
+    }
+
+    /**
+     * Replaces a result with a gzip-compressed copy of it. Files which are
+     * already compressed (including NetCDF-4) are left unchanged, as are any
+     * which would not get smaller.
+     * 
+     * @param file
+     *            The result to compress
+     * @param level
+     *            The gzip compression level, 1-9
+     * @return Whether the file was compressed
+     */
+    public static boolean compress(File file, int level) throws IOException {
+        if (file.length() == 0 || startsWith(file, GZIP_MAGIC) || startsWith(file, HDF5_MAGIC)) {
+            return false;
+        }
+        File compressed = new File(file.getParentFile(), file.getName() + ".gz.tmp");
+        try {
+            try (InputStream in = new FileInputStream(file);
+                    OutputStream out = new LevelledGZIPOutputStream(
+                            new FileOutputStream(compressed), level)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) > -1) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            if (compressed.length() >= file.length()) {
+                return false;
+            }
+            Files.move(compressed.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(compressed.toPath());
+        }
+    }
+
+    private static boolean startsWith(File file, byte[] magic) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), magic.length)) {
+            for (byte b : magic) {
+                if (in.read() != (b & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /*
+     * GZIPOutputStream only exposes the compression level through its Deflater
+     */
+    private static class LevelledGZIPOutputStream extends GZIPOutputStream {
+        public LevelledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+}
@@ -28,19 +28,219 @@
 
 package uk.org.tamsat.dataserver.util;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.catalogue.DataCatalogue;
+import uk.ac.rdg.resc.edal.catalogue.jaxb.DatasetConfig;
+import uk.ac.rdg.resc.edal.catalogue.jaxb.VariableConfig;
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
 import uk.ac.rdg.resc.edal.graphics.utils.SimpleLayerNameMapper;
 import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.EmailInfo;
+import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.NetcdfOutputInfo;
+import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.ResultCacheInfo;
+import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.SchedulingInfo;
+import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.SynchronousInfo;
+import uk.org.tamsat.dataserver.util.TamsatCatalogueConfig.TimeMajorStoreInfo;
 
+/**
+ * A {@link DataCatalogue} with the additional TAMSAT configuration.
+ * 
+ * When a dataset has been loaded, a {@link CatalogueSnapshot} of it is
+ * written. On startup, datasets are restored from their snapshots (if the
+ * files are unchanged), so that they are available within seconds. They are
+ * then scanned in the background as usual, and replaced when that completes.
+ * 
+ * If change detection is enabled, a {@link DatasetChangeMonitor} refreshes
+ * each dataset as soon as its files change.
+ */
 public class TamsatCatalogue extends DataCatalogue {
+    private static final Logger log = LoggerFactory.getLogger(TamsatCatalogue.class);
+
+    private static final String SNAPSHOT_DIR = "catalogue-snapshot";
+
+    /**
+     * Receives notifications whenever a dataset has been loaded or reloaded
+     */
+    public static interface DatasetListener {
+        /**
+         * Called after a dataset has been (re)loaded. This is called on the
+         * thread which loaded the dataset, so should return quickly.
+         * 
+         * @param dataset
+         *            The {@link Dataset} which is now available
+         */
+        public void datasetLoaded(Dataset dataset);
+    }
+
+    /**
+     * How long a dataset took to become available after the server started
+     */
+    public static class DatasetStartup {
+        private final String datasetId;
+        private long restoredMillis = -1L;
+        private long scannedMillis = -1L;
+
+        private DatasetStartup(String datasetId) {
+            this.datasetId = datasetId;
+        }
+
+        public String getDatasetId() {
+            return datasetId;
+        }
+
+        /**
+         * @return The time after startup at which the dataset was restored
+         *         from its snapshot, or -1 if it was not
+         */
+        public long getRestoredMillis() {
+            return restoredMillis;
+        }
+
+        /**
+         * @return The time after startup at which the first full scan of the
+         *         dataset completed, or -1 if it has not yet
+         */
+        public long getScannedMillis() {
+            return scannedMillis;
+        }
+    }
+
     private EmailInfo emailInfo;
-    
+    private ResultCacheInfo resultCacheInfo;
+    private SynchronousInfo synchronousInfo;
+    private SchedulingInfo schedulingInfo;
+    private List<TimeMajorStoreInfo> timeMajorStoreInfo;
+    private List<NetcdfOutputInfo> netcdfOutputInfo;
+    /*
+     * Datasets start loading in the superclass constructor, before this is
+     * initialised, but no listeners can have been added by then
+     */
+    private List<DatasetListener> datasetListeners = new CopyOnWriteArrayList<>();
+
+    /*
+     * As above, this may be used before it is initialised. It has no
+     * initialiser, so that anything recorded during the superclass
+     * constructor is kept, and is only accessed whilst synchronized.
+     */
+    private Map<String, DatasetStartup> datasetStartups;
+    /*
+     * A digest of the files of each dataset when it was loaded, which
+     * identifies its contents across restarts and rescans. As above, this has
+     * no initialiser and is only accessed whilst synchronized.
+     */
+    private Map<String, String> datasetVersions;
+    /*
+     * null if snapshots are not available
+     */
+    private CatalogueSnapshot snapshot;
+    private ExecutorService snapshotWriter;
+    /*
+     * null if change detection is disabled
+     */
+    private DatasetChangeMonitor changeMonitor;
+
     public TamsatCatalogue(TamsatCatalogueConfig config) throws IOException {
         super(config, new SimpleLayerNameMapper());
         
         this.emailInfo = config.getEmailInfo();
+        this.resultCacheInfo = config.getResultCacheInfo();
+        this.synchronousInfo = config.getSynchronousInfo();
+        this.schedulingInfo = config.getSchedulingInfo();
+        this.timeMajorStoreInfo = config.getTimeMajorStoreInfo();
+        this.netcdfOutputInfo = config.getNetcdfOutputInfo();
+
+        int checkInterval = config.getChangeDetectionInfo().getCheckIntervalMinutes();
+        if (checkInterval > 0) {
+            changeMonitor = new DatasetChangeMonitor(config, checkInterval);
+        } else {
+            for (DatasetConfig datasetConfig : config.getDatasets()) {
+                if (!datasetConfig.isDisabled() && datasetConfig.getUpdateInterval() < 0) {
+                    log.warn("Change detection is disabled and dataset " + datasetConfig.getId()
+                            + " has a negative updateInterval, so it will never be refreshed");
+                }
+            }
+        }
+
+        File configDir = config.getConfigDir();
+        if (configDir != null && CatalogueSnapshot.isSupported()) {
+            restoreDatasets(new CatalogueSnapshot(new File(configDir, SNAPSHOT_DIR)));
+        }
+    }
+
+    /**
+     * Restores every dataset which has not yet been loaded from its snapshot,
+     * and snapshots those which have
+     */
+    private void restoreDatasets(CatalogueSnapshot snapshot) {
+        long start = System.currentTimeMillis();
+        int restored = 0;
+        List<Dataset> alreadyLoaded = new ArrayList<>();
+        for (DatasetConfig datasetConfig : config.getDatasets()) {
+            if (datasetConfig.isDisabled()) {
+                continue;
+            }
+            String id = datasetConfig.getId();
+            Dataset loaded;
+            synchronized (this) {
+                loaded = datasets.get(id);
+            }
+            if (loaded != null) {
+                alreadyLoaded.add(loaded);
+                continue;
+            }
+
+            GriddedDataset dataset = snapshot.load(id, datasetConfig.getLocation());
+            if (dataset == null) {
+                continue;
+            }
+            String version = getFileDigest(datasetConfig);
+            synchronized (this) {
+                /*
+                 * The dataset may have been scanned while the snapshot was
+                 * being read, in which case the scanned one takes precedence
+                 */
+                if (datasets.containsKey(id)) {
+                    continue;
+                }
+                super.datasetLoaded(dataset, Arrays.asList(datasetConfig.getVariables()));
+                getDatasetVersions().put(id, version);
+                getDatasetStartup(id).restoredMillis = getUptime();
+                notifyListeners(dataset);
+            }
+            log.info("Restored dataset " + id + " from snapshot at " + getUptime()
+                    + "ms after startup");
+            restored++;
+        }
+        log.info("Restored " + restored + " datasets from snapshots in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        synchronized (this) {
+            this.snapshot = snapshot;
+            this.snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "catalogue-snapshot-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        for (Dataset dataset : alreadyLoaded) {
+            saveSnapshot(dataset);
+        }
     }
 
     public EmailInfo getEmailInfo() {
@@ -50,4 +250,168 @@ public class TamsatCatalogue extends DataCatalogue {
     public void setEmailInfo(EmailInfo emailInfo) {
         this.emailInfo = emailInfo;
     }
+
+    public ResultCacheInfo getResultCacheInfo() {
+        return resultCacheInfo;
+    }
+
+    public SynchronousInfo getSynchronousInfo() {
+        return synchronousInfo;
+    }
+
+    public SchedulingInfo getSchedulingInfo() {
+        return schedulingInfo;
+    }
+
+    public List<TimeMajorStoreInfo> getTimeMajorStoreInfo() {
+        return timeMajorStoreInfo;
+    }
+
+    public List<NetcdfOutputInfo> getNetcdfOutputInfo() {
+        return netcdfOutputInfo;
+    }
+
+    /**
+     * @param datasetId
+     *            The ID of a dataset
+     * @return An identifier for the contents of the dataset, which only
+     *         changes when its files do (unlike the time it was last
+     *         updated, which changes whenever it is scanned), or
+     *         <code>null</code> if it has not been loaded
+     */
+    public synchronized String getDatasetVersion(String datasetId) {
+        return getDatasetVersions().get(datasetId);
+    }
+
+    public void addDatasetListener(DatasetListener listener) {
+        datasetListeners.add(listener);
+    }
+
+    /**
+     * @return How long each dataset took to become available, ordered by
+     *         dataset ID
+     */
+    public synchronized Collection<DatasetStartup> getDatasetStartups() {
+        return datasetStartups == null ? new ArrayList<>()
+                : new ArrayList<>(datasetStartups.values());
+    }
+
+    /**
+     * Includes every dataset which is available, whatever its state. The
+     * superclass only includes those which have been scanned and are not
+     * waiting to be refreshed, which would exclude datasets restored from
+     * snapshots, and briefly hide datasets which have changed.
+     */
+    @Override
+    public synchronized Collection<Dataset> getAllDatasets() {
+        List<Dataset> allDatasets = new ArrayList<>();
+        for (Dataset dataset : datasets.values()) {
+            DatasetConfig datasetConfig = config.getDatasetInfo(dataset.getId());
+            if (datasetConfig != null && !datasetConfig.isDisabled()) {
+                allDatasets.add(dataset);
+            }
+        }
+        return allDatasets;
+    }
+
+    @Override
+    public void datasetLoaded(Dataset dataset, Collection<VariableConfig> variables) {
+        /*
+         * Read before taking the lock, since it lists every file
+         */
+        String version = getFileDigest(config.getDatasetInfo(dataset.getId()));
+        synchronized (this) {
+            super.datasetLoaded(dataset, variables);
+            String id = dataset.getId();
+            getDatasetVersions().put(id, version);
+            DatasetStartup startup = getDatasetStartup(id);
+            if (startup.scannedMillis < 0) {
+                startup.scannedMillis = getUptime();
+                log.info("Dataset " + id + " scanned at " + startup.scannedMillis
+                        + "ms after startup");
+            }
+            notifyListeners(dataset);
+        }
+        saveSnapshot(dataset);
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (snapshotWriter != null) {
+                snapshotWriter.shutdownNow();
+            }
+        }
+        if (changeMonitor != null) {
+            changeMonitor.shutdown();
+        }
+        super.shutdown();
+    }
+
+    private void notifyListeners(Dataset dataset) {
+        if (datasetListeners != null) {
+            for (DatasetListener listener : datasetListeners) {
+                listener.datasetLoaded(dataset);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of a newly-loaded dataset in the background
+     */
+    private synchronized void saveSnapshot(Dataset dataset) {
+        DatasetConfig datasetConfig = config.getDatasetInfo(dataset.getId());
+        if (snapshotWriter == null || datasetConfig == null) {
+            /*
+             * Datasets loaded before snapshots were set up are saved once
+             * they are
+             */
+            return;
+        }
+        String location = datasetConfig.getLocation();
+        CatalogueSnapshot snapshot = this.snapshot;
+        snapshotWriter.submit(() -> {
+            try {
+                if (snapshot.save(dataset, location)) {
+                    log.debug("Saved snapshot of dataset " + dataset.getId());
+                }
+            } catch (Exception e) {
+                log.warn("Problem saving snapshot of dataset " + dataset.getId(), e);
+            }
+        });
+    }
+
+    private Map<String, String> getDatasetVersions() {
+        if (datasetVersions == null) {
+            datasetVersions = new HashMap<>();
+        }
+        return datasetVersions;
+    }
+
+    /*
+     * Returns null if the files can't be listed, so that results of the
+     * dataset aren't shared
+     */
+    private static String getFileDigest(DatasetConfig datasetConfig) {
+        if (datasetConfig == null) {
+            return null;
+        }
+        try {
+            return CatalogueSnapshot.getFileDigest(datasetConfig.getLocation());
+        } catch (RuntimeException e) {
+            log.warn("Could not list the files of dataset " + datasetConfig.getId(), e);
+            return null;
+        }
+    }
+
+    private DatasetStartup getDatasetStartup(String datasetId) {
+        if (datasetStartups == null) {
+            datasetStartups = new TreeMap<>();
+        }
+        return datasetStartups.computeIfAbsent(datasetId, DatasetStartup::new);
+    }
+
+    private static long getUptime() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
 }
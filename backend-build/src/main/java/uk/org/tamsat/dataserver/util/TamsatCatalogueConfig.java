@@ -32,13 +32,17 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import uk.ac.rdg.resc.edal.catalogue.jaxb.CatalogueConfig;
@@ -48,6 +52,20 @@ import uk.ac.rdg.resc.edal.catalogue.jaxb.CatalogueConfig;
 public class TamsatCatalogueConfig extends CatalogueConfig {
     @XmlElement(name = "email")
     private EmailInfo emailInfo = new EmailInfo();
+    @XmlElement(name = "resultCache")
+    private ResultCacheInfo resultCacheInfo = new ResultCacheInfo();
+    @XmlElement(name = "synchronousRequests")
+    private SynchronousInfo synchronousInfo = new SynchronousInfo();
+    @XmlElement(name = "jobScheduling")
+    private SchedulingInfo schedulingInfo = new SchedulingInfo();
+    @XmlElement(name = "changeDetection")
+    private ChangeDetectionInfo changeDetectionInfo = new ChangeDetectionInfo();
+    @XmlElementWrapper(name = "timeMajorStores")
+    @XmlElement(name = "store")
+    private List<TimeMajorStoreInfo> timeMajorStoreInfo = new ArrayList<>();
+    @XmlElementWrapper(name = "netcdfOutputs")
+    @XmlElement(name = "output")
+    private List<NetcdfOutputInfo> netcdfOutputInfo = new ArrayList<>();
 
     /* For JAXB */
     protected TamsatCatalogueConfig() {
@@ -61,6 +79,38 @@ public class TamsatCatalogueConfig extends CatalogueConfig {
         return emailInfo;
     }
 
+    public ResultCacheInfo getResultCacheInfo() {
+        return resultCacheInfo;
+    }
+
+    public SynchronousInfo getSynchronousInfo() {
+        return synchronousInfo;
+    }
+
+    public SchedulingInfo getSchedulingInfo() {
+        return schedulingInfo;
+    }
+
+    public ChangeDetectionInfo getChangeDetectionInfo() {
+        return changeDetectionInfo;
+    }
+
+    public List<TimeMajorStoreInfo> getTimeMajorStoreInfo() {
+        return timeMajorStoreInfo;
+    }
+
+    public List<NetcdfOutputInfo> getNetcdfOutputInfo() {
+        return netcdfOutputInfo;
+    }
+
+    /**
+     * @return The directory containing the config file, or <code>null</code>
+     *         if the config has not been read from a file
+     */
+    public File getConfigDir() {
+        return configFile == null ? null : configFile.getAbsoluteFile().getParentFile();
+    }
+
     public static TamsatCatalogueConfig deserialise(Reader xmlConfig) throws JAXBException {
         JAXBContext context = JAXBContext.newInstance(TamsatCatalogueConfig.class);
 
@@ -118,4 +168,227 @@ public class TamsatCatalogueConfig extends CatalogueConfig {
             return replyTo;
         }
     }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class ResultCacheInfo {
+        /*
+         * The maximum total size of cached results, in megabytes
+         */
+        @XmlElement(name = "maxSizeMB")
+        private long maxSizeMb = 10240L;
+        /*
+         * The gzip level (1-9) to compress CSV and NetCDF-3 results with once
+         * they have been written. 0 stores them uncompressed.
+         */
+        @XmlElement(name = "compressionLevel")
+        private int compressionLevel = 6;
+
+        public long getMaxSizeBytes() {
+            return maxSizeMb * 1024L * 1024L;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+    }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class SynchronousInfo {
+        /*
+         * The maximum cost (grid cells * timesteps * variables, plus a fixed
+         * amount for each timestep which has to be read from the data files
+         * rather than a time-major store) of a CSV request which will be
+         * calculated immediately and returned in the response, rather than
+         * being queued. 0 disables this.
+         */
+        @XmlElement(name = "maxCost")
+        private long maxCost = 1000000L;
+        /*
+         * The maximum number of requests which will be calculated immediately
+         * at once. Any more are queued.
+         */
+        @XmlElement(name = "maxConcurrent")
+        private int maxConcurrent = 4;
+
+        public long getMaxCost() {
+            return maxCost;
+        }
+
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+    }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class SchedulingInfo {
+        /*
+         * The estimated cost (grid cells * timesteps * variables, with NetCDF
+         * output counting extra) at and above which a queued job is heavy
+         */
+        @XmlElement(name = "heavyCost")
+        private long heavyCost = 1000000000L;
+        /*
+         * The number of threads which heavy jobs may use. Other jobs use the
+         * rest.
+         */
+        @XmlElement(name = "heavyThreads")
+        private int heavyThreads = 1;
+        /*
+         * How long a job must have been queued before it runs ahead of a newly
+         * queued job half its cost, in seconds
+         */
+        @XmlElement(name = "agingSeconds")
+        private int agingSeconds = 30;
+        /*
+         * The maximum number of jobs which each user (identified by email
+         * address) may have running at once
+         */
+        @XmlElement(name = "maxRunningJobsPerUser")
+        private int maxRunningJobsPerUser = 2;
+        /*
+         * The maximum number of unfinished jobs which each user may have.
+         * Further jobs are rejected until some have finished. 0 means no
+         * limit.
+         */
+        @XmlElement(name = "maxQueuedJobsPerUser")
+        private int maxQueuedJobsPerUser = 100;
+        /*
+         * The maximum total estimated cost of the queued and running jobs.
+         * Jobs which would take the total above this are rejected until
+         * enough work has been done. 0 means no limit.
+         */
+        @XmlElement(name = "maxBacklogCost")
+        private long maxBacklogCost = 1000000000000L;
+
+        public long getHeavyCost() {
+            return heavyCost;
+        }
+
+        public int getHeavyThreads() {
+            return heavyThreads;
+        }
+
+        public int getAgingSeconds() {
+            return agingSeconds;
+        }
+
+        public int getMaxRunningJobsPerUser() {
+            return maxRunningJobsPerUser;
+        }
+
+        public int getMaxQueuedJobsPerUser() {
+            return maxQueuedJobsPerUser;
+        }
+
+        public long getMaxBacklogCost() {
+            return maxBacklogCost;
+        }
+    }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class ChangeDetectionInfo {
+        /*
+         * How often to check whether the files of each dataset have changed,
+         * refreshing any which have. 0 disables this, leaving datasets to be
+         * refreshed only at their updateInterval, so a dataset with a
+         * negative updateInterval would then never be refreshed. Even with
+         * this enabled, a long updateInterval (e.g. daily) is a useful
+         * fallback in case a change is missed, such as a file rewritten with
+         * the same size and modification time.
+         */
+        @XmlElement(name = "checkIntervalMinutes")
+        private int checkIntervalMinutes = 5;
+
+        public int getCheckIntervalMinutes() {
+            return checkIntervalMinutes;
+        }
+    }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class TimeMajorStoreInfo {
+        /*
+         * The ID of the dataset to keep a time-major copy of
+         */
+        @XmlAttribute(name = "dataset", required = true)
+        private String datasetId;
+        /*
+         * The number of timesteps in each block of the store
+         */
+        @XmlAttribute(name = "blockLength")
+        private int blockLength = 64;
+        /*
+         * The largest area (in grid cells) which will be averaged from the
+         * store rather than the dataset
+         */
+        @XmlAttribute(name = "maxBoxCells")
+        private int maxBoxCells = 256;
+
+        public String getDatasetId() {
+            return datasetId;
+        }
+
+        public int getBlockLength() {
+            return blockLength;
+        }
+
+        public int getMaxBoxCells() {
+            return maxBoxCells;
+        }
+    }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class NetcdfOutputInfo {
+        /*
+         * The ID of the dataset which these settings apply to. Datasets
+         * without any settings use the defaults.
+         */
+        @XmlAttribute(name = "dataset", required = true)
+        private String datasetId;
+        /*
+         * The deflate level, from 0 (no compression) to 9
+         */
+        @XmlAttribute(name = "deflateLevel")
+        private int deflateLevel = 4;
+        @XmlAttribute(name = "shuffle")
+        private boolean shuffle = true;
+        /*
+         * The chunk shape. This is clipped to the size of each subset.
+         */
+        @XmlAttribute(name = "timeChunk")
+        private int timeChunk = 256;
+        @XmlAttribute(name = "latChunk")
+        private int latChunk = 32;
+        @XmlAttribute(name = "lonChunk")
+        private int lonChunk = 32;
+
+        public String getDatasetId() {
+            return datasetId;
+        }
+
+        public int getDeflateLevel() {
+            return deflateLevel;
+        }
+
+        public boolean isShuffle() {
+            return shuffle;
+        }
+
+        public int getTimeChunk() {
+            return timeChunk;
+        }
+
+        public int getLatChunk() {
+            return latChunk;
+        }
+
+        public int getLonChunk() {
+            return lonChunk;
+        }
+    }
 }
@@ -0,0 +1,968 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
+/**
+ * A copy of the data of a gridded dataset, rechunked so that the timeseries of
+ * each grid cell is stored contiguously. This allows a timeseries at a point
+ * (or over a small area) to be read with one disk read per block of
+ * timesteps, rather than opening every underlying data file.
+ * 
+ * The timesteps are divided into blocks of a fixed length. Each variable is
+ * stored in its own file, containing one section per block. Within a section,
+ * cells are stored in row-major order, and each cell holds the values of every
+ * timestep in the block. An index file records the grid, the variables, and
+ * the times of the blocks which have been completed.
+ * 
+ * Only complete blocks are stored. New blocks are appended as timesteps are
+ * added to the dataset, so the store only needs to be built from scratch if
+ * the grid or variables change. Timesteps after the last complete block are
+ * not covered, and must be read from the dataset itself. The files which the
+ * blocks were read from are recorded in a {@link FileStampLedger}, and if any
+ * of them are reprocessed, the blocks which may have come from them are read
+ * again.
+ * 
+ * Whenever the dataset is reloaded, {@link #datasetChanged()} must be called.
+ * The store is then not used until it has been checked against the files of
+ * the dataset by the next {@link #update(GriddedDataset, String)}.
+ * 
+ * Values are stored at the precision they are read at (integers and floats as
+ * 32-bit values, anything else as a double), so that output generated from the
+ * store is identical to output generated from the dataset.
+ */
+public class TimeMajorStore {
+    private static final Logger log = LoggerFactory.getLogger(TimeMajorStore.class);
+
+    private static final int MAGIC = 0x54544d53;
+    private static final int FORMAT_VERSION = 2;
+
+    /*
+     * The maximum number of values (per variable) to read from the dataset at
+     * once when building a block
+     */
+    private static final int BUILD_BUFFER_VALUES = 1 << 24;
+
+    private static final byte TYPE_INT = 'I';
+    private static final byte TYPE_FLOAT = 'F';
+    private static final byte TYPE_DOUBLE = 'D';
+
+    private final File dir;
+    private final File indexFile;
+    private final FileStampLedger ledger;
+    private final int blockLength;
+    private final int maxBoxCells;
+
+    /*
+     * Index information. Only valid if nBlocks >= 0
+     */
+    private int xSize = 0;
+    private int ySize = 0;
+    private double[] xCoords = new double[0];
+    private double[] yCoords = new double[0];
+    private List<String> varIds = new ArrayList<>();
+    private byte[] varTypes = new byte[0];
+    private int nBlocks = -1;
+    private long[] times = new long[0];
+
+    /*
+     * Only one update may run at a time. Reads are not blocked by updates,
+     * except briefly while a block is committed.
+     */
+    private final Object updateLock = new Object();
+
+    /*
+     * Blocks are only ever written past the end of the index, so the blocks
+     * in a snapshot of the index can be read alongside other reads and
+     * alongside appends. Only removing blocks (which may then be overwritten)
+     * or discarding the store has to wait for reads to finish. This must
+     * always be acquired before the lock on the store itself.
+     */
+    private final ReadWriteLock dataLock = new ReentrantReadWriteLock();
+
+    /*
+     * The number of times the dataset has been reloaded, and the number of
+     * reloads which the store has been checked against
+     */
+    private final AtomicLong changes = new AtomicLong();
+    private volatile long checkedChanges = -1L;
+
+    /**
+     * Opens a store, reading the index of any data already present in the
+     * given directory
+     * 
+     * @param dir
+     *            The directory to keep the store in
+     * @param blockLength
+     *            The number of timesteps in each block. If this differs from
+     *            the existing store, it will be rebuilt.
+     * @param maxBoxCells
+     *            The maximum number of grid cells in an area which will be
+     *            averaged using the store
+     */
+    public TimeMajorStore(File dir, int blockLength, int maxBoxCells) {
+        this.dir = dir;
+        this.indexFile = new File(dir, "index");
+        this.ledger = new FileStampLedger(new File(dir, "files"));
+        this.blockLength = Math.max(1, blockLength);
+        this.maxBoxCells = maxBoxCells;
+        if (indexFile.exists()) {
+            try {
+                readIndex();
+            } catch (IOException e) {
+                log.warn("Could not read time-major store " + dir + ". It will be rebuilt.", e);
+            }
+        }
+    }
+
+    private synchronized void readIndex() throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readInt() != blockLength) {
+                throw new IOException("Not a time-major store in the current format");
+            }
+            double[] x = new double[in.readInt()];
+            double[] y = new double[in.readInt()];
+            for (int i = 0; i < x.length; i++) {
+                x[i] = in.readDouble();
+            }
+            for (int j = 0; j < y.length; j++) {
+                y[j] = in.readDouble();
+            }
+            int nVars = in.readInt();
+            List<String> vars = new ArrayList<>();
+            byte[] types = new byte[nVars];
+            for (int v = 0; v < nVars; v++) {
+                vars.add(in.readUTF());
+                types[v] = in.readByte();
+            }
+            int blocks = in.readInt();
+            long[] blockTimes = new long[blocks * blockLength];
+            for (int t = 0; t < blockTimes.length; t++) {
+                blockTimes[t] = in.readLong();
+            }
+
+            xSize = x.length;
+            ySize = y.length;
+            xCoords = x;
+            yCoords = y;
+            varIds = vars;
+            varTypes = blocks > 0 ? types : new byte[0];
+            nBlocks = blocks;
+            times = blockTimes;
+        }
+    }
+
+    /**
+     * Writes the index, replacing the existing one in a single step so that
+     * an interrupted update never leaves it inconsistent with the data
+     */
+    private synchronized void writeIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(blockLength);
+            out.writeInt(xSize);
+            out.writeInt(ySize);
+            for (double x : xCoords) {
+                out.writeDouble(x);
+            }
+            for (double y : yCoords) {
+                out.writeDouble(y);
+            }
+            out.writeInt(varIds.size());
+            for (int v = 0; v < varIds.size(); v++) {
+                out.writeUTF(varIds.get(v));
+                /*
+                 * Types are not known until the first block has been read
+                 */
+                out.writeByte(varTypes.length > v ? varTypes[v] : 0);
+            }
+            out.writeInt(nBlocks);
+            for (int t = 0; t < nBlocks * blockLength; t++) {
+                out.writeLong(times[t]);
+            }
+        }
+        File tmpFile = new File(dir, "index.tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(bytes.toByteArray());
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File getDataFile(int var) {
+        return new File(dir, var + ".dat");
+    }
+
+    private static int getTypeSize(byte type) {
+        return type == TYPE_DOUBLE ? 8 : 4;
+    }
+
+    private long getBlockBytes(int var) {
+        return (long) xSize * ySize * blockLength * getTypeSize(varTypes[var]);
+    }
+
+    /**
+     * Discards the contents of the store and starts a new one for the given
+     * grid and variables. The types of the variables are not known until the
+     * first block has been read.
+     */
+    private void reset(RectilinearGrid grid, List<String> vars) throws IOException {
+        dataLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Cannot create directory " + dir);
+                }
+                File[] oldFiles = dir.listFiles((d, name) -> name.endsWith(".dat"));
+                for (File oldFile : oldFiles == null ? new File[0] : oldFiles) {
+                    oldFile.delete();
+                }
+                xCoords = getCoordinates(grid.getXAxis());
+                yCoords = getCoordinates(grid.getYAxis());
+                xSize = xCoords.length;
+                ySize = yCoords.length;
+                varIds = new ArrayList<>(vars);
+                varTypes = new byte[0];
+                nBlocks = 0;
+                times = new long[0];
+                writeIndex();
+            }
+        } finally {
+            dataLock.writeLock().unlock();
+        }
+    }
+
+    private static double[] getCoordinates(ReferenceableAxis<Double> axis) {
+        double[] coords = new double[axis.size()];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = axis.getCoordinateValue(i);
+        }
+        return coords;
+    }
+
+    /**
+     * @return Whether the store was built for exactly this grid, i.e. every
+     *         coordinate of both axes is the same
+     */
+    private synchronized boolean hasGrid(HorizontalGrid grid) {
+        if (!(grid instanceof RectilinearGrid)) {
+            return false;
+        }
+        RectilinearGrid rectGrid = (RectilinearGrid) grid;
+        return grid.getXSize() == xSize && grid.getYSize() == ySize
+                && Arrays.equals(xCoords, getCoordinates(rectGrid.getXAxis()))
+                && Arrays.equals(yCoords, getCoordinates(rectGrid.getYAxis()));
+    }
+
+    /**
+     * @return Whether the store was built for exactly this grid and these
+     *         variables, and its times are the first timesteps of the given
+     *         axis
+     */
+    private synchronized boolean isConsistentWith(HorizontalGrid grid, Set<String> vars,
+            TimeAxis timeAxis) {
+        if (nBlocks < 0 || !hasGrid(grid) || !varIds.containsAll(vars)
+                || varIds.size() != vars.size()) {
+            return false;
+        }
+        if (times.length > timeAxis.size()) {
+            return false;
+        }
+        for (int t = 0; t < times.length; t++) {
+            if (times[t] != timeAxis.getCoordinateValue(t).getMillis()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of timesteps in the store
+     */
+    public synchronized int size() {
+        return times.length;
+    }
+
+    /**
+     * Removes blocks from the end of the store
+     * 
+     * @param blocks
+     *            The number of blocks to keep
+     */
+    private void truncate(int blocks) throws IOException {
+        dataLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                nBlocks = blocks;
+                times = Arrays.copyOf(times, blocks * blockLength);
+                writeIndex();
+            }
+        } finally {
+            dataLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops the store from being used until it has been checked against the
+     * files of the dataset. This should be called as soon as the dataset has
+     * been reloaded, before the next update.
+     */
+    public void datasetChanged() {
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Brings the store up-to-date with a dataset, adding any complete blocks
+     * of timesteps which are not yet present. Blocks which may have come from
+     * files which have since changed are read again. If the grid, variables
+     * or existing times do not match, the store is rebuilt from scratch.
+     * 
+     * This can take a very long time, and should not be called on a request
+     * thread.
+     * 
+     * @param dataset
+     *            The dataset to store. All variables must share the same
+     *            rectilinear grid.
+     * @param location
+     *            The location of the files of the dataset, as configured
+     */
+    public void update(GriddedDataset dataset, String location)
+            throws EdalException, IOException {
+        synchronized (updateLock) {
+            /*
+             * Any reload after this point will need checking again
+             */
+            long checking = changes.get();
+            Set<String> datasetVars = dataset.getVariableIds();
+            String firstVar = datasetVars.iterator().next();
+            TimeAxis timeAxis = dataset.getVariableMetadata(firstVar).getTemporalDomain();
+            HorizontalGrid grid = dataset.getVariableMetadata(firstVar).getHorizontalDomain();
+            if (timeAxis == null || !(grid instanceof RectilinearGrid)) {
+                return;
+            }
+            List<String> stamps = CatalogueSnapshot.getFileStamps(location);
+            if (!isConsistentWith(grid, datasetVars, timeAxis)) {
+                log.debug("Building time-major store " + dir + " from scratch");
+                reset((RectilinearGrid) grid, new ArrayList<>(datasetVars));
+            } else {
+                /*
+                 * Only updates change the size, so this can't change under us
+                 */
+                int stored = size();
+                int validBlocks = ledger.getValidCount(stamps, stored) / blockLength;
+                if (validBlocks * blockLength < stored) {
+                    log.debug("Files of time-major store " + dir
+                            + " have changed.  Reading again from block " + validBlocks);
+                    truncate(validBlocks);
+                }
+            }
+            int first;
+            synchronized (this) {
+                first = nBlocks;
+            }
+            ledger.record(stamps, first * blockLength);
+            /*
+             * Everything in the store is now up-to-date, and anything added
+             * from here on will be
+             */
+            checkedChanges = checking;
+            int last = timeAxis.size() / blockLength - 1;
+            for (int b = first; b <= last; b++) {
+                log.debug("Adding block " + b + " of " + last + " to time-major store " + dir);
+                addBlock(dataset, (RectilinearGrid) grid, timeAxis, b);
+            }
+        }
+    }
+
+    /**
+     * Reads a single block from the dataset, a band of rows at a time, writes
+     * it to the end of each variable's file, and then commits it to the index
+     */
+    private void addBlock(GriddedDataset dataset, RectilinearGrid grid, TimeAxis timeAxis,
+            int block) throws EdalException, IOException {
+        List<String> vars;
+        synchronized (this) {
+            vars = new ArrayList<>(varIds);
+        }
+        int tStart = block * blockLength;
+        Extent<DateTime> blockRange = Extents.newExtent(timeAxis.getCoordinateValue(tStart),
+                timeAxis.getCoordinateValue(tStart + blockLength - 1));
+
+        ReferenceableAxis<Double> xAxis = grid.getXAxis();
+        ReferenceableAxis<Double> yAxis = grid.getYAxis();
+        int bandRows = Math.max(1, BUILD_BUFFER_VALUES / (blockLength * xSize));
+        for (int jMin = 0; jMin < ySize; jMin += bandRows) {
+            int jMax = Math.min(ySize, jMin + bandRows) - 1;
+            /*
+             * Use cell centres for the bounding box, so that exactly these
+             * rows are extracted
+             */
+            double x0 = xAxis.getCoordinateValue(0);
+            double x1 = xAxis.getCoordinateValue(xSize - 1);
+            double y0 = yAxis.getCoordinateValue(jMin);
+            double y1 = yAxis.getCoordinateValue(jMax);
+            BoundingBox band = new BoundingBoxImpl(Math.min(x0, x1), Math.min(y0, y1),
+                    Math.max(x0, x1), Math.max(y0, y1));
+            GridFeature feature = dataset.subsetFeatures(dataset.getVariableIds(), band, null,
+                    blockRange);
+            HorizontalGrid bandGrid = feature.getDomain().getHorizontalGrid();
+            if (bandGrid.getXSize() != xSize || bandGrid.getYSize() != jMax - jMin + 1
+                    || feature.getDomain().getTimeAxis().size() != blockLength) {
+                throw new EdalException("Unexpected shape of data read for rows " + jMin + "-"
+                        + jMax + " of time-major store " + dir);
+            }
+
+            synchronized (this) {
+                if (varTypes.length == 0) {
+                    /*
+                     * The first band of a new store determines how each
+                     * variable is stored
+                     */
+                    varTypes = new byte[vars.size()];
+                    for (int v = 0; v < vars.size(); v++) {
+                        varTypes[v] = chooseType(feature.getValues(vars.get(v)));
+                    }
+                }
+            }
+            for (int v = 0; v < vars.size(); v++) {
+                ByteBuffer data = encodeBand(feature.getValues(vars.get(v)), varTypes[v]);
+                long position = block * getBlockBytes(v) + (long) jMin * xSize * blockLength
+                        * getTypeSize(varTypes[v]);
+                try (RandomAccessFile raf = new RandomAccessFile(getDataFile(v), "rw");
+                        FileChannel channel = raf.getChannel()) {
+                    while (data.hasRemaining()) {
+                        channel.write(data, position + data.position());
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            long[] newTimes = Arrays.copyOf(times, (block + 1) * blockLength);
+            for (int t = 0; t < blockLength; t++) {
+                newTimes[tStart + t] = timeAxis.getCoordinateValue(tStart + t).getMillis();
+            }
+            times = newTimes;
+            nBlocks = block + 1;
+            writeIndex();
+        }
+    }
+
+    /**
+     * @return The type to store a variable as, based on the first non-missing
+     *         value
+     */
+    private static byte chooseType(Array4D<Number> values) {
+        for (Number value : values) {
+            if (value != null) {
+                return chooseType(value);
+            }
+        }
+        return TYPE_DOUBLE;
+    }
+
+    private static byte chooseType(Number value) {
+        if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        }
+        return TYPE_DOUBLE;
+    }
+
+    /**
+     * Encodes the values of one variable for a band of rows, cell by cell,
+     * with the timeseries of each cell contiguous
+     */
+    private ByteBuffer encodeBand(Array4D<Number> values, byte type) throws EdalException {
+        int nT = values.getTSize();
+        int nX = values.getXSize();
+        int nY = values.getYSize();
+        ByteBuffer data = ByteBuffer.allocate(nX * nY * nT * getTypeSize(type));
+        for (int j = 0; j < nY; j++) {
+            for (int i = 0; i < nX; i++) {
+                for (int t = 0; t < nT; t++) {
+                    Number value = values.get(t, 0, j, i);
+                    if (value != null && chooseType(value) != type
+                            && (type != TYPE_DOUBLE || value instanceof Integer)) {
+                        /*
+                         * Integers must stay integers, and nothing else may
+                         * lose precision
+                         */
+                        throw new EdalException("Values of type " + value.getClass()
+                                + " cannot be added to a time-major store of type "
+                                + (char) type);
+                    }
+                    if (type == TYPE_INT) {
+                        data.putInt(value == null ? Integer.MIN_VALUE : value.intValue());
+                    } else if (type == TYPE_FLOAT) {
+                        data.putFloat(value == null ? Float.NaN : value.floatValue());
+                    } else {
+                        data.putDouble(value == null ? Double.NaN : value.doubleValue());
+                    }
+                }
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Reads the timeseries of a horizontal run of cells from the store
+     * 
+     * The caller must hold the read lock on the data, and must only read
+     * blocks which were in the index after acquiring it.
+     * 
+     * @param var
+     *            The index of the variable to read
+     * @param i
+     *            The x-index of the first cell
+     * @param j
+     *            The y-index of the cells
+     * @param nCells
+     *            The number of cells to read
+     * @param tMin
+     *            The first time index to read
+     * @param tMax
+     *            The last time index to read. This must be stored.
+     * @return The values, indexed by [cell][t - tMin]. Missing values are
+     *         {@link Double#NaN}
+     */
+    private double[][] readCells(FileChannel channel, int var, int i, int j, int nCells,
+            int tMin, int tMax) throws IOException {
+        /*
+         * The layout of the data files only changes when the store is
+         * discarded, which can't happen while blocks are being read
+         */
+        byte type;
+        long blockBytes;
+        int rowLength;
+        synchronized (this) {
+            type = varTypes[var];
+            blockBytes = getBlockBytes(var);
+            rowLength = xSize;
+        }
+        int typeSize = getTypeSize(type);
+        double[][] ret = new double[nCells][tMax - tMin + 1];
+        ByteBuffer data = ByteBuffer.allocate(nCells * blockLength * typeSize);
+        for (int b = tMin / blockLength; b <= tMax / blockLength; b++) {
+            /*
+             * The cells are adjacent, so each block needs a single read
+             */
+            data.clear();
+            long position = b * blockBytes + ((long) j * rowLength + i) * blockLength * typeSize;
+            while (data.hasRemaining()) {
+                if (channel.read(data, position + data.position()) < 0) {
+                    throw new IOException("Unexpected end of time-major store " + dir);
+                }
+            }
+            int t0 = Math.max(tMin, b * blockLength);
+            int t1 = Math.min(tMax, (b + 1) * blockLength - 1);
+            for (int c = 0; c < nCells; c++) {
+                for (int t = t0; t <= t1; t++) {
+                    int offset = (c * blockLength + t - b * blockLength) * typeSize;
+                    double value;
+                    if (type == TYPE_INT) {
+                        int intValue = data.getInt(offset);
+                        value = intValue == Integer.MIN_VALUE ? Double.NaN : intValue;
+                    } else if (type == TYPE_FLOAT) {
+                        value = data.getFloat(offset);
+                    } else {
+                        value = data.getDouble(offset);
+                    }
+                    ret[c][t - tMin] = value;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The indices in the store of the given variables, or
+     *         <code>null</code> if the store cannot currently be used with
+     *         the given grid and time axis
+     */
+    private synchronized int[] getVarIndices(HorizontalGrid grid, Set<String> vars,
+            TimeAxis timeAxis, int tMin, int tMax) {
+        if (checkedChanges != changes.get() || nBlocks <= 0 || varTypes.length != varIds.size()
+                || tMin >= times.length || tMax >= timeAxis.size() || !hasGrid(grid)) {
+            return null;
+        }
+        int tLast = Math.min(tMax, times.length - 1);
+        if (times[tMin] != timeAxis.getCoordinateValue(tMin).getMillis()
+                || times[tLast] != timeAxis.getCoordinateValue(tLast).getMillis()) {
+            return null;
+        }
+        int[] indices = new int[vars.size()];
+        int v = 0;
+        for (String var : vars) {
+            indices[v] = varIds.indexOf(var);
+            if (indices[v] < 0) {
+                return null;
+            }
+            v++;
+        }
+        return indices;
+    }
+
+    /**
+     * Writes CSV rows for the timeseries at a point, in the same format and
+     * for the same timesteps as they would be extracted from the dataset,
+     * for as much of the time range as the store covers.
+     * 
+     * @param dataset
+     *            The dataset which the store was built from
+     * @param vars
+     *            The variables to write, in column order
+     * @param bbox
+     *            The (zero-size) {@link BoundingBox} of the point
+     * @param timeRange
+     *            The time range to write
+     * @param w
+     *            The {@link Writer} to write to
+     * @return The part of the time range which has not been written, or
+     *         <code>null</code> if every row has been written. If the store
+     *         cannot be used, nothing is written and the whole time range is
+     *         returned.
+     */
+    public Extent<DateTime> writePointTimeseries(GriddedDataset dataset, Set<String> vars,
+            BoundingBox bbox, Extent<DateTime> timeRange, Writer w) throws IOException {
+        String firstVar = vars.iterator().next();
+        TimeAxis timeAxis = dataset.getVariableMetadata(firstVar).getTemporalDomain();
+        HorizontalGrid grid = dataset.getVariableMetadata(firstVar).getHorizontalDomain();
+        if (timeAxis == null) {
+            return timeRange;
+        }
+        GridCoordinates2D cell = grid.findIndexOf(bbox.getLowerCorner());
+        int[] tRange = getPointTimeIndices(timeAxis, timeRange);
+        int tMin = tRange[0];
+        int tMax = tRange[1];
+        if (cell == null || tMax < tMin) {
+            return timeRange;
+        }
+
+        double[][] values = new double[vars.size()][];
+        byte[] types = new byte[vars.size()];
+        int tLast;
+        dataLock.readLock().lock();
+        try {
+            int[] varIndices;
+            /*
+             * Only the index needs the lock on the store. The blocks in it
+             * can be read while other requests read the store and while new
+             * blocks are added.
+             */
+            synchronized (this) {
+                varIndices = getVarIndices(grid, vars, timeAxis, tMin, tMax);
+                if (varIndices == null) {
+                    return timeRange;
+                }
+                tLast = Math.min(tMax, times.length - 1);
+                for (int v = 0; v < varIndices.length; v++) {
+                    types[v] = varTypes[varIndices[v]];
+                }
+            }
+            for (int v = 0; v < varIndices.length; v++) {
+                try (RandomAccessFile raf = new RandomAccessFile(getDataFile(varIndices[v]), "r");
+                        FileChannel channel = raf.getChannel()) {
+                    values[v] = readCells(channel, varIndices[v], cell.getX(), cell.getY(), 1,
+                            tMin, tLast)[0];
+                }
+            }
+        } finally {
+            dataLock.readLock().unlock();
+        }
+
+        CsvRowEncoder row = new CsvRowEncoder();
+        for (int t = tMin; t <= tLast; t++) {
+            row.startRow(timeAxis.getCoordinateValue(t));
+            for (int v = 0; v < values.length; v++) {
+                double value = values[v][t - tMin];
+                if (types[v] == TYPE_INT && !Double.isNaN(value)) {
+                    /*
+                     * Integers are written as-is, everything else to 2 d.p.
+                     */
+                    row.addValue((int) value);
+                } else {
+                    row.addValue(value);
+                }
+            }
+            row.endRow();
+            row.writeTo(w);
+        }
+        return getRemainingRange(timeAxis, tLast, tMax, timeRange);
+    }
+
+    /**
+     * Writes CSV rows for the timeseries of the mean over a small area, in the
+     * same format and for the same timesteps as they would be calculated from
+     * the dataset, for as much of the time range as the store covers.
+     * 
+     * @param dataset
+     *            The dataset which the store was built from
+     * @param vars
+     *            The variables to write, in column order
+     * @param bbox
+     *            The {@link BoundingBox} to average over
+     * @param timeRange
+     *            The time range to write
+     * @param w
+     *            The {@link Writer} to write to
+     * @return The part of the time range which has not been written, or
+     *         <code>null</code> if every row has been written. If the store
+     *         cannot be used (including if the area contains too many cells),
+     *         nothing is written and the whole time range is returned.
+     */
+    public Extent<DateTime> writeAreaTimeseries(GriddedDataset dataset, Set<String> vars,
+            BoundingBox bbox, Extent<DateTime> timeRange, Writer w) throws IOException {
+        String firstVar = vars.iterator().next();
+        TimeAxis timeAxis = dataset.getVariableMetadata(firstVar).getTemporalDomain();
+        HorizontalGrid grid = dataset.getVariableMetadata(firstVar).getHorizontalDomain();
+        if (timeAxis == null || !(grid instanceof RectilinearGrid)) {
+            return timeRange;
+        }
+        /*
+         * This matches the way that subsetFeatures chooses the cells to
+         * extract
+         */
+        RectilinearGrid rectGrid = (RectilinearGrid) grid;
+        int[] xRange = snap(rectGrid.getXAxis(), bbox.getMinX(), bbox.getMaxX());
+        int[] yRange = snap(rectGrid.getYAxis(), bbox.getMinY(), bbox.getMaxY());
+        int nX = xRange[1] - xRange[0] + 1;
+        int nY = yRange[1] - yRange[0] + 1;
+        int[] tRange = getAreaTimeIndices(timeAxis, timeRange);
+        int tMin = tRange[0];
+        int tMax = tRange[1];
+        if (nX <= 0 || nY <= 0 || (long) nX * nY > maxBoxCells || tMax < tMin) {
+            return timeRange;
+        }
+
+        /*
+         * Values for each variable, indexed by [row][cell][t - tMin]
+         */
+        List<double[][][]> values = new ArrayList<>();
+        int tLast;
+        dataLock.readLock().lock();
+        try {
+            int[] varIndices;
+            synchronized (this) {
+                varIndices = getVarIndices(grid, vars, timeAxis, tMin, tMax);
+                if (varIndices == null) {
+                    return timeRange;
+                }
+                tLast = Math.min(tMax, times.length - 1);
+            }
+            for (int var : varIndices) {
+                double[][][] varValues = new double[nY][][];
+                try (RandomAccessFile raf = new RandomAccessFile(getDataFile(var), "r");
+                        FileChannel channel = raf.getChannel()) {
+                    for (int j = 0; j < nY; j++) {
+                        varValues[j] = readCells(channel, var, xRange[0], yRange[0] + j, nX,
+                                tMin, tLast);
+                    }
+                }
+                values.add(varValues);
+            }
+        } finally {
+            dataLock.readLock().unlock();
+        }
+
+        double[] buffer = new double[nX * nY];
+        CsvRowEncoder row = new CsvRowEncoder();
+        for (int t = tMin; t <= tLast; t++) {
+            row.startRow(timeAxis.getCoordinateValue(t));
+            for (double[][][] varValues : values) {
+                /*
+                 * Sum in the same (x-major) order as AreaMeanKernel
+                 */
+                int n = 0;
+                for (int i = 0; i < nX; i++) {
+                    for (int j = 0; j < nY; j++) {
+                        buffer[n++] = varValues[j][i][t - tMin];
+                    }
+                }
+                row.addValue(AreaMeanKernel.mean(buffer, n));
+            }
+            row.endRow();
+            row.writeTo(w);
+        }
+        return getRemainingRange(timeAxis, tLast, tMax, timeRange);
+    }
+
+    /**
+     * @return The number of timesteps which
+     *         {@link #writePointTimeseries(GriddedDataset, Set, BoundingBox, Extent, Writer)}
+     *         would currently write from the store
+     */
+    public int getStoredPointTimesteps(GriddedDataset dataset, Set<String> vars,
+            BoundingBox bbox, Extent<DateTime> timeRange) {
+        String firstVar = vars.iterator().next();
+        TimeAxis timeAxis = dataset.getVariableMetadata(firstVar).getTemporalDomain();
+        HorizontalGrid grid = dataset.getVariableMetadata(firstVar).getHorizontalDomain();
+        if (timeAxis == null || grid.findIndexOf(bbox.getLowerCorner()) == null) {
+            return 0;
+        }
+        int[] tRange = getPointTimeIndices(timeAxis, timeRange);
+        return countStored(grid, vars, timeAxis, tRange[0], tRange[1]);
+    }
+
+    /**
+     * @return The number of timesteps which
+     *         {@link #writeAreaTimeseries(GriddedDataset, Set, BoundingBox, Extent, Writer)}
+     *         would currently write from the store
+     */
+    public int getStoredAreaTimesteps(GriddedDataset dataset, Set<String> vars,
+            BoundingBox bbox, Extent<DateTime> timeRange) {
+        String firstVar = vars.iterator().next();
+        TimeAxis timeAxis = dataset.getVariableMetadata(firstVar).getTemporalDomain();
+        HorizontalGrid grid = dataset.getVariableMetadata(firstVar).getHorizontalDomain();
+        if (timeAxis == null || !(grid instanceof RectilinearGrid)) {
+            return 0;
+        }
+        RectilinearGrid rectGrid = (RectilinearGrid) grid;
+        int[] xRange = snap(rectGrid.getXAxis(), bbox.getMinX(), bbox.getMaxX());
+        int[] yRange = snap(rectGrid.getYAxis(), bbox.getMinY(), bbox.getMaxY());
+        int nX = xRange[1] - xRange[0] + 1;
+        int nY = yRange[1] - yRange[0] + 1;
+        if (nX <= 0 || nY <= 0 || (long) nX * nY > maxBoxCells) {
+            return 0;
+        }
+        int[] tRange = getAreaTimeIndices(timeAxis, timeRange);
+        return countStored(grid, vars, timeAxis, tRange[0], tRange[1]);
+    }
+
+    private synchronized int countStored(HorizontalGrid grid, Set<String> vars,
+            TimeAxis timeAxis, int tMin, int tMax) {
+        if (tMax < tMin || getVarIndices(grid, vars, timeAxis, tMin, tMax) == null) {
+            return 0;
+        }
+        return Math.min(tMax, times.length - 1) - tMin + 1;
+    }
+
+    /*
+     * Matches the way that extractTimeseriesFeatures chooses the timesteps to
+     * extract. Returns the first and last time indices.
+     */
+    private static int[] getPointTimeIndices(TimeAxis timeAxis, Extent<DateTime> timeRange) {
+        int tMin = findFirstIndexNotBefore(timeAxis, timeRange.getLow());
+        int tMax = findFirstIndexNotBefore(timeAxis, timeRange.getHigh());
+        if (tMax >= timeAxis.size()
+                || timeAxis.getCoordinateValue(tMax).isAfter(timeRange.getHigh())) {
+            tMax--;
+        }
+        return new int[] { tMin, tMax };
+    }
+
+    /*
+     * Matches the way that subsetFeatures chooses the timesteps to extract.
+     * Returns the first and last time indices.
+     */
+    private static int[] getAreaTimeIndices(TimeAxis timeAxis, Extent<DateTime> timeRange) {
+        int tMin = timeAxis.findIndexOf(timeRange.getLow());
+        int tMax = timeAxis.findIndexOf(timeRange.getHigh());
+        return new int[] { tMin == -1 ? 0 : tMin, tMax == -1 ? timeAxis.size() - 1 : tMax };
+    }
+
+    private static Extent<DateTime> getRemainingRange(TimeAxis timeAxis, int tLast, int tMax,
+            Extent<DateTime> timeRange) {
+        if (tLast >= tMax) {
+            return null;
+        }
+        return Extents.newExtent(timeAxis.getCoordinateValue(tLast + 1), timeRange.getHigh());
+    }
+
+    /**
+     * @return The index of the first time on the axis which is not before the
+     *         given time, or the size of the axis if there is none
+     */
+    private static int findFirstIndexNotBefore(TimeAxis timeAxis, DateTime time) {
+        int low = 0;
+        int high = timeAxis.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeAxis.getCoordinateValue(mid).isBefore(time)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Matches the way in which GriddedDataset chooses the range of indices
+     * when subsetting to a bounding box
+     */
+    private static int[] snap(ReferenceableAxis<Double> axis, double min, double max) {
+        int start = axis.findIndexOf(axis.isAscending() ? min : max);
+        int end = axis.findIndexOf(axis.isAscending() ? max : min);
+        return new int[] { start < 0 ? 0 : start, end < 0 ? axis.size() - 1 : end };
+    }
+}
@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver.util;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.util.Extents;
+
+/**
+ * Reads a subset of a {@link GriddedDataset} as a series of time slabs, each
+ * of which is small enough to be held in memory regardless of the length of
+ * the requested time range.
+ * 
+ * The timesteps covered by the slabs are exactly those which would be
+ * returned by a single call to
+ * {@link GriddedDataset#subsetFeatures(Set, BoundingBox, Extent, Extent)}
+ * with the same time range.
+ */
+public class TimeSlabReader {
+    /**
+     * The default maximum number of values (per variable) to read in a single
+     * slab
+     */
+    public static final int DEFAULT_SLAB_VALUES = 1 << 22;
+
+    private final GriddedDataset dataset;
+    private final Set<String> varIds;
+    private final BoundingBox bbox;
+    private final Extent<DateTime> timeRange;
+    private final TimeAxis timeAxis;
+    private final int firstIndex;
+    private final int lastIndex;
+    private final int slabLength;
+    private final long cellCount;
+
+    public TimeSlabReader(GriddedDataset dataset, Set<String> varIds, BoundingBox bbox,
+            Extent<DateTime> timeRange) throws EdalException {
+        this(dataset, varIds, bbox, timeRange, DEFAULT_SLAB_VALUES, 1);
+    }
+
+    /**
+     * @param dataset
+     *            The {@link GriddedDataset} to read from
+     * @param varIds
+     *            The variables to read
+     * @param bbox
+     *            The {@link BoundingBox} to read
+     * @param timeRange
+     *            The time range to read
+     * @param maxSlabValues
+     *            The maximum number of values per variable to read in a single
+     *            slab
+     * @param minSlabCount
+     *            The minimum number of slabs to split the time range into
+     *            (where there are enough timesteps). This is useful when
+     *            slabs are to be processed in parallel.
+     */
+    public TimeSlabReader(GriddedDataset dataset, Set<String> varIds, BoundingBox bbox,
+            Extent<DateTime> timeRange, int maxSlabValues, int minSlabCount)
+            throws EdalException {
+        this(dataset, varIds, bbox, timeRange, maxSlabValues, minSlabCount, 1);
+    }
+
+    /**
+     * @param dataset
+     *            The {@link GriddedDataset} to read from
+     * @param varIds
+     *            The variables to read
+     * @param bbox
+     *            The {@link BoundingBox} to read
+     * @param timeRange
+     *            The time range to read
+     * @param maxSlabValues
+     *            The maximum number of values per variable to read in a single
+     *            slab
+     * @param minSlabCount
+     *            The minimum number of slabs to split the time range into
+     *            (where there are enough timesteps). This is useful when
+     *            slabs are to be processed in parallel.
+     * @param slabMultiple
+     *            If a slab can hold at least this many timesteps, its length
+     *            will be a multiple of it. This is useful when slabs are to be
+     *            written to a file which is chunked in time.
+     */
+    public TimeSlabReader(GriddedDataset dataset, Set<String> varIds, BoundingBox bbox,
+            Extent<DateTime> timeRange, int maxSlabValues, int minSlabCount, int slabMultiple)
+            throws EdalException {
+        this.dataset = dataset;
+        this.varIds = varIds;
+        this.bbox = bbox;
+        this.timeRange = timeRange;
+
+        /*
+         * All variables must share a domain for subsetFeatures to succeed, so
+         * we can use the first to work out the slabs.
+         */
+        GridVariableMetadata metadata = dataset.getVariableMetadata(varIds.iterator().next());
+        timeAxis = metadata.getTemporalDomain();
+        cellCount = Math.max(1L, estimateCells(metadata.getHorizontalDomain(), bbox));
+        if (timeAxis == null) {
+            firstIndex = 0;
+            lastIndex = 0;
+            slabLength = 1;
+        } else {
+            /*
+             * This matches the way that subsetFeatures treats times outside
+             * of the axis
+             */
+            int tMin = timeAxis.findIndexOf(timeRange.getLow());
+            int tMax = timeAxis.findIndexOf(timeRange.getHigh());
+            firstIndex = tMin == -1 ? 0 : tMin;
+            lastIndex = tMax == -1 ? timeAxis.size() - 1 : tMax;
+            long length = Math.min(maxSlabValues / cellCount,
+                    (size() + minSlabCount - 1) / Math.max(1, minSlabCount));
+            length = Math.max(1L, Math.min(Integer.MAX_VALUE, length));
+            if (slabMultiple > 1 && length > slabMultiple) {
+                length -= length % slabMultiple;
+            }
+            slabLength = (int) length;
+        }
+    }
+
+    private static long estimateCells(HorizontalGrid grid, BoundingBox bbox) {
+        if (grid instanceof RectilinearGrid) {
+            RectilinearGrid rectGrid = (RectilinearGrid) grid;
+            return axisCount(rectGrid.getXAxis(), bbox.getMinX(), bbox.getMaxX())
+                    * axisCount(rectGrid.getYAxis(), bbox.getMinY(), bbox.getMaxY());
+        }
+        return grid.size();
+    }
+
+    private static long axisCount(ReferenceableAxis<Double> axis, double min, double max) {
+        int minIndex = axis.findIndexOf(min);
+        int maxIndex = axis.findIndexOf(max);
+        if (minIndex < 0 || maxIndex < 0) {
+            return axis.size();
+        }
+        return Math.abs(maxIndex - minIndex) + 1;
+    }
+
+    /**
+     * @return The time axis of the whole dataset, or <code>null</code> if it
+     *         has no time axis
+     */
+    public TimeAxis getTimeAxis() {
+        return timeAxis;
+    }
+
+    /**
+     * @return The index on the dataset time axis of the first timestep to
+     *         read
+     */
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * @return The index on the dataset time axis of the last timestep to read
+     */
+    public int getLastIndex() {
+        return lastIndex;
+    }
+
+    /**
+     * @return The total number of timesteps which will be read
+     */
+    public int size() {
+        return lastIndex - firstIndex + 1;
+    }
+
+    /**
+     * @return The (approximate) number of grid cells in each timestep which
+     *         will be read
+     */
+    public long getCellCount() {
+        return cellCount;
+    }
+
+    /**
+     * @return The maximum number of timesteps in a single slab
+     */
+    public int getSlabLength() {
+        return slabLength;
+    }
+
+    /**
+     * @return The number of slabs needed to read all of the timesteps
+     */
+    public int getSlabCount() {
+        return (size() + slabLength - 1) / slabLength;
+    }
+
+    /**
+     * @param slab
+     *            The index of a slab, between 0 and {@link #getSlabCount()} -
+     *            1
+     * @return The number of timesteps in the slab
+     */
+    public int getSlabSize(int slab) {
+        return Math.min(slabLength, size() - slab * slabLength);
+    }
+
+    /**
+     * Reads a single slab
+     * 
+     * @param slab
+     *            The index of the slab to read, between 0 and
+     *            {@link #getSlabCount()} - 1
+     * @return A {@link GridFeature} containing all variables over the bounding
+     *         box for the timesteps in the slab
+     */
+    public GridFeature readSlab(int slab) throws EdalException, IOException {
+        if (timeAxis == null) {
+            return dataset.subsetFeatures(varIds, bbox, null, timeRange);
+        }
+        int start = firstIndex + slab * slabLength;
+        int end = Math.min(start + slabLength - 1, lastIndex);
+        return dataset.subsetFeatures(varIds, bbox, null, Extents
+                .newExtent(timeAxis.getCoordinateValue(start), timeAxis.getCoordinateValue(end)));
+    }
+}
@@ -51,8 +51,7 @@ window.onload = function() {
         checkLimits(lon);
     })
 
-    populateDatasets();
-    populateCountries();
+    populateMetadata();
 
     // This is normally handled by the fact that datatypeSelected is bound to the
     // change event of all of the radio buttons.
@@ -95,28 +94,20 @@ function validateForm() {
     }
 }
 
-function populateDatasets() {
-    var datasetSel = document.getElementById('datasetSelect');
-    datasetSel.addEventListener('change', function(e) {
-        populateTimes(e.target.value);
-    });
+// The start and end times of each dataset, keyed by dataset ID
+var datasetTimes = {};
+
+// Fetches the datasets, countries and times in a single request
+function populateMetadata() {
     var xhr = new XMLHttpRequest();
-    xhr.open("GET", "data?REQUEST=GETDATASETS", true);
+    xhr.open("GET", "data?REQUEST=GETMETADATA", true);
     xhr.onload = function(e) {
         if (xhr.readyState === 4) {
             if (xhr.status === 200) {
-                var datasets = JSON.parse(xhr.responseText);
-                if (datasets.length > 0) {
-                    document.getElementById('notLoadedLabel').style.display = 'none';
-                    document.getElementById('subsetSelection').style.display = 'block';
-                    for (var i = 0; i < datasets.length; i++) {
-                        // There should only be one per array element (we are using arrays to preserve order)
-                        for (var id in datasets[i]) {
-                            datasetSel.appendChild(new Option(datasets[i][id], id));
-                        }
-                    }
-                    populateTimes(datasetSel[datasetSel.selectedIndex].value);
-                }
+                var metadata = JSON.parse(xhr.responseText);
+                datasetTimes = metadata.times;
+                populateCountries(metadata.countries);
+                populateDatasets(metadata.datasets);
             } else {
                 // Something has gone wrong here...
                 console.log("Problem getting list of available datasets.  The server may be down");
@@ -129,106 +120,101 @@ function populateDatasets() {
     xhr.send(null);
 }
 
-function populateTimes(datasetId) {
-    var timesDiv = document.getElementById('timesDiv');
-    timesDiv.innerHTML = 'Loading available times...';
-    var xhr = new XMLHttpRequest();
-    xhr.open("GET", "data?REQUEST=GETTIMES&DATASET=" + datasetId, true);
-    xhr.onload = function(e) {
-        if (xhr.readyState === 4) {
-            if (xhr.status === 200) {
-                var startEndTimes = JSON.parse(xhr.responseText);
-                var current = new Date(Date.parse(startEndTimes.starttime));
-                current.setDate(1)
-                var end = new Date(Date.parse(startEndTimes.endtime));
-                end.setDate(1)
-                end.setMonth(end.getMonth() + 1)
-
-                // Remove the "Loading times..." label
-                timesDiv.innerHTML = '';
-
-                var startLabel = document.createElement('label')
-                startLabel.for = 'starttime';
-                startLabel.innerHTML = 'Start Date:';
-                var startSel = document.createElement('select');
-                startSel.name = 'starttime';
-                startSel.id = 'starttime';
-                var br = document.createElement('br');
-                var endLabel = document.createElement('label')
-                endLabel.for = 'endtime';
-                endLabel.innerHTML = 'End Date:';
-                var endSel = document.createElement('select');
-                endSel.name = 'endtime';
-                endSel.id = 'endtime';
-
-                timesDiv.appendChild(startLabel);
-                timesDiv.appendChild(startSel);
-                timesDiv.appendChild(br);
-                timesDiv.appendChild(endLabel);
-                timesDiv.appendChild(endSel);
-
-                // Populate the drop-down lists with all available dates
-                while (current < end) {
-                	var dateStr = +(current.getMonth() + 1) + '/' + current.getFullYear();
-                    startSel.appendChild(new Option(dateStr, current.toISOString()));
-
-                    current.setMonth(current.getMonth() + 1);
-                                                            
-                    endSel.appendChild(new Option(dateStr, current.toISOString()));
-                }
-
-                // Set the end time to the final available
-                // TODO may want this e.g. start + 1 month or similar
-                endSel.selectedIndex = endSel.options.length - 1;
-
-                // Ensure that start time cannot be later than end time
-                startSel.addEventListener('change', function(e) {
-                    if (startSel.selectedIndex > endSel.selectedIndex) {
-                        endSel.selectedIndex = startSel.selectedIndex;
-                    }
-                });
-
-                // Ensure that start time cannot be later than end time
-                endSel.addEventListener('change', function(e) {
-                    if (startSel.selectedIndex > endSel.selectedIndex) {
-                        startSel.selectedIndex = endSel.selectedIndex;
-                    }
-                });
-            } else {
-                // No times are available.  The dataset is not loaded on the server
-                // This is *probably* because we've only just started up.
-                // But it could be indicative of a larger error.
-                // Display a "first wait and see, then contact us" message.
-                document.getElementById('form').style.display = 'none';
-                document.getElementById('not_loaded').style.display = 'block';
+function populateDatasets(datasets) {
+    var datasetSel = document.getElementById('datasetSelect');
+    datasetSel.addEventListener('change', function(e) {
+        populateTimes(e.target.value);
+    });
+    if (datasets.length > 0) {
+        document.getElementById('notLoadedLabel').style.display = 'none';
+        document.getElementById('subsetSelection').style.display = 'block';
+        for (var i = 0; i < datasets.length; i++) {
+            // There should only be one per array element (we are using arrays to preserve order)
+            for (var id in datasets[i]) {
+                datasetSel.appendChild(new Option(datasets[i][id], id));
             }
         }
-    };
-    xhr.onerror = function(e) {
-        console.error(xhr.statusText);
-    };
-    xhr.send(null);
+        populateTimes(datasetSel[datasetSel.selectedIndex].value);
+    }
 }
 
-function populateCountries() {
-    var xhr = new XMLHttpRequest();
-    xhr.open("GET", "data?REQUEST=GETCOUNTRIES", true);
-    xhr.onload = function(e) {
-        if (xhr.readyState === 4) {
-            if (xhr.status === 200) {
-                var countryLabel2Id = JSON.parse(xhr.responseText);
-                var countries = Object.keys(countryLabel2Id);
-                countries.sort();
-                var countrySel = document.getElementById('regionSelect');
-
-                for (var i = 0; i < countries.length; i++) {
-                    countrySel.appendChild(new Option(countries[i], countryLabel2Id[countries[i]]));
-                }
-            }
+function populateTimes(datasetId) {
+    var timesDiv = document.getElementById('timesDiv');
+    var startEndTimes = datasetTimes[datasetId];
+    if (!startEndTimes) {
+        // No times are available.  The dataset is not loaded on the server
+        // This is *probably* because we've only just started up.
+        // But it could be indicative of a larger error.
+        // Display a "first wait and see, then contact us" message.
+        document.getElementById('form').style.display = 'none';
+        document.getElementById('not_loaded').style.display = 'block';
+        return;
+    }
+
+    var current = new Date(Date.parse(startEndTimes.starttime));
+    current.setDate(1)
+    var end = new Date(Date.parse(startEndTimes.endtime));
+    end.setDate(1)
+    end.setMonth(end.getMonth() + 1)
+
+    // Remove the "Loading times..." label
+    timesDiv.innerHTML = '';
+
+    var startLabel = document.createElement('label')
+    startLabel.for = 'starttime';
+    startLabel.innerHTML = 'Start Date:';
+    var startSel = document.createElement('select');
+    startSel.name = 'starttime';
+    startSel.id = 'starttime';
+    var br = document.createElement('br');
+    var endLabel = document.createElement('label')
+    endLabel.for = 'endtime';
+    endLabel.innerHTML = 'End Date:';
+    var endSel = document.createElement('select');
+    endSel.name = 'endtime';
+    endSel.id = 'endtime';
+
+    timesDiv.appendChild(startLabel);
+    timesDiv.appendChild(startSel);
+    timesDiv.appendChild(br);
+    timesDiv.appendChild(endLabel);
+    timesDiv.appendChild(endSel);
+
+    // Populate the drop-down lists with all available dates
+    while (current < end) {
+    	var dateStr = +(current.getMonth() + 1) + '/' + current.getFullYear();
+        startSel.appendChild(new Option(dateStr, current.toISOString()));
+
+        current.setMonth(current.getMonth() + 1);
+                                                
+        endSel.appendChild(new Option(dateStr, current.toISOString()));
+    }
+
+    // Set the end time to the final available
+    // TODO may want this e.g. start + 1 month or similar
+    endSel.selectedIndex = endSel.options.length - 1;
+
+    // Ensure that start time cannot be later than end time
+    startSel.addEventListener('change', function(e) {
+        if (startSel.selectedIndex > endSel.selectedIndex) {
+            endSel.selectedIndex = startSel.selectedIndex;
         }
-    };
-    xhr.onerror = function(e) {
-        console.error(xhr.statusText);
-    };
-    xhr.send(null);
+    });
+
+    // Ensure that start time cannot be later than end time
+    endSel.addEventListener('change', function(e) {
+        if (startSel.selectedIndex > endSel.selectedIndex) {
+            startSel.selectedIndex = endSel.selectedIndex;
+        }
+    });
+}
+
+function populateCountries(countryLabel2Id) {
+    var countries = Object.keys(countryLabel2Id);
+    countries.sort();
+    var countrySel = document.getElementById('regionSelect');
+
+    for (var i = 0; i < countries.length; i++) {
+        countrySel.appendChild(new Option(countries[i], countryLabel2Id[countries[i]]));
+    }
 }
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.org.tamsat.dataserver.util.CountryDefinition;
+
+/**
+ * Compares the time taken to find the masked cells of every country in the
+ * African mask set using the bitset index in {@link CountryDefinition} against
+ * a linear scan of the country's cell list.
+ * 
+ * The linear scan is too slow to run to completion for the larger countries,
+ * so it is only run over a sample of rows and the result extrapolated to the
+ * full bounding box.
+ */
+public class CountryMaskBenchmark {
+    private static final int SAMPLE_ROWS = 5;
+
+    public static void main(String[] args) throws IOException {
+        URL africaMasks = CountryMaskBenchmark.class.getResource("/africa_masks.dat");
+        Map<String, CountryDefinition> masks = TamsatDataSubsetServlet
+                .loadCountryMasks(africaMasks);
+
+        long totalIndexNanos = 0L;
+        double totalScanNanos = 0.0;
+        for (Entry<String, CountryDefinition> entry : masks.entrySet()) {
+            CountryDefinition country = entry.getValue();
+            int width = country.getMaskWidth();
+            int height = country.getMaskHeight();
+            List<GridCoordinates2D> cells = new ArrayList<>(country.getCells());
+
+            long start = System.nanoTime();
+            int indexMasked = 0;
+            for (int j = 0; j < height; j++) {
+                for (int i = 0; i < width; i++) {
+                    if (!country.contains(i, j)) {
+                        indexMasked++;
+                    }
+                }
+            }
+            long indexNanos = System.nanoTime() - start;
+
+            int sampleRows = Math.min(SAMPLE_ROWS, height);
+            start = System.nanoTime();
+            int scanMasked = 0;
+            for (int j = 0; j < sampleRows; j++) {
+                for (int i = 0; i < width; i++) {
+                    if (!cells.contains(new GridCoordinates2D(i, j))) {
+                        scanMasked++;
+                    }
+                }
+            }
+            double scanNanos = (System.nanoTime() - start) * ((double) height / sampleRows);
+
+            totalIndexNanos += indexNanos;
+            totalScanNanos += scanNanos;
+            System.out.println(String.format(
+                    "%s (%s): %dx%d cells, %d in country, %d masked (%d in sample).  Index: %.3fms, list scan: ~%.1fms",
+                    entry.getKey(), country.getLabel(), width, height, cells.size(), indexMasked,
+                    scanMasked, indexNanos / 1e6, scanNanos / 1e6));
+        }
+        System.out.println(String.format("All %d countries.  Index: %.1fms, list scan: ~%.1fms",
+                masks.size(), totalIndexNanos / 1e6, totalScanNanos / 1e6));
+    }
+}
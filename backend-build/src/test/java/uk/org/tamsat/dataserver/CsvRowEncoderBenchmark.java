@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+import uk.org.tamsat.dataserver.util.CsvRowEncoder;
+
+/**
+ * Compares the time taken to write CSV timeseries rows using
+ * {@link CsvRowEncoder} against the previous approach of building each row
+ * with a {@link StringBuilder}, {@link DecimalFormat} and
+ * {@link TimeUtils#formatUtcDateOnly(DateTime)}, and checks that both produce
+ * identical output.
+ */
+public class CsvRowEncoderBenchmark {
+    private static final int ROWS = 200000;
+    private static final int COLUMNS = 8;
+    private static final int REPEATS = 5;
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(1234L);
+        DateTime[] times = new DateTime[ROWS];
+        double[][] values = new double[ROWS][COLUMNS];
+        DateTime start = new DateTime(1983, 1, 1, 0, 0, DateTimeZone.UTC);
+        for (int r = 0; r < ROWS; r++) {
+            times[r] = start.plusDays(r);
+            for (int c = 0; c < COLUMNS; c++) {
+                /*
+                 * A mix of typical rainfall values, exact halves, negatives
+                 * and missing data
+                 */
+                switch (random.nextInt(8)) {
+                case 0:
+                    values[r][c] = Double.NaN;
+                    break;
+                case 1:
+                    values[r][c] = random.nextInt(2000) / 8.0;
+                    break;
+                case 2:
+                    values[r][c] = -random.nextDouble() * 10.0;
+                    break;
+                default:
+                    values[r][c] = random.nextDouble() * 200.0;
+                }
+            }
+        }
+
+        String expected = null;
+        String actual = null;
+        for (int i = 0; i < REPEATS; i++) {
+            long t0 = System.nanoTime();
+            expected = writeWithDecimalFormat(times, values);
+            long t1 = System.nanoTime();
+            actual = writeWithEncoder(times, values);
+            long t2 = System.nanoTime();
+            System.out.println(String.format(
+                    "Run %d.  DecimalFormat: %.0f rows/s, CsvRowEncoder: %.0f rows/s", i + 1,
+                    ROWS / ((t1 - t0) / 1e9), ROWS / ((t2 - t1) / 1e9)));
+        }
+        System.out.println(expected.equals(actual) ? "Outputs are identical"
+                : "OUTPUTS DIFFER");
+    }
+
+    private static String writeWithDecimalFormat(DateTime[] times, double[][] values)
+            throws IOException {
+        StringWriter w = new StringWriter();
+        DecimalFormat format2dp = new DecimalFormat("#.00");
+        StringBuilder line = new StringBuilder();
+        for (int r = 0; r < times.length; r++) {
+            line.setLength(0);
+            line.append(TimeUtils.formatUtcDateOnly(times[r]));
+            for (double value : values[r]) {
+                if (!Double.isNaN(value)) {
+                    line.append("," + format2dp.format(value));
+                } else {
+                    line.append(",-999");
+                }
+            }
+            line.append("\n");
+            w.write(line.toString());
+        }
+        return w.toString();
+    }
+
+    private static String writeWithEncoder(DateTime[] times, double[][] values)
+            throws IOException {
+        StringWriter w = new StringWriter();
+        CsvRowEncoder row = new CsvRowEncoder();
+        for (int r = 0; r < times.length; r++) {
+            row.startRow(times[r]);
+            for (double value : values[r]) {
+                row.addValue(value);
+            }
+            row.endRow();
+            row.writeTo(w);
+        }
+        return w.toString();
+    }
+}
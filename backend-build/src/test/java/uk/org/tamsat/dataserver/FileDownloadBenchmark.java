@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compares the time taken to send a large file over a (loopback) socket using
+ * the 1KB copy loop which downloads previously used, against
+ * {@link FileDownload#transfer(FileChannel, long, long, java.nio.channels.WritableByteChannel)}.
+ * 
+ * Usage: FileDownloadBenchmark [file size in MB]
+ */
+public class FileDownloadBenchmark {
+    private static final int REPEATS = 5;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 512L) * 1024L * 1024L;
+        File file = File.createTempFile("download", ".nc");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] block = new byte[1 << 20];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) i;
+            }
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            for (int i = 0; i < REPEATS; i++) {
+                long start = System.nanoTime();
+                try (SocketChannel socket = connect(server);
+                        FileInputStream is = new FileInputStream(file)) {
+                    OutputStream os = Channels.newOutputStream(socket);
+                    int n;
+                    byte[] buffer = new byte[1024];
+                    while ((n = is.read(buffer)) > -1) {
+                        os.write(buffer, 0, n);
+                    }
+                }
+                double copyMs = (System.nanoTime() - start) / 1e6;
+
+                start = System.nanoTime();
+                try (SocketChannel socket = connect(server);
+                        FileChannel in = FileChannel.open(file.toPath(),
+                                StandardOpenOption.READ)) {
+                    FileDownload.transfer(in, 0, in.size(), socket);
+                }
+                double transferMs = (System.nanoTime() - start) / 1e6;
+
+                System.out.println(String.format(
+                        "Run %d.  %dMB.  1KB copy loop: %.0fms (%.0fMB/s), transferTo: %.0fms (%.0fMB/s)",
+                        i + 1, size >> 20, copyMs, (size >> 20) / (copyMs / 1000),
+                        transferMs, (size >> 20) / (transferMs / 1000)));
+            }
+        }
+    }
+
+    /**
+     * Connects to the server, and starts a thread which reads and discards
+     * everything sent over the connection
+     */
+    private static SocketChannel connect(ServerSocketChannel server) throws IOException {
+        SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        SocketChannel accepted = server.accept();
+        Thread drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            try {
+                while (accepted.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+                accepted.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+        return client;
+    }
+}
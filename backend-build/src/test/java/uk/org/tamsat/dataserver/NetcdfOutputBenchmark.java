@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver;
+
+import java.io.File;
+import java.io.IOException;
+
+import ucar.ma2.InvalidRangeException;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
+import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridFeatureWrite;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.org.tamsat.dataserver.util.NetcdfSubsetWriter;
+
+/**
+ * Compares the time taken to write a subset as NetCDF against the size of the
+ * output file, for EDAL's writer and for {@link NetcdfSubsetWriter} with a
+ * range of chunk shapes and deflate levels.
+ * 
+ * The whole of the given dataset is written. If the native NetCDF-4 library is
+ * not available, only uncompressed NetCDF-3 output can be benchmarked.
+ * 
+ * Usage: NetcdfOutputBenchmark &lt;dataset location&gt;
+ */
+public class NetcdfOutputBenchmark {
+    public static void main(String[] args)
+            throws IOException, EdalException, InvalidRangeException {
+        GriddedDataset dataset = (GriddedDataset) new CdmGridDatasetFactory()
+                .createDataset("benchmark", args[0]);
+        VariableMetadata metadata = dataset
+                .getVariableMetadata(dataset.getVariableIds().iterator().next());
+        GridFeature feature = dataset.subsetFeatures(dataset.getVariableIds(),
+                metadata.getHorizontalDomain().getBoundingBox(), null,
+                metadata.getTemporalDomain().getExtent());
+        File outputFile = File.createTempFile("benchmark", ".nc");
+        outputFile.deleteOnExit();
+
+        long start = System.nanoTime();
+        new NetcdfSubsetWriter(0, false, 1, 1, 1).write(feature, outputFile, null, false);
+        report("NetCDF-3, uncompressed", start, outputFile);
+
+        if (!NetcdfSubsetWriter.isNetcdf4Available()) {
+            System.out.println("NetCDF-4 library not available.  Skipping compressed output.");
+            return;
+        }
+
+        start = System.nanoTime();
+        CdmGridFeatureWrite.gridFeatureToNetCDF(feature, outputFile, null);
+        report("NetCDF-4, EDAL default", start, outputFile);
+
+        int xSize = feature.getDomain().getHorizontalGrid().getXSize();
+        int ySize = feature.getDomain().getHorizontalGrid().getYSize();
+        int[][] chunkShapes = { { 1, ySize, xSize }, { 32, 64, 64 }, { 256, 32, 32 },
+                { 1024, 16, 16 } };
+        for (int[] chunks : chunkShapes) {
+            for (int deflateLevel : new int[] { 0, 1, 4, 9 }) {
+                start = System.nanoTime();
+                new NetcdfSubsetWriter(deflateLevel, true, chunks[0], chunks[1], chunks[2])
+                        .write(feature, outputFile, null, true);
+                report(String.format("NetCDF-4, chunks %dx%dx%d, deflate %d", chunks[0],
+                        chunks[1], chunks[2], deflateLevel), start, outputFile);
+            }
+        }
+    }
+
+    private static void report(String label, long startNanos, File outputFile) {
+        System.out.println(String.format("%-45s %8.1fms %10.2fMB", label,
+                (System.nanoTime() - startNanos) / 1e6, outputFile.length() / 1048576.0));
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+
+import uk.org.tamsat.dataserver.util.ResultCompression;
+
+/**
+ * Reports how well subset results compress at different gzip levels, how long
+ * compression takes when a job finishes, and how fast the result can be
+ * decompressed for clients which do not accept <code>Content-Encoding:
+ * gzip</code>.
+ * 
+ * Usage: ResultCompressionBenchmark [result file]...
+ */
+public class ResultCompressionBenchmark {
+    private static final int[] LEVELS = { 1, 6, 9 };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: ResultCompressionBenchmark [result file]...");
+            return;
+        }
+        for (String arg : args) {
+            File result = new File(arg);
+            File copy = File.createTempFile("result", ".tmp");
+            copy.deleteOnExit();
+            for (int level : LEVELS) {
+                Files.copy(result.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+                long start = System.nanoTime();
+                boolean compressed = ResultCompression.compress(copy, level);
+                double compressMs = (System.nanoTime() - start) / 1e6;
+                if (!compressed) {
+                    System.out.println(result.getName() + ": not compressed");
+                    break;
+                }
+
+                start = System.nanoTime();
+                long decompressedLength = 0L;
+                try (InputStream in = new GZIPInputStream(new FileInputStream(copy), 65536)) {
+                    byte[] buffer = new byte[65536];
+                    int n;
+                    while ((n = in.read(buffer)) > -1) {
+                        decompressedLength += n;
+                    }
+                }
+                double decompressMs = (System.nanoTime() - start) / 1e6;
+                if (decompressedLength != result.length()) {
+                    throw new IOException("Decompressed length " + decompressedLength
+                            + " does not match original length " + result.length());
+                }
+
+                System.out.println(String.format(
+                        "%s level %d: %d -> %d bytes (%.1fx).  Compress %.0fms, decompress %.0fms (%.0fMB/s)",
+                        result.getName(), level, result.length(), copy.length(),
+                        (double) result.length() / copy.length(), compressMs, decompressMs,
+                        (result.length() / 1048576.0) / (decompressMs / 1000)));
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.org.tamsat.dataserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Shows how many request threads are occupied when many slow clients download
+ * at once, for the blocking copy and for {@link FileDownload.AsyncTransfer}.
+ * 
+ * The container is simulated by a fixed pool of request threads, and each
+ * client by an output stream with a socket-sized buffer which is drained at a
+ * fixed rate. In blocking mode, writes wait for the client to drain its buffer.
+ * In non-blocking mode, the stream reports that it is not ready, and the
+ * {@link WriteListener} is dispatched to the pool again once there is space,
+ * as a container would.
+ * 
+ * Whilst the downloads are running, a short request is submitted to the pool
+ * every 50ms to measure how long other users would wait for a thread.
+ * 
+ * Usage: SlowDownloadBenchmark [clients] [request threads] [file size in KB]
+ * [client rate in KB/s]
+ */
+public class SlowDownloadBenchmark {
+    private static final int SOCKET_BUFFER = 64 * 1024;
+    private static final long TICK_MS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long size = (args.length > 2 ? Long.parseLong(args[2]) : 1024L) * 1024L;
+        long rate = (args.length > 3 ? Long.parseLong(args[3]) : 2048L) * 1024L;
+
+        File file = File.createTempFile("download", ".nc");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+
+        System.out.println(String.format(
+                "%d clients at %dKB/s downloading %dKB each, %d request threads", clients,
+                rate >> 10, size >> 10, threads));
+        run(file, clients, threads, rate, false);
+        run(file, clients, threads, rate, true);
+    }
+
+    private static void run(File file, int clients, int threads, long rate, boolean async)
+            throws Exception {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads);
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+        CountDownLatch done = new CountDownLatch(clients);
+        List<SlowClient> slowClients = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            slowClients.add(new SlowClient(rate * TICK_MS / 1000, async, pool));
+        }
+
+        long start = System.nanoTime();
+        ticker.scheduleAtFixedRate(() -> {
+            for (SlowClient client : slowClients) {
+                client.drain();
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+
+        for (SlowClient client : slowClients) {
+            pool.submit(() -> {
+                FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                if (async) {
+                    /*
+                     * The request thread returns as soon as the listener is
+                     * registered
+                     */
+                    client.setWriteListener(new FileDownload.AsyncTransfer(in, 0, in.size(),
+                            client, done::countDown));
+                } else {
+                    try {
+                        FileDownload.transfer(in, 0, in.size(), Channels.newChannel(client));
+                    } finally {
+                        in.close();
+                        done.countDown();
+                    }
+                }
+                return null;
+            });
+        }
+
+        /*
+         * Sample thread occupancy and the time taken to get a thread for a
+         * short request until every download has finished
+         */
+        long samples = 0;
+        long busyTotal = 0;
+        int busyMax = 0;
+        long waitMax = 0;
+        long waitTotal = 0;
+        int shortRequests = 0;
+        while (!done.await(50, TimeUnit.MILLISECONDS)) {
+            int busy = pool.getActiveCount();
+            busyTotal += busy;
+            busyMax = Math.max(busyMax, busy);
+            samples++;
+
+            long submitted = System.nanoTime();
+            long started = pool.submit(() -> System.nanoTime()).get();
+            long wait = (started - submitted) / 1000000L;
+            waitTotal += wait;
+            waitMax = Math.max(waitMax, wait);
+            shortRequests++;
+        }
+        double totalMs = (System.nanoTime() - start) / 1e6;
+
+        ticker.shutdownNow();
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+
+        System.out.println(String.format(
+                "%-12s total %6.0fms.  Busy request threads: mean %5.1f, max %3d.  "
+                        + "Wait for a thread: mean %5dms, max %5dms",
+                async ? "Non-blocking" : "Blocking", totalMs,
+                samples == 0 ? 0.0 : (double) busyTotal / samples, busyMax,
+                shortRequests == 0 ? 0 : waitTotal / shortRequests, waitMax));
+    }
+
+    /**
+     * A simulated client connection with a fixed-size socket buffer which is
+     * emptied by {@link #drain()} at the client's download rate
+     */
+    private static class SlowClient extends ServletOutputStream {
+        private final long bytesPerTick;
+        private final boolean async;
+        private final ExecutorService pool;
+        private long buffered = 0;
+        private WriteListener listener = null;
+        private boolean listenerWaiting = false;
+
+        public SlowClient(long bytesPerTick, boolean async, ExecutorService pool) {
+            this.bytesPerTick = bytesPerTick;
+            this.async = async;
+            this.pool = pool;
+        }
+
+        public void drain() {
+            boolean dispatch;
+            synchronized (this) {
+                buffered = Math.max(0, buffered - bytesPerTick);
+                notifyAll();
+                dispatch = listenerWaiting && buffered < SOCKET_BUFFER;
+                if (dispatch) {
+                    listenerWaiting = false;
+                }
+            }
+            if (dispatch) {
+                dispatchListener();
+            }
+        }
+
+        private void dispatchListener() {
+            pool.submit(() -> {
+                try {
+                    listener.onWritePossible();
+                } catch (Throwable t) {
+                    listener.onError(t);
+                }
+            });
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            if (buffered < SOCKET_BUFFER) {
+                return true;
+            }
+            listenerWaiting = true;
+            return false;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            listener = writeListener;
+            dispatchListener();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (async) {
+                /*
+                 * Like a container, accept the whole write and report that the
+                 * stream is not ready until it has been sent
+                 */
+                buffered += len;
+                return;
+            }
+            int written = 0;
+            while (written < len) {
+                while (buffered >= SOCKET_BUFFER) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted whilst writing", e);
+                    }
+                }
+                int n = (int) Math.min(len - written, SOCKET_BUFFER - buffered);
+                buffered += n;
+                written += n;
+            }
+        }
+    }
+}